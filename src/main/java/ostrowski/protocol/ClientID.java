@@ -7,10 +7,12 @@ package ostrowski.protocol;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.IOException;
 
 public class ClientID extends SerializableObject
 {
+   private static final SchemaCodec<ClientID> CODEC = SchemaCodec.forClass(ClientID.class);
+
+   @WireField(order = 1)
    private int id = -1;
 
    public ClientID() {}
@@ -22,21 +24,13 @@ public class ClientID extends SerializableObject
    @Override
    public void serializeToStream(DataOutputStream out)
    {
-      try {
-         out.writeInt(id);
-      } catch (IOException e) {
-         e.printStackTrace();
-      }
+      CODEC.writeUnchecked(this, out);
    }
 
    @Override
    public void serializeFromStream(DataInputStream in)
    {
-      try {
-         id = in.readInt();
-      } catch (IOException e) {
-         e.printStackTrace();
-      }
+      CODEC.readUnchecked(this, in);
    }
 
    @Override
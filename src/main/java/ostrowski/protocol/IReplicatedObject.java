@@ -0,0 +1,19 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.protocol;
+
+/**
+ * A SerializableObject that is sent over and over as it changes, such as the state of a
+ * character in a game. When both sides of a COMPACT connection keep an ObjectReplicaCache,
+ * each version of the object is only sent as the bytes that changed since the previous one.
+ */
+public interface IReplicatedObject
+{
+   /**
+    * @return the ID of this object, which must stay the same for all its versions, and must
+    *         be unique among all the replicated objects sent over a connection.
+    */
+   int getReplicaId();
+}
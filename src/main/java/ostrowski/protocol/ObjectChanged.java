@@ -26,8 +26,8 @@ public class ObjectChanged extends SerializableObject
    public void serializeFromStream(DataInputStream in)
    {
       try {
-         originalObject = SerializableFactory.readObject(readString(in), in);
-         modifiedObject = SerializableFactory.readObject(readString(in), in);
+         originalObject = SerializableFactory.readReplicatedObject(in);
+         modifiedObject = SerializableFactory.readReplicatedObject(in);
       } catch (IOException e) {
          e.printStackTrace();
       }
@@ -37,10 +37,10 @@ public class ObjectChanged extends SerializableObject
    public void serializeToStream(DataOutputStream out)
    {
       try {
-         writeToStream(SerializableFactory.getKey(originalObject), out);
-         originalObject.serializeToStream(out);
-         writeToStream(SerializableFactory.getKey(modifiedObject), out);
-         modifiedObject.serializeToStream(out);
+         // For replicated objects, the original is usually the version the peer already holds,
+         // and the modified object is sent as a delta from the original.
+         SerializableFactory.writeReplicatedObject(originalObject, out);
+         SerializableFactory.writeReplicatedObject(modifiedObject, out);
       } catch (IOException e) {
          e.printStackTrace();
       }
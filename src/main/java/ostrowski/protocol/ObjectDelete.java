@@ -28,8 +28,7 @@ public class ObjectDelete extends SerializableObject
    public void serializeFromStream(DataInputStream in)
    {
       try {
-         String key = readString(in);
-         object = SerializableFactory.readObject(key, in);
+         object = SerializableFactory.readReplicatedObject(in);
       } catch (IOException e) {
          e.printStackTrace();
       }
@@ -38,12 +37,11 @@ public class ObjectDelete extends SerializableObject
    @Override
    public void serializeToStream(DataOutputStream out)
    {
-      String key = SerializableFactory.getKey(object);
       try {
-         writeToStream(key, out);
+         // If the peer holds a replica of this object, this only sends its ID.
+         SerializableFactory.writeDroppedObject(object, out);
       } catch (IOException e) {
          e.printStackTrace();
       }
-      object.serializeToStream(out);
    }
 }
@@ -27,8 +27,7 @@ public class ObjectInfo extends SerializableObject
    public void serializeFromStream(DataInputStream in)
    {
       try {
-         String key = readString(in);
-         object = SerializableFactory.readObject(key, in);
+         object = SerializableFactory.readReplicatedObject(in);
       } catch (IOException e) {
          e.printStackTrace();
       }
@@ -37,13 +36,12 @@ public class ObjectInfo extends SerializableObject
    @Override
    public void serializeToStream(DataOutputStream out)
    {
-      String key = SerializableFactory.getKey(object);
       try {
-         writeToStream(key, out);
+         // If the peer already holds this version of a replicated object, this only sends its version.
+         SerializableFactory.writeReplicatedObject(object, out);
       } catch (IOException e) {
          e.printStackTrace();
       }
-      object.serializeToStream(out);
    }
 
 }
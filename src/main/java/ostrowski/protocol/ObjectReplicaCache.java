@@ -0,0 +1,362 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The last version of each IReplicatedObject sent over one direction of a COMPACT connection.
+ * The sender's ProtocolOutputStream and the receiver's ProtocolInputStream each hold one,
+ * and apply the same changes to it in the same order (just like the string dictionary),
+ * so both always agree on what the receiver holds. A replicated object that the receiver
+ * already holds is then sent as a delta against that version, or as a reference to it if
+ * it hasn't changed at all.
+ *
+ * Each replica is kept as the CLASSIC encoding of its object, which (unlike the COMPACT
+ * encoding) doesn't depend on the state of the stream, so the receiver can decode it
+ * again at any time. Every time a replica is stored it gets a new version number, which
+ * the sender includes in each reference, so a receiver that somehow lost track of the
+ * sender fails loudly instead of decoding the wrong object.
+ * The least recently used replicas are evicted once the cache holds more than 'capacity'
+ * bytes of them (counting ENTRY_OVERHEAD for each); after that, their objects are sent in full
+ * again. Objects too large to ever fit are not cached at all.
+ * The counters say how well the cache is working; they may be read from any thread.
+ */
+public class ObjectReplicaCache
+{
+   // The tag in front of each object written by write().
+   static final int REPLICA_NONE  = 0; // not an IReplicatedObject; the object follows, as usual
+   static final int REPLICA_FULL  = 1; // id, length and the CLASSIC encoding of the object
+   static final int REPLICA_SAME  = 2; // id and version of a replica the receiver holds
+   static final int REPLICA_DELTA = 3; // id and version of the base replica, and the delta from it
+   static final int REPLICA_DROP  = 4; // id and version of a replica that is removed from the cache
+
+   // What we count for each replica, besides its bytes, against the capacity of the cache.
+   static final int ENTRY_OVERHEAD = 64;
+
+   // When a run of this many bytes is unchanged, a delta is cheaper if it copies them.
+   private static final int MIN_COPY_RUN = 4;
+
+   static final class Replica
+   {
+      final int    id;
+      final int    version;
+      final byte[] bytes;
+
+      Replica(int id, int version, byte[] bytes) {
+         this.id = id;
+         this.version = version;
+         this.bytes = bytes;
+      }
+   }
+
+   private final int                              capacity;
+   private final LinkedHashMap<Integer, Replica>  replicas     = new LinkedHashMap<>(16, 0.75f, true);
+   private       long                             size         = 0;
+   private       int                              nextVersion  = 1;
+   private final ByteArrayOutputStream            encodeBuffer = new ByteArrayOutputStream();
+   // Replicas are only exchanged between peers that sent each other a ProtocolHello,
+   // so both can read escaped strings.
+   private final ProtocolOutputStream             encodeStream = new ProtocolOutputStream(encodeBuffer);
+   private final ByteArrayOutputStream            deltaBuffer  = new ByteArrayOutputStream();
+   private final DataOutputStream                 deltaStream  = new DataOutputStream(deltaBuffer);
+
+   private final LongAdder hits       = new LongAdder();
+   private final LongAdder deltas     = new LongAdder();
+   private final LongAdder misses     = new LongAdder();
+   private final LongAdder drops      = new LongAdder();
+   private final LongAdder evictions  = new LongAdder();
+   private final LongAdder bytesSent  = new LongAdder();
+   private final LongAdder bytesSaved = new LongAdder();
+
+   /**
+    * @param capacity The number of bytes of replicas to hold. Both sides of a connection must use the same capacity.
+    */
+   public ObjectReplicaCache(int capacity)
+   {
+      this.capacity = capacity;
+      encodeStream.setEscapingStrings(true);
+   }
+
+   public int  getCapacity()     { return capacity;}
+   public long getHitCount()     { return hits.sum();}
+   public long getDeltaCount()   { return deltas.sum();}
+   public long getMissCount()    { return misses.sum();}
+   public long getDropCount()    { return drops.sum();}
+   public long getEvictionCount(){ return evictions.sum();}
+   public long getBytesSent()    { return bytesSent.sum();}
+   public long getBytesSaved()   { return bytesSaved.sum();}
+
+   /**
+    * @return the fraction of replicated objects that were sent (or received) as a reference
+    *         or a delta, rather than in full.
+    */
+   public double getHitRate()
+   {
+      long reused = hits.sum() + deltas.sum();
+      long total = reused + misses.sum();
+      return (total == 0) ? 0 : ((double) reused) / total;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ObjectReplicaCache: capacity = " + capacity + " bytes"
+             + ", hit rate = " + String.format("%.1f", getHitRate() * 100) + "%"
+             + " (" + getHitCount() + " same, " + getDeltaCount() + " deltas, " + getMissCount() + " full)"
+             + ", " + getDropCount() + " dropped, " + getEvictionCount() + " evicted"
+             + ", bytes sent = " + getBytesSent() + ", bytes saved = " + getBytesSaved();
+   }
+
+   // The LinkedHashMap iterates in access order, so the first entry is the least recently used one.
+   private void store(int id, byte[] bytes)
+   {
+      remove(id);
+      int entrySize = bytes.length + ENTRY_OVERHEAD;
+      if (entrySize > capacity) {
+         return;
+      }
+      while ((size + entrySize) > capacity) {
+         Iterator<Replica> eldest = replicas.values().iterator();
+         size -= eldest.next().bytes.length + ENTRY_OVERHEAD;
+         eldest.remove();
+         evictions.increment();
+      }
+      replicas.put(id, new Replica(id, nextVersion++, bytes));
+      size += entrySize;
+   }
+
+   private void remove(int id)
+   {
+      Replica replica = replicas.remove(id);
+      if (replica != null) {
+         size -= replica.bytes.length + ENTRY_OVERHEAD;
+      }
+   }
+
+   private Replica lookup(int id, int version) throws IOException
+   {
+      Replica replica = replicas.get(id);
+      if ((replica == null) || (replica.version != version)) {
+         throw new IOException("version " + version + " of replica " + id + " is not in the cache");
+      }
+      return replica;
+   }
+
+   /**
+    * Write the object, prefixed by a REPLICA_... tag. Only used in the COMPACT format.
+    */
+   void write(SerializableObject serObj, ProtocolOutputStream out) throws IOException
+   {
+      if (!(serObj instanceof IReplicatedObject)) {
+         out.writeVarInt(REPLICA_NONE);
+         SerializableFactory.writeObject(serObj, out);
+         return;
+      }
+      int id = ((IReplicatedObject) serObj).getReplicaId();
+      encodeBuffer.reset();
+      SerializableFactory.writeObject(serObj, encodeStream);
+      byte[] bytes = encodeBuffer.toByteArray();
+
+      Replica base = replicas.get(id);
+      int start = out.size();
+      if ((base != null) && Arrays.equals(base.bytes, bytes)) {
+         out.writeVarInt(REPLICA_SAME);
+         out.writeVarInt(id);
+         out.writeVarInt(base.version);
+         hits.increment();
+      }
+      else {
+         store(id, bytes);
+         deltaBuffer.reset();
+         if (base != null) {
+            writeDelta(base.bytes, bytes, deltaStream);
+         }
+         if ((base != null) && (deltaBuffer.size() < bytes.length)) {
+            out.writeVarInt(REPLICA_DELTA);
+            out.writeVarInt(id);
+            out.writeVarInt(base.version);
+            deltaBuffer.writeTo(out);
+            deltas.increment();
+         }
+         else {
+            out.writeVarInt(REPLICA_FULL);
+            out.writeVarInt(id);
+            out.writeVarInt(bytes.length);
+            out.write(bytes);
+            misses.increment();
+         }
+      }
+      countSent(bytes.length, out.size() - start);
+   }
+
+   /**
+    * Write an object that is being deleted, prefixed by a REPLICA_... tag. If the receiver
+    * holds a replica of it, only its ID is sent, and both sides drop the replica.
+    */
+   void writeDropped(SerializableObject serObj, ProtocolOutputStream out) throws IOException
+   {
+      Replica replica = (serObj instanceof IReplicatedObject) ? replicas.get(((IReplicatedObject) serObj).getReplicaId())
+                                                              : null;
+      if (replica == null) {
+         out.writeVarInt(REPLICA_NONE);
+         SerializableFactory.writeObject(serObj, out);
+         return;
+      }
+      int start = out.size();
+      out.writeVarInt(REPLICA_DROP);
+      out.writeVarInt(replica.id);
+      out.writeVarInt(replica.version);
+      remove(replica.id);
+      drops.increment();
+      countSent(replica.bytes.length, out.size() - start);
+   }
+
+   private void countSent(int fullSize, int sentSize)
+   {
+      bytesSent.add(sentSize);
+      // Without the cache, we would have sent the object with its type key.
+      bytesSaved.add(fullSize - sentSize);
+   }
+
+   /**
+    * Read an object written by write() or writeDropped(), updating this cache just as the
+    * sender updated its own.
+    */
+   SerializableObject read(ProtocolInputStream in) throws IOException
+   {
+      int tag = in.readVarInt();
+      if (tag == REPLICA_NONE) {
+         return SerializableFactory.readObject(in);
+      }
+      // Frames are decoded from memory, so available() is exact.
+      int remaining = in.available();
+      int id = in.readVarInt();
+      byte[] bytes;
+      switch (tag) {
+         case REPLICA_FULL:
+            int length = in.readVarInt();
+            if (length < 0) {
+               throw new IOException("invalid replica length " + length);
+            }
+            bytes = new byte[length];
+            in.readFully(bytes);
+            store(id, bytes);
+            misses.increment();
+            break;
+         case REPLICA_SAME:
+            bytes = lookup(id, in.readVarInt()).bytes;
+            hits.increment();
+            break;
+         case REPLICA_DELTA:
+            bytes = applyDelta(lookup(id, in.readVarInt()).bytes, in);
+            store(id, bytes);
+            deltas.increment();
+            break;
+         case REPLICA_DROP:
+            bytes = lookup(id, in.readVarInt()).bytes;
+            remove(id);
+            drops.increment();
+            break;
+         default:
+            throw new IOException("malformed replica tag " + tag);
+      }
+      // The tag (a single byte) was read before we checked what remained.
+      countSent(bytes.length, (remaining - in.available()) + 1);
+      ProtocolInputStream replicaIn = new ProtocolInputStream(new ByteArrayInputStream(bytes));
+      replicaIn.setAcceptingEscapedStrings(true);
+      return SerializableFactory.readObject(replicaIn);
+   }
+
+   // A delta is the length of the target, the lengths of the prefix and suffix it has in
+   // common with the base, and then the rest of the target as runs of bytes that are copied
+   // from the same position in the base followed by bytes that are sent as they are.
+   // Most changes overwrite fields in place, which leaves everything else at the same
+   // position, while a string that changes length shifts everything after it, which the
+   // common suffix takes care of.
+   static void writeDelta(byte[] base, byte[] target, DataOutputStream out) throws IOException
+   {
+      int common = Math.min(base.length, target.length);
+      int prefix = 0;
+      while ((prefix < common) && (base[prefix] == target[prefix])) {
+         prefix++;
+      }
+      int suffix = 0;
+      while ((suffix < (common - prefix)) && (base[base.length - 1 - suffix] == target[target.length - 1 - suffix])) {
+         suffix++;
+      }
+      ProtocolOutputStream.writeVarInt(out, target.length);
+      ProtocolOutputStream.writeVarInt(out, prefix);
+      ProtocolOutputStream.writeVarInt(out, suffix);
+      int end = target.length - suffix;
+      int pos = prefix;
+      while (pos < end) {
+         int copyStart = pos;
+         while ((pos < end) && (pos < base.length) && (base[pos] == target[pos])) {
+            pos++;
+         }
+         int literalStart = pos;
+         while ((pos < end) && !isCopyRun(base, target, pos, end)) {
+            pos++;
+         }
+         ProtocolOutputStream.writeVarInt(out, literalStart - copyStart);
+         ProtocolOutputStream.writeVarInt(out, pos - literalStart);
+         out.write(target, literalStart, pos - literalStart);
+      }
+   }
+
+   private static boolean isCopyRun(byte[] base, byte[] target, int pos, int end)
+   {
+      int runEnd = Math.min(pos + MIN_COPY_RUN, end);
+      if (runEnd > base.length) {
+         return false;
+      }
+      for (int i = pos; i < runEnd; i++) {
+         if (base[i] != target[i]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   static byte[] applyDelta(byte[] base, DataInputStream in) throws IOException
+   {
+      int length = ProtocolInputStream.readVarInt(in);
+      int prefix = ProtocolInputStream.readVarInt(in);
+      int suffix = ProtocolInputStream.readVarInt(in);
+      if ((length < 0) || (prefix < 0) || (suffix < 0) || (prefix > base.length) || (suffix > (base.length - prefix))
+          || (prefix > (length - suffix))) {
+         throw new IOException("malformed replica delta");
+      }
+      byte[] target = new byte[length];
+      System.arraycopy(base, 0, target, 0, prefix);
+      System.arraycopy(base, base.length - suffix, target, length - suffix, suffix);
+      int end = length - suffix;
+      int pos = prefix;
+      while (pos < end) {
+         int copy = ProtocolInputStream.readVarInt(in);
+         if ((copy < 0) || (copy > (end - pos)) || (copy > (base.length - pos))) {
+            throw new IOException("malformed replica delta");
+         }
+         System.arraycopy(base, pos, target, pos, copy);
+         pos += copy;
+         int literal = ProtocolInputStream.readVarInt(in);
+         if ((literal < 0) || (literal > (end - pos))) {
+            throw new IOException("malformed replica delta");
+         }
+         in.readFully(target, pos, literal);
+         pos += literal;
+      }
+      return target;
+   }
+}
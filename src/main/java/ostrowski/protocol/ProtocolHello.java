@@ -0,0 +1,97 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The first message each side of a connection sends, when it would like to use a wire format
+ * other than CLASSIC. It is always sent in the CLASSIC format. It lists the wire formats
+ * the sender can decode, and its SerializableFactory keys in the order of its type IDs, so
+ * that the receiver can decode the type IDs of the sender's COMPACT frames.
+ * A side only sends COMPACT frames once it has received a hello that includes COMPACT.
+ * If both hellos offer a replica cache, each side sends its replicated objects through an
+ * ObjectReplicaCache of the capacity that its peer offered. Each side may compress the frames it
+ * sends with the first of its own compression codecs that its peer can decompress.
+ * Above the WireFormat masks, the supported formats also carry feature bits: a side only
+ * escapes strings in the CLASSIC format once it has received a hello with FEATURE_ESCAPED_STRINGS.
+ */
+public class ProtocolHello extends SerializableObject
+{
+   // The sender decodes the escaped CLASSIC layout of long and non-Latin-1 strings (see SerializableObject).
+   public static final int FEATURE_ESCAPED_STRINGS = 1 << 16;
+
+   private int          supportedFormats     = WireFormat.CLASSIC.mask;
+   private List<String> typeKeys             = new ArrayList<>();
+   private int          replicaCacheCapacity = 0;
+   private List<String> compressionCodecs    = new ArrayList<>();
+
+   public ProtocolHello() {}
+
+   /**
+    * @param replicaCacheCapacity The number of bytes of replicated objects the sender is willing to hold
+    *                             for its peer, or 0 if it doesn't keep an ObjectReplicaCache.
+    * @param compressionCodecs    The names of the frame compression codecs the sender can decompress,
+    *                             in the order it prefers to compress with them.
+    */
+   public ProtocolHello(int supportedFormats, List<String> typeKeys, int replicaCacheCapacity, List<String> compressionCodecs) {
+      this.supportedFormats = supportedFormats;
+      this.typeKeys = typeKeys;
+      this.replicaCacheCapacity = replicaCacheCapacity;
+      this.compressionCodecs = compressionCodecs;
+   }
+
+   public boolean supports(WireFormat format) {
+      return (supportedFormats & format.mask) != 0;
+   }
+
+   public boolean supportsEscapedStrings() {
+      return (supportedFormats & FEATURE_ESCAPED_STRINGS) != 0;
+   }
+
+   public int getSupportedFormats() { return supportedFormats;}
+   public List<String> getTypeKeys(){ return typeKeys;}
+   public int getReplicaCacheCapacity(){ return replicaCacheCapacity;}
+   public List<String> getCompressionCodecs(){ return compressionCodecs;}
+
+   @Override
+   public void serializeToStream(DataOutputStream out)
+   {
+      try {
+         writeToStream(supportedFormats, out);
+         writeToStream(typeKeys, out);
+         writeToStream(replicaCacheCapacity, out);
+         writeToStream(compressionCodecs, out);
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+   }
+
+   @Override
+   public void serializeFromStream(DataInputStream in)
+   {
+      try {
+         supportedFormats = readInt(in);
+         typeKeys = new ArrayList<>();
+         readIntoListString(typeKeys, in);
+         replicaCacheCapacity = readInt(in);
+         compressionCodecs = new ArrayList<>();
+         readIntoListString(compressionCodecs, in);
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ProtocolHello: formats=" + supportedFormats + ", " + typeKeys.size() + " type keys, replica cache capacity=" + replicaCacheCapacity
+             + ", compression codecs=" + compressionCodecs;
+   }
+}
@@ -0,0 +1,147 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The receiving side of a ProtocolOutputStream: a DataInputStream that lets the static
+ * SerializableObject.read...() helpers decode the COMPACT format when it is turned on.
+ * It mirrors the sender's string dictionary and replica cache, and holds the type key table that the
+ * sender announced in its ProtocolHello.
+ */
+public class ProtocolInputStream extends DataInputStream
+{
+   private       boolean      compact       = false;
+   // Whether we have told the peer we decode escaped strings in the CLASSIC format. Until then,
+   // a string length of -1 is just a negative length, as it always was. Set before the first
+   // frame is read, possibly by another thread.
+   private volatile boolean   acceptingEscapedStrings = false;
+   private final List<String> dictionary    = new ArrayList<>();
+   private       String[]     peerTypeKeys  = new String[0];
+   // The registration of each of the peer's type IDs, resolved as they are first used.
+   private       SerializableFactory.Registration[] peerTypes = new SerializableFactory.Registration[0];
+   private       ObjectReplicaCache                 replicaCache = null;
+
+   public ProtocolInputStream(InputStream in)
+   {
+      super(in);
+   }
+
+   public boolean isCompact()                { return compact;}
+   public void    setCompact(boolean compact){ this.compact = compact;}
+
+   public boolean isAcceptingEscapedStrings()                { return acceptingEscapedStrings;}
+   public void    setAcceptingEscapedStrings(boolean accepting){ acceptingEscapedStrings = accepting;}
+
+   /**
+    * @param cache The cache that mirrors the one the peer sends replicated objects through,
+    *              or null if the peer doesn't use one.
+    */
+   public void               setReplicaCache(ObjectReplicaCache cache){ replicaCache = cache;}
+   public ObjectReplicaCache getReplicaCache()                        { return replicaCache;}
+
+   /**
+    * @param typeKeys The SerializableFactory keys of the peer, in the order of its type IDs
+    */
+   public void setPeerTypeKeys(List<String> typeKeys)
+   {
+      peerTypeKeys = typeKeys.toArray(new String[0]);
+      peerTypes = new SerializableFactory.Registration[peerTypeKeys.length];
+   }
+
+   /**
+    * @return the key the peer uses for the given type ID, or null if it didn't announce one.
+    */
+   public String getPeerTypeKey(int typeId)
+   {
+      return ((typeId >= 0) && (typeId < peerTypeKeys.length)) ? peerTypeKeys[typeId] : null;
+   }
+
+   SerializableFactory.Registration getPeerType(int typeId)
+   {
+      if ((typeId < 0) || (typeId >= peerTypes.length)) {
+         return null;
+      }
+      SerializableFactory.Registration registration = peerTypes[typeId];
+      if (registration == null) {
+         registration = SerializableFactory.getRegistration(peerTypeKeys[typeId]);
+         peerTypes[typeId] = registration;
+      }
+      return registration;
+   }
+
+   public int readVarInt() throws IOException
+   {
+      return readVarInt(this);
+   }
+
+   static int readVarInt(DataInputStream in) throws IOException
+   {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+         int b = in.readUnsignedByte();
+         value |= (b & 0x7F) << shift;
+         if ((b & 0x80) == 0) {
+            return value;
+         }
+      }
+      throw new IOException("malformed varint");
+   }
+
+   public long readVarLong() throws IOException
+   {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+         int b = readUnsignedByte();
+         value |= ((long) (b & 0x7F)) << shift;
+         if ((b & 0x80) == 0) {
+            return value;
+         }
+      }
+      throw new IOException("malformed varlong");
+   }
+
+   public int readSignedVarInt() throws IOException
+   {
+      int value = readVarInt();
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   public long readSignedVarLong() throws IOException
+   {
+      long value = readVarLong();
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   public String readCompactString() throws IOException
+   {
+      int header = readVarInt();
+      switch (header & 3) {
+         case ProtocolOutputStream.STRING_REFERENCE:
+            int index = header >>> 2;
+            if (index >= dictionary.size()) {
+               throw new IOException("unknown string dictionary entry " + index);
+            }
+            return dictionary.get(index);
+         case ProtocolOutputStream.STRING_LITERAL:
+         case ProtocolOutputStream.STRING_DEFINITION:
+            int length = header >>> 3;
+            boolean utf8 = (header & ProtocolOutputStream.STRING_UTF8) != 0;
+            String str = SerializableObject.readString(this, length, utf8 ? SerializableObject.escapedCharEncoding
+                                                                         : SerializableObject.charEncoding);
+            if ((header & 3) == ProtocolOutputStream.STRING_DEFINITION) {
+               dictionary.add(str);
+            }
+            return str;
+         default:
+            throw new IOException("malformed string header " + header);
+      }
+   }
+}
@@ -0,0 +1,150 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.protocol;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * A DataOutputStream that carries the state of one side of a connection, which lets the
+ * static SerializableObject.writeToStream() helpers write the COMPACT format when it is
+ * turned on. Everything written to a plain DataOutputStream, or to this stream while it is
+ * not compact, is in the CLASSIC format.
+ *
+ * In compact mode, strings are sent through a dictionary that the receiving
+ * ProtocolInputStream mirrors: the first time a short string is sent it is defined (given the
+ * next index), and after that only its index is sent. Both sides must see the same frames
+ * in the same order, so a stream must only be used for one connection, and only one
+ * frame may be encoded at a time.
+ * When the peer also keeps an ObjectReplicaCache, replicated objects are sent through it
+ * in the same way.
+ */
+public class ProtocolOutputStream extends DataOutputStream
+{
+   static final int MAX_DICTIONARY_ENTRIES       = 4096;
+   static final int MAX_DICTIONARY_STRING_LENGTH = 64;
+
+   // The low two bits of the header in front of each compact string. A reference is followed
+   // by the dictionary index; literals and definitions have a flag for their encoding in
+   // the next bit, followed by their length in bytes.
+   static final int STRING_LITERAL    = 0;
+   static final int STRING_REFERENCE  = 1;
+   static final int STRING_DEFINITION = 2;
+   static final int STRING_UTF8       = 4;
+
+   private       boolean                  compact    = false;
+   // Whether the peer has said it decodes escaped strings in the CLASSIC format.
+   private       boolean                  escapingStrings = false;
+   private       int                      announcedTypeCount = Integer.MAX_VALUE;
+   private final HashMap<String, Integer> dictionary = new HashMap<>();
+   // Set by the thread that reads the peer's hello, while another may be encoding a frame.
+   private volatile ObjectReplicaCache    replicaCache = null;
+
+   public ProtocolOutputStream(OutputStream out)
+   {
+      super(out);
+   }
+
+   public boolean isCompact()                { return compact;}
+   public void    setCompact(boolean compact){ this.compact = compact;}
+
+   public boolean isEscapingStrings()                        { return escapingStrings;}
+   public void    setEscapingStrings(boolean escapingStrings){ this.escapingStrings = escapingStrings;}
+
+   /**
+    * @param count The number of type IDs the peer knows about (from our ProtocolHello).
+    *              Objects of types registered later are sent with their full key.
+    */
+   public void setAnnouncedTypeCount(int count){ announcedTypeCount = count;}
+   public int  getAnnouncedTypeCount()         { return announcedTypeCount;}
+
+   /**
+    * @param cache The cache that mirrors the replicated objects the peer holds, or null
+    *              if the peer doesn't keep one. It is only used in the COMPACT format.
+    */
+   public void               setReplicaCache(ObjectReplicaCache cache){ replicaCache = cache;}
+   public ObjectReplicaCache getReplicaCache()                        { return replicaCache;}
+
+   public int getDictionarySize()
+   {
+      return dictionary.size();
+   }
+
+   /**
+    * Write an unsigned varint: 7 bits per byte, low bits first, with the top bit set on
+    * every byte but the last. Negative values take 5 bytes.
+    */
+   public void writeVarInt(int value) throws IOException
+   {
+      writeVarInt(this, value);
+   }
+
+   static void writeVarInt(DataOutputStream out, int value) throws IOException
+   {
+      while ((value & ~0x7F) != 0) {
+         out.write((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      out.write(value);
+   }
+
+   public void writeVarLong(long value) throws IOException
+   {
+      while ((value & ~0x7FL) != 0) {
+         write((int) ((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }
+      write((int) value);
+   }
+
+   /**
+    * Write a signed value as a zigzag varint, so that small negative numbers are small too.
+    */
+   public void writeSignedVarInt(int value) throws IOException
+   {
+      writeVarInt((value << 1) ^ (value >> 31));
+   }
+
+   public void writeSignedVarLong(long value) throws IOException
+   {
+      writeVarLong((value << 1) ^ (value >> 63));
+   }
+
+   /**
+    * Write a string in the compact format. null is written as the empty string.
+    */
+   public void writeCompactString(String data) throws IOException
+   {
+      if ((data == null) || (data.length() == 0)) {
+         writeVarInt(STRING_LITERAL);
+         return;
+      }
+      Integer index = dictionary.get(data);
+      if (index != null) {
+         writeVarInt((index << 2) | STRING_REFERENCE);
+         return;
+      }
+      // Latin-1 strings (by far the most common) are a straight copy of the String's own bytes.
+      int encoding = 0;
+      byte[] bytes;
+      if (SerializableObject.isLatin1(data)) {
+         bytes = data.getBytes(SerializableObject.charEncoding);
+      }
+      else {
+         bytes = data.getBytes(SerializableObject.escapedCharEncoding);
+         encoding = STRING_UTF8;
+      }
+      if ((data.length() <= MAX_DICTIONARY_STRING_LENGTH) && (dictionary.size() < MAX_DICTIONARY_ENTRIES)) {
+         dictionary.put(data, dictionary.size());
+         writeVarInt((bytes.length << 3) | encoding | STRING_DEFINITION);
+      }
+      else {
+         writeVarInt((bytes.length << 3) | encoding | STRING_LITERAL);
+      }
+      write(bytes);
+   }
+}
@@ -2,12 +2,16 @@ package ostrowski.protocol;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.IOException;
 
 public class RequestOption extends SerializableObject implements IRequestOption
 {
+   private static final SchemaCodec<RequestOption> CODEC = SchemaCodec.forClass(RequestOption.class);
+
+   @WireField(order = 1)
    private String  name;
+   @WireField(order = 2)
    private int     value;
+   @WireField(order = 3)
    private boolean enabled;
 
    public RequestOption() {}
@@ -35,24 +39,12 @@ public class RequestOption extends SerializableObject implements IRequestOption
 
    @Override
    public void serializeToStream(DataOutputStream out) {
-      try {
-         writeToStream(name, out);
-         writeToStream(value, out);
-         writeToStream(enabled, out);
-      } catch (IOException e) {
-         e.printStackTrace();
-      }
+      CODEC.writeUnchecked(this, out);
    }
 
    @Override
    public void serializeFromStream(DataInputStream in) {
-      try {
-         name = readString(in);
-         value = readInt(in);
-         enabled = readBoolean(in);
-      } catch (IOException e) {
-         e.printStackTrace();
-      }
+      CODEC.readUnchecked(this, in);
    }
 
    @Override
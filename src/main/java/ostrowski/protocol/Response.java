@@ -7,15 +7,19 @@ package ostrowski.protocol;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.IOException;
 
 import ostrowski.util.sockets.ISynchronizedRequest;
 import ostrowski.util.sockets.ISynchronizedResponse;
 
 public class Response extends SerializableObject implements ISynchronizedResponse
 {
-   private int    synchID    = -1;
+   private static final SchemaCodec<Response> CODEC = SchemaCodec.forClass(Response.class);
+
+   @WireField(order = 1)
+   private int    synchID   = -1;
+   @WireField(order = 2)
    private int    answerID  = -1;
+   @WireField(order = 3)
    private String answerStr = "";
 
    public Response() {}
@@ -40,25 +44,13 @@ public class Response extends SerializableObject implements ISynchronizedRespons
    @Override
    public void serializeFromStream(DataInputStream in)
    {
-      try {
-         synchID = readInt(in);
-         answerID = readInt(in);
-         answerStr = readString(in);
-      } catch (IOException e) {
-         e.printStackTrace();
-      }
+      CODEC.readUnchecked(this, in);
    }
 
    @Override
    public void serializeToStream(DataOutputStream out)
    {
-      try {
-         writeToStream(synchID, out);
-         writeToStream(answerID, out);
-         writeToStream(answerStr, out);
-      } catch (IOException e) {
-         e.printStackTrace();
-      }
+      CODEC.writeUnchecked(this, out);
    }
 
    //@Override from ISynchronizedResponse
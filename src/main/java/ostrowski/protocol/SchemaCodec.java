@@ -0,0 +1,272 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Serializes the @WireField fields of a SerializableObject class, in the same layout that
+ * hand-written serializeToStream/serializeFromStream methods calling the writeToStream/readXxx
+ * helpers of SerializableObject would use, so that (like those) it follows the COMPACT layout
+ * when the stream is COMPACT.
+ * The fields are inspected once per class; after that, every field is read and written by
+ * a codec specific to its type, through getter and setter MethodHandles adapted once to that
+ * type, so primitive fields are not boxed. The handles are held in instance fields of the
+ * codecs, not in static finals, so the JIT can't constant-fold them the way it could in a
+ * hand-written method; that overhead has not been measured.
+ * A class uses its codec by holding it in a static final field:
+ *
+ *    private static final SchemaCodec<ClientID> CODEC = SchemaCodec.forClass(ClientID.class);
+ *
+ *    public void serializeToStream(DataOutputStream out) {
+ *       CODEC.writeUnchecked(this, out);
+ *    }
+ *
+ * Classes whose layout the codec can't express (optional fields, lists, or replicated
+ * objects, as in SyncRequest and ObjectChanged) keep hand-written methods.
+ */
+public final class SchemaCodec<T extends SerializableObject>
+{
+   private static final ClassValue<SchemaCodec<?>> CODECS = new ClassValue<>() {
+      @Override
+      protected SchemaCodec<?> computeValue(Class<?> type) {
+         return new SchemaCodec<>(type.asSubclass(SerializableObject.class));
+      }
+   };
+
+   private final Class<T>     type;
+   private final FieldCodec[] fields;
+
+   @SuppressWarnings("unchecked")
+   public static <T extends SerializableObject> SchemaCodec<T> forClass(Class<T> type) {
+      return (SchemaCodec<T>) CODECS.get(type);
+   }
+
+   private SchemaCodec(Class<T> type) {
+      this.type = type;
+      List<Class<?>> hierarchy = new ArrayList<>();
+      for (Class<?> cls = type; (cls != null) && (cls != SerializableObject.class); cls = cls.getSuperclass()) {
+         hierarchy.add(0, cls);
+      }
+      List<FieldCodec> codecs = new ArrayList<>();
+      for (Class<?> cls : hierarchy) {
+         List<Field> wireFields = new ArrayList<>();
+         for (Field field : cls.getDeclaredFields()) {
+            if (field.isAnnotationPresent(WireField.class)) {
+               wireFields.add(field);
+            }
+         }
+         wireFields.sort(Comparator.comparingInt(field -> field.getAnnotation(WireField.class).order()));
+         for (int i = 1; i < wireFields.size(); i++) {
+            if (wireFields.get(i).getAnnotation(WireField.class).order() == wireFields.get(i - 1).getAnnotation(WireField.class).order()) {
+               throw new IllegalArgumentException(cls.getName() + " has two fields with the same order: "
+                                                  + wireFields.get(i - 1).getName() + " and " + wireFields.get(i).getName());
+            }
+         }
+         for (Field field : wireFields) {
+            codecs.add(createFieldCodec(cls, field));
+         }
+      }
+      fields = codecs.toArray(new FieldCodec[0]);
+   }
+
+   public Class<T> getType() {
+      return type;
+   }
+
+   public void write(T obj, DataOutputStream out) throws IOException {
+      try {
+         for (FieldCodec field : fields) {
+            field.write(obj, out);
+         }
+      } catch (IOException | RuntimeException | Error e) {
+         throw e;
+      } catch (Throwable e) {
+         throw new UndeclaredThrowableException(e);
+      }
+   }
+
+   public void read(T obj, DataInputStream in) throws IOException {
+      try {
+         for (FieldCodec field : fields) {
+            field.read(obj, in);
+         }
+      } catch (IOException | RuntimeException | Error e) {
+         throw e;
+      } catch (Throwable e) {
+         throw new UndeclaredThrowableException(e);
+      }
+   }
+
+   /**
+    * write(), for serializeToStream(), which can't throw an IOException: it is wrapped in an
+    * UncheckedIOException, which SerializableFactory.writeObject() unwraps again.
+    */
+   public void writeUnchecked(T obj, DataOutputStream out) {
+      try {
+         write(obj, out);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   /**
+    * read(), for serializeFromStream(), which can't throw an IOException: it is wrapped in an
+    * UncheckedIOException, which SerializableFactory.readObject() unwraps again.
+    */
+   public void readUnchecked(T obj, DataInputStream in) {
+      try {
+         read(obj, in);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "SchemaCodec for " + type.getName() + ": " + Arrays.toString(fields);
+   }
+
+   private static FieldCodec createFieldCodec(Class<?> cls, Field field) {
+      int modifiers = field.getModifiers();
+      if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers)) {
+         throw new IllegalArgumentException("@WireField " + cls.getName() + "." + field.getName() + " must not be static or final");
+      }
+      MethodHandle getter;
+      MethodHandle setter;
+      try {
+         MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(cls, MethodHandles.lookup());
+         getter = lookup.unreflectGetter(field);
+         setter = lookup.unreflectSetter(field);
+      } catch (IllegalAccessException e) {
+         throw new IllegalArgumentException("unable to access @WireField " + cls.getName() + "." + field.getName(), e);
+      }
+      String name = field.getName();
+      Class<?> fieldType = field.getType();
+      if (fieldType == int.class) {
+         return new FieldCodec(name, getter, setter, int.class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((int) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readInt(in));}
+         };
+      }
+      if (fieldType == String.class) {
+         return new FieldCodec(name, getter, setter, String.class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((String) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readString(in));}
+         };
+      }
+      if (fieldType == boolean.class) {
+         return new FieldCodec(name, getter, setter, boolean.class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((boolean) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readBoolean(in));}
+         };
+      }
+      if (fieldType == long.class) {
+         return new FieldCodec(name, getter, setter, long.class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((long) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readLong(in));}
+         };
+      }
+      if (fieldType == short.class) {
+         return new FieldCodec(name, getter, setter, short.class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((short) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readShort(in));}
+         };
+      }
+      if (fieldType == byte.class) {
+         return new FieldCodec(name, getter, setter, byte.class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((byte) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readByte(in));}
+         };
+      }
+      if (fieldType == double.class) {
+         return new FieldCodec(name, getter, setter, double.class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((double) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readDouble(in));}
+         };
+      }
+      if (fieldType == float.class) {
+         return new FieldCodec(name, getter, setter, float.class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((float) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readFloat(in));}
+         };
+      }
+      if (fieldType == byte[].class) {
+         return new FieldCodec(name, getter, setter, byte[].class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((byte[]) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readByteArray(in));}
+         };
+      }
+      if (fieldType == int[].class) {
+         return new FieldCodec(name, getter, setter, int[].class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((int[]) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readIntArray(in));}
+         };
+      }
+      if (fieldType == long[].class) {
+         return new FieldCodec(name, getter, setter, long[].class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((long[]) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readLongArray(in));}
+         };
+      }
+      if (fieldType == double[].class) {
+         return new FieldCodec(name, getter, setter, double[].class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((double[]) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readDoubleArray(in));}
+         };
+      }
+      if (fieldType == boolean[].class) {
+         return new FieldCodec(name, getter, setter, boolean[].class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableObject.writeToStream((boolean[]) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableObject.readBooleanArray(in));}
+         };
+      }
+      if (SerializableObject.class.isAssignableFrom(fieldType)) {
+         // Written with its type, so the field may hold any registered subclass of its declared type.
+         // The setter casts what is read to the declared type.
+         return new FieldCodec(name, getter, setter, SerializableObject.class) {
+            @Override void write(Object obj, DataOutputStream out) throws Throwable { SerializableFactory.writeObject((SerializableObject) get.invokeExact(obj), out);}
+            @Override void read(Object obj, DataInputStream in) throws Throwable    { set.invokeExact(obj, SerializableFactory.readObject(in));}
+         };
+      }
+      throw new IllegalArgumentException("@WireField " + cls.getName() + "." + name + " has an unsupported type: " + fieldType.getName());
+   }
+
+   private abstract static class FieldCodec
+   {
+      final String       name;
+      // Adapted to (Object)valueType and (Object,valueType)void, so that the
+      // invokeExact() calls of the subclasses match them exactly.
+      final MethodHandle get;
+      final MethodHandle set;
+
+      FieldCodec(String name, MethodHandle getter, MethodHandle setter, Class<?> valueType) {
+         this.name = name;
+         this.get = getter.asType(MethodType.methodType(valueType, Object.class));
+         this.set = setter.asType(MethodType.methodType(void.class, Object.class, valueType));
+      }
+
+      abstract void write(Object obj, DataOutputStream out) throws Throwable;
+      abstract void read(Object obj, DataInputStream in) throws Throwable;
+
+      @Override
+      public String toString() {
+         return name;
+      }
+   }
+}
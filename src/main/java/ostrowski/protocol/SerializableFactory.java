@@ -1,85 +1,282 @@
 package ostrowski.protocol;
 
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Type;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 import ostrowski.DebugBreak;
 
 public class SerializableFactory
 {
+   // Everything we know about a registered class. The supplier creates new instances
+   // without looking up or invoking a constructor reflectively.
+   static final class Registration
+   {
+      final String                                  key;
+      final Class<? extends SerializableObject>     cls;
+      final Supplier<? extends SerializableObject>  supplier;
+      final int                                     typeId;
+
+      Registration(String key, Class<? extends SerializableObject> cls, Supplier<? extends SerializableObject> supplier, int typeId) {
+         this.key = key;
+         this.cls = cls;
+         this.supplier = supplier;
+         this.typeId = typeId;
+      }
+   }
 
-   static final HashMap<String, Class<? extends SerializableObject>> CLASS_MAP = new HashMap<>();
-   static final HashMap<Class<? extends SerializableObject>, String> KEY_MAP   = new HashMap<>();
+   static final ConcurrentHashMap<String, Registration>   CLASS_MAP = new ConcurrentHashMap<>();
+   static final ConcurrentHashMap<Class<?>, Registration> KEY_MAP   = new ConcurrentHashMap<>();
+   // KEY_MAP holds the registered classes themselves. RESOLVED_MAP caches the registration
+   // that every class we have been asked to serialize resolves to, including subclasses of
+   // registered classes, so getKey() only walks the class hierarchy once per class.
+   // It is cleared whenever a class is registered, since that may change the answer.
+   static final ConcurrentHashMap<Class<?>, Registration> RESOLVED_MAP = new ConcurrentHashMap<>();
+   // The type ID of each key is its index in TYPE_KEYS (the order in which it was registered).
+   // In the COMPACT wire format, objects are prefixed by their type ID instead of their key.
+   static final List<String>                              TYPE_KEYS = new ArrayList<>();
 
    static {
-      registerClass("ClinID", ClientID.class);
-      registerClass("ObjChg", ObjectChanged.class);
-      registerClass("ObjDel", ObjectDelete.class);
-      registerClass("ObjInf", ObjectInfo.class);
-      registerClass("ReqOpt", RequestOption.class);
-      registerClass("Respns", Response.class);
+      registerClass("ClinID", ClientID.class,      ClientID::new);
+      registerClass("ObjChg", ObjectChanged.class, ObjectChanged::new);
+      registerClass("ObjDel", ObjectDelete.class,  ObjectDelete::new);
+      registerClass("ObjInf", ObjectInfo.class,    ObjectInfo::new);
+      registerClass("ReqOpt", RequestOption.class, RequestOption::new);
+      registerClass("Respns", Response.class,      Response::new);
+      registerClass("PrHelo", ProtocolHello.class, ProtocolHello::new);
    }
 
-   public static void registerClass(String key, Class<? extends SerializableObject> cls) {
+   /**
+    * Register a class under a key. The class must have a constructor without any parameters,
+    * which is bound once, here, so that creating instances later needs no reflection.
+    */
+   public static <T extends SerializableObject> void registerClass(String key, Class<T> cls) {
+      registerClass(key, cls, createSupplier(cls));
+   }
+
+   /**
+    * Register a class under a key, along with the supplier that creates its instances
+    * (usually a constructor reference, such as ClientID::new).
+    */
+   public static synchronized <T extends SerializableObject> void registerClass(String key, Class<T> cls, Supplier<? extends T> supplier) {
       boolean success = false;
       try {
+         if (supplier == null) {
+            throw new IllegalArgumentException("class " + cls + " has no constructor without parameters");
+         }
          // make sure we can instantiate a new instance without any parameters.
-         cls.getDeclaredConstructor().newInstance();
+         supplier.get();
          if (CLASS_MAP.get(key) != null) {
-            throw new IllegalArgumentException("Key " + key + " already used for " + CLASS_MAP.get(key));
+            throw new IllegalArgumentException("Key " + key + " already used for " + CLASS_MAP.get(key).cls);
          }
          if (KEY_MAP.get(cls) != null) {
-            throw new IllegalArgumentException("class " + cls + " already mapped with key " + KEY_MAP.get(cls));
+            throw new IllegalArgumentException("class " + cls + " already mapped with key " + KEY_MAP.get(cls).key);
          }
          success = true;
-      } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException | NoSuchMethodException | SecurityException e) {
+      } catch (RuntimeException e) {
          e.printStackTrace();
       }
       if (!success) {
          DebugBreak.debugBreak();
+         if (supplier == null) {
+            return;
+         }
+      }
+      int typeId = TYPE_KEYS.indexOf(key);
+      if (typeId < 0) {
+         typeId = TYPE_KEYS.size();
+         TYPE_KEYS.add(key);
       }
-      CLASS_MAP.put(key, cls);
-      KEY_MAP.put(cls, key);
+      Registration registration = new Registration(key, cls, supplier, typeId);
+      CLASS_MAP.put(key, registration);
+      KEY_MAP.put(cls, registration);
+      RESOLVED_MAP.clear();
+   }
+
+   // Binds the no-parameter constructor of cls to a Supplier. LambdaMetafactory gives us
+   // a supplier that calls the constructor directly, like a constructor reference, but it can
+   // only bind constructors that are accessible to this class; for any others, fall back to
+   // the reflective constructor.
+   @SuppressWarnings("unchecked")
+   private static <T extends SerializableObject> Supplier<T> createSupplier(Class<T> cls) {
+      try {
+         MethodHandles.Lookup lookup = MethodHandles.lookup();
+         MethodHandle constructor = lookup.findConstructor(cls, MethodType.methodType(void.class));
+         CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+                                                       MethodType.methodType(Supplier.class),
+                                                       MethodType.methodType(Object.class),
+                                                       constructor,
+                                                       MethodType.methodType(cls));
+         return (Supplier<T>) site.getTarget().invoke();
+      } catch (Throwable e) {
+         // fall through to reflection
+      }
+      try {
+         Constructor<T> constructor = cls.getDeclaredConstructor();
+         constructor.setAccessible(true);
+         return () -> {
+            try {
+               return constructor.newInstance();
+            } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+               throw new IllegalStateException("unable to create " + cls, e);
+            }
+         };
+      } catch (NoSuchMethodException | RuntimeException e) {
+         e.printStackTrace();
+         return null;
+      }
+   }
+
+   /**
+    * @return every registered key, in the order of their type IDs.
+    */
+   public static synchronized List<String> getTypeKeys() {
+      return new ArrayList<>(TYPE_KEYS);
+   }
+
+   static Registration getRegistration(String key) {
+      return CLASS_MAP.get(key);
+   }
+
+   static Registration resolve(Class<? extends SerializableObject> serClass) {
+      Registration registration = RESOLVED_MAP.get(serClass);
+      if (registration == null) {
+         Class<?> cls = serClass;
+         while ((registration = KEY_MAP.get(cls)) == null) {
+            cls = cls.getSuperclass();
+            if ((cls == null) || cls.equals(SerializableObject.class)) {
+               String message = "class " + serClass.getName() + " is not registered in factory map.";
+               DebugBreak.debugBreak(message);
+               throw new UnsupportedOperationException(message);
+            }
+         }
+         RESOLVED_MAP.put(serClass, registration);
+      }
+      return registration;
    }
 
    public static String getKey(SerializableObject serObj) {
-      Class<? extends SerializableObject> serClass = serObj.getClass();
-      String res = (KEY_MAP.get(serClass));
-      while (res == null) {
-         Type superClass = serClass.getGenericSuperclass();
-         if (!(superClass instanceof Class) || superClass.equals(SerializableObject.class)) {
-            String message = "class " + serClass.getName() + " is not registered in factory map.";
-            DebugBreak.debugBreak(message);
-            throw new UnsupportedOperationException(message);
+      return resolve(serObj.getClass()).key;
+   }
+
+   /**
+    * Write the object, prefixed by its type: its key in the CLASSIC wire format,
+    * or its type ID in the COMPACT format.
+    */
+   public static void writeObject(SerializableObject serObj, DataOutputStream out) throws IOException {
+      Registration registration = resolve(serObj.getClass());
+      if (SerializableObject.isCompact(out)) {
+         ProtocolOutputStream protocolOut = (ProtocolOutputStream) out;
+         if (registration.typeId < protocolOut.getAnnouncedTypeCount()) {
+            protocolOut.writeVarInt(registration.typeId + 1);
+         }
+         else {
+            // Type ID 0 means the key itself follows (for types registered after the peer got our hello).
+            protocolOut.writeVarInt(0);
+            protocolOut.writeCompactString(registration.key);
          }
-         serClass = (Class<? extends SerializableObject>) superClass;
-         res = (KEY_MAP.get(serClass));
       }
-      return res;
+      else {
+         SerializableObject.writeToStream(registration.key, out);
+      }
+      try {
+         serObj.serializeToStream(out);
+      } catch (UncheckedIOException e) {
+         // From a SchemaCodec, whose IOExceptions can't pass through serializeToStream() otherwise.
+         throw e.getCause();
+      }
    }
 
-   public static SerializableObject readObject(String eventID, DataInputStream inMsg)
-   {
-      Class<?> objClass = CLASS_MAP.get(eventID);
-      if (objClass != null)
-      {
-         try {
-            Object newObj = objClass.getDeclaredConstructor().newInstance();
-            if (newObj instanceof SerializableObject) {
-               SerializableObject newSerObj = (SerializableObject) newObj;
-               newSerObj.serializeFromStream(inMsg);
-               return newSerObj;
+   /**
+    * Read an object written by writeObject().
+    */
+   public static SerializableObject readObject(DataInputStream inMsg) throws IOException {
+      try {
+         if (SerializableObject.isCompact(inMsg)) {
+            ProtocolInputStream protocolIn = (ProtocolInputStream) inMsg;
+            int typeId = protocolIn.readVarInt();
+            Registration registration = (typeId == 0) ? getRegistration(protocolIn.readCompactString())
+                                                      : protocolIn.getPeerType(typeId - 1);
+            if (registration == null) {
+               throw new IOException("unknown type ID " + typeId);
             }
-            System.err.println("object " + newObj.getClass()
-                               + " is not derived from SerializableObject!");
-         } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException | NoSuchMethodException | SecurityException e) {
-            e.printStackTrace();
+            return readObject(registration, inMsg);
          }
+         return readObject(SerializableObject.readString(inMsg), inMsg);
+      } catch (UncheckedIOException e) {
+         // From a SchemaCodec, whose IOExceptions can't pass through serializeFromStream() otherwise.
+         throw e.getCause();
+      }
+   }
+
+   /**
+    * Write an object that the receiver may already hold a previous version of. If it is an
+    * IReplicatedObject, and the connection keeps an ObjectReplicaCache, only the changes
+    * since the version the receiver holds are sent. Otherwise this is just writeObject().
+    */
+   public static void writeReplicatedObject(SerializableObject serObj, DataOutputStream out) throws IOException {
+      ObjectReplicaCache replicaCache = SerializableObject.isCompact(out) ? ((ProtocolOutputStream) out).getReplicaCache() : null;
+      if (replicaCache == null) {
+         writeObject(serObj, out);
+      }
+      else {
+         replicaCache.write(serObj, (ProtocolOutputStream) out);
+      }
+   }
+
+   /**
+    * Write an object that is being deleted. If the receiver holds a replica of it (see
+    * writeReplicatedObject()), only its ID is sent, and the receiver rebuilds it from its
+    * replica before dropping the replica. Otherwise this is just writeObject().
+    */
+   public static void writeDroppedObject(SerializableObject serObj, DataOutputStream out) throws IOException {
+      ObjectReplicaCache replicaCache = SerializableObject.isCompact(out) ? ((ProtocolOutputStream) out).getReplicaCache() : null;
+      if (replicaCache == null) {
+         writeObject(serObj, out);
+      }
+      else {
+         replicaCache.writeDropped(serObj, (ProtocolOutputStream) out);
+      }
+   }
+
+   /**
+    * Read an object written by writeReplicatedObject() or writeDroppedObject().
+    */
+   public static SerializableObject readReplicatedObject(DataInputStream inMsg) throws IOException {
+      ObjectReplicaCache replicaCache = SerializableObject.isCompact(inMsg) ? ((ProtocolInputStream) inMsg).getReplicaCache() : null;
+      if (replicaCache == null) {
+         return readObject(inMsg);
+      }
+      return replicaCache.read((ProtocolInputStream) inMsg);
+   }
+
+   public static SerializableObject readObject(String eventID, DataInputStream inMsg)
+   {
+      Registration registration = CLASS_MAP.get(eventID);
+      if (registration != null) {
+         return readObject(registration, inMsg);
       }
       DebugBreak.debugBreak("unable to create " + eventID);
       return null;
    }
 
+   private static SerializableObject readObject(Registration registration, DataInputStream inMsg)
+   {
+      SerializableObject newSerObj = registration.supplier.get();
+      newSerObj.serializeFromStream(inMsg);
+      return newSerObj;
+   }
+
 }
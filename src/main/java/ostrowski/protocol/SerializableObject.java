@@ -3,14 +3,26 @@ package ostrowski.protocol;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 import ostrowski.DebugBreak;
+import ostrowski.util.BufferPool;
 
 public abstract class SerializableObject implements Cloneable
 {
-   static final String charEncoding = "ISO-8859-1"; // "ISO Latin Alphabet No. 1, a.k.a. ISO-LATIN-1";
+   static final Charset charEncoding = StandardCharsets.ISO_8859_1; // "ISO Latin Alphabet No. 1, a.k.a. ISO-LATIN-1";
+   // Strings that can't be sent in charEncoding (or are too long for a short length) are sent in UTF-8.
+   static final Charset escapedCharEncoding = StandardCharsets.UTF_8;
+   // In the CLASSIC format, once both sides have agreed on it through their ProtocolHellos,
+   // this length means a varint byte length and UTF-8 bytes follow.
+   static final short   ESCAPED_STRING_LENGTH = -1;
 
    public abstract void serializeToStream(DataOutputStream out);
 
@@ -52,7 +64,12 @@ public abstract class SerializableObject implements Cloneable
          writeToStream((Boolean) obj, out);
       }
       else if (obj instanceof SerializableObject) {
-         ((SerializableObject)obj).serializeToStream(out);
+         try {
+            ((SerializableObject)obj).serializeToStream(out);
+         } catch (UncheckedIOException e) {
+            // From a SchemaCodec, as in SerializableFactory.writeObject().
+            throw e.getCause();
+         }
       }
       else {
          String message = "object of type " +obj.getClass().getName() +" cant be serialized.";
@@ -61,67 +78,193 @@ public abstract class SerializableObject implements Cloneable
       }
    }
 
+   // The helpers below write the CLASSIC format, unless they are given a ProtocolOutputStream
+   // (or ProtocolInputStream) that is in COMPACT mode, in which case ints, shorts and longs are
+   // written as zigzag varints, sizes as varints, and strings through the connection's
+   // string dictionary. See WireFormat.
+   static boolean isCompact(DataOutputStream out) {
+      return (out instanceof ProtocolOutputStream) && ((ProtocolOutputStream) out).isCompact();
+   }
+
+   static boolean isCompact(DataInputStream in) {
+      return (in instanceof ProtocolInputStream) && ((ProtocolInputStream) in).isCompact();
+   }
+
+   // The size of a list (a short in the CLASSIC format).
+   public static void writeSize(int size, DataOutputStream out) throws IOException {
+      if (isCompact(out)) {
+         ((ProtocolOutputStream) out).writeVarInt(size);
+      }
+      else {
+         out.writeShort(size);
+      }
+   }
+
+   public static int readSize(DataInputStream in) throws IOException {
+      if (isCompact(in)) {
+         return ((ProtocolInputStream) in).readVarInt();
+      }
+      return in.readShort();
+   }
+
    // String serialization
+   // Strings of up to 32767 Latin-1 characters are written exactly as they always have been:
+   // a short length, and one byte per character. Anything else is truncated or mangled, unless
+   // the peer's ProtocolHello said it can decode escaped strings, in which case it is escaped
+   // as a length of -1, followed by a varint byte length and UTF-8 bytes.
+   static boolean isEscapingStrings(DataOutputStream out) {
+      return (out instanceof ProtocolOutputStream) && ((ProtocolOutputStream) out).isEscapingStrings();
+   }
+
+   static boolean isAcceptingEscapedStrings(DataInputStream in) {
+      return (in instanceof ProtocolInputStream) && ((ProtocolInputStream) in).isAcceptingEscapedStrings();
+   }
+
    public static void writeToStream(String data, DataOutputStream out) throws IOException {
-      if ((data == null) || (data.length() == 0)) {
+      if (isCompact(out)) {
+         ((ProtocolOutputStream) out).writeCompactString(data);
+      }
+      else if ((data == null) || (data.length() == 0)) {
          out.writeShort(0);
+      } else if ((data.length() <= Short.MAX_VALUE) && isLatin1(data)) {
+         // For a Latin-1 string, this is a straight copy of the String's own bytes.
+         byte[] strout = data.getBytes(charEncoding);
+         out.writeShort(strout.length);
+         out.write(strout);
+      } else if (isEscapingStrings(out)) {
+         byte[] strout = data.getBytes(escapedCharEncoding);
+         out.writeShort(ESCAPED_STRING_LENGTH);
+         ProtocolOutputStream.writeVarInt(out, strout.length);
+         out.write(strout);
       } else {
+         // The classic layout, for peers that don't know the escape.
          byte[] strout = data.getBytes(charEncoding);
          out.writeShort(strout.length);
          out.write(strout);
       }
    }
 
+   static boolean isLatin1(String data) {
+      for (int i = 0; i < data.length(); i++) {
+         if (data.charAt(i) > 0xFF) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   // Decode a string of the given number of bytes. The String makes its own
+   // copy of the bytes, so read them into a pooled scratch buffer. The length
+   // comes from the peer, so it is checked before we borrow a buffer that big.
+   static String readString(DataInputStream in, int length, Charset charset) throws IOException {
+      if (length == 0) {
+         return "";
+      }
+      checkRemaining(in, length);
+      BufferPool bufferPool = BufferPool.getDefault();
+      byte[] buf = bufferPool.acquire(length);
+      try {
+         in.readFully(buf, 0, length);
+         return new String(buf, 0, length, charset);
+      } finally {
+         bufferPool.release(buf);
+      }
+   }
+
    public static String readString(DataInputStream in) throws IOException {
+      if (isCompact(in)) {
+         return ((ProtocolInputStream) in).readCompactString();
+      }
       short strlen = in.readShort();
-      if (strlen == 0) {
-         return "";
+      if ((strlen == ESCAPED_STRING_LENGTH) && isAcceptingEscapedStrings(in)) {
+         int length = ProtocolInputStream.readVarInt(in);
+         if (length < 0) {
+            throw new IOException("invalid string length " + length);
+         }
+         return readString(in, length, escapedCharEncoding);
       }
-      if (strlen < 0) {
+      if (strlen <= 0) {
          return "";
       }
-      byte[] buf = new byte[strlen];
-      in.read(buf);
-      return new String(buf, charEncoding);
+      return readString(in, strlen, charEncoding);
    }
    // primitive serialization
 
    public static void writeToStream(double data,  DataOutputStream out) throws IOException { out.writeDouble(data);}
    public static void writeToStream(float data,   DataOutputStream out) throws IOException { out.writeFloat(data);}
-   public static void writeToStream(long data,    DataOutputStream out) throws IOException { out.writeLong(data);}
-   public static void writeToStream(int data,     DataOutputStream out) throws IOException { out.writeInt(data);}
-   public static void writeToStream(short data,   DataOutputStream out) throws IOException { out.writeShort(data);}
    public static void writeToStream(byte data,    DataOutputStream out) throws IOException { out.writeByte(data);}
    public static void writeToStream(boolean data, DataOutputStream out) throws IOException { out.writeBoolean(data);}
-   public static void writeToStream(Integer data, DataOutputStream out) throws IOException { out.writeInt(data);}
+   public static void writeToStream(Integer data, DataOutputStream out) throws IOException { writeToStream(data.intValue(), out);}
    public static void writeToStream(Byte data,    DataOutputStream out) throws IOException { out.writeByte(data);}
 
+   public static void writeToStream(long data, DataOutputStream out) throws IOException {
+      if (isCompact(out)) {
+         ((ProtocolOutputStream) out).writeSignedVarLong(data);
+      }
+      else {
+         out.writeLong(data);
+      }
+   }
+
+   public static void writeToStream(int data, DataOutputStream out) throws IOException {
+      if (isCompact(out)) {
+         ((ProtocolOutputStream) out).writeSignedVarInt(data);
+      }
+      else {
+         out.writeInt(data);
+      }
+   }
+
+   public static void writeToStream(short data, DataOutputStream out) throws IOException {
+      if (isCompact(out)) {
+         ((ProtocolOutputStream) out).writeSignedVarInt(data);
+      }
+      else {
+         out.writeShort(data);
+      }
+   }
+
    public static double  readDouble (DataInputStream in) throws IOException { return in.readDouble();}
    public static float   readFloat  (DataInputStream in) throws IOException { return in.readFloat();}
-   public static long    readLong   (DataInputStream in) throws IOException { return in.readLong();}
-   public static int     readInt    (DataInputStream in) throws IOException { return in.readInt();}
-   public static short   readShort  (DataInputStream in) throws IOException { return in.readShort();}
    public static byte    readByte   (DataInputStream in) throws IOException { return in.readByte();}
    public static boolean readBoolean(DataInputStream in) throws IOException { return in.readBoolean();}
-   public static Integer readInteger(DataInputStream in) throws IOException { return in.readInt();}
+   public static Integer readInteger(DataInputStream in) throws IOException { return readInt(in);}
+
+   public static long readLong(DataInputStream in) throws IOException {
+      if (isCompact(in)) {
+         return ((ProtocolInputStream) in).readSignedVarLong();
+      }
+      return in.readLong();
+   }
+
+   public static int readInt(DataInputStream in) throws IOException {
+      if (isCompact(in)) {
+         return ((ProtocolInputStream) in).readSignedVarInt();
+      }
+      return in.readInt();
+   }
+
+   public static short readShort(DataInputStream in) throws IOException {
+      if (isCompact(in)) {
+         return (short) ((ProtocolInputStream) in).readSignedVarInt();
+      }
+      return in.readShort();
+   }
 
    // List serialization (can contain Strings, Integer or SerializableObjects objects)
    public static void writeToStream(List<?> data, DataOutputStream out) throws IOException {
       if (data == null) {
-         out.writeShort(0);
+         writeSize(0, out);
       }
       else {
-         out.writeShort(data.size());
+         writeSize(data.size(), out);
          for (Object obj : data) {
             if (obj instanceof SerializableObject) {
-               SerializableObject object = (SerializableObject) obj;
-               String key = SerializableFactory.getKey(object);
                try {
-                  writeToStream(key, out);
+                  SerializableFactory.writeObject((SerializableObject) obj, out);
                } catch (IOException e) {
                   e.printStackTrace();
                }
-               object.serializeToStream(out);
             } else {
                writeObject(obj, out);
             }
@@ -131,7 +274,7 @@ public abstract class SerializableObject implements Cloneable
 
    public static int readIntoListString(List<String> data, DataInputStream in) throws IOException {
       data.clear();
-      int size = in.readShort();
+      int size = readSize(in);
       for (int i=0 ; i<size ; i++) {
          data.add(readString(in));
       }
@@ -140,56 +283,378 @@ public abstract class SerializableObject implements Cloneable
 
    public static int readIntoListInteger(List<Integer> data, DataInputStream in) throws IOException {
       data.clear();
-      int size = in.readShort();
+      int size = readSize(in);
       for (int i=0 ; i<size ; i++) {
-         data.add(in.readInt());
+         data.add(readInt(in));
       }
       return size;
    }
 
+   // Bytes and Booleans are boxed from their caches, so these only need to avoid
+   // reading one element at a time. Use readByteArray()/readBooleanArray() to avoid the list.
    public static int readIntoListByte(List<Byte> data, DataInputStream in) throws IOException {
       data.clear();
-      int size = in.readShort();
-      for (int i=0 ; i<size ; i++) {
-         data.add(in.readByte());
+      int size = readListBytes(in);
+      BufferPool bufferPool = BufferPool.getDefault();
+      byte[] buf = bufferPool.acquire(size);
+      try {
+         in.readFully(buf, 0, size);
+         for (int i=0 ; i<size ; i++) {
+            data.add(buf[i]);
+         }
+      } finally {
+         bufferPool.release(buf);
       }
       return size;
    }
 
+   // The size of a list of bytes or booleans, which are read into a buffer of that size.
+   private static int readListBytes(DataInputStream in) throws IOException {
+      int size = readSize(in);
+      if (size < 0) {
+         throw new IOException("invalid list size " + size);
+      }
+      checkRemaining(in, size);
+      return size;
+   }
+
    public static int readIntoListBoolean(List<Boolean> data, DataInputStream in) throws IOException {
       data.clear();
-      int size = in.readShort();
-      for (int i=0 ; i<size ; i++) {
-         data.add(in.readBoolean());
+      int size = readListBytes(in);
+      BufferPool bufferPool = BufferPool.getDefault();
+      byte[] buf = bufferPool.acquire(size);
+      try {
+         in.readFully(buf, 0, size);
+         for (int i=0 ; i<size ; i++) {
+            data.add(buf[i] != 0);
+         }
+      } finally {
+         bufferPool.release(buf);
       }
       return size;
    }
 
-   // int[] serialization
-   public static void writeToStream(byte[] data, DataOutputStream out) throws IOException {
-      out.writeInt(data.length);
-      for (byte datum : data) {
-         out.writeByte(datum);
+   // Primitive array serialization. Each array is written as its length (an int), followed
+   // by its elements. Fixed-width elements are converted through a pooled scratch buffer a
+   // chunk at a time, so the stream sees a few bulk writes (or readFully() calls) instead of
+   // one call per element. In the COMPACT format, the elements of int[] and long[] arrays are
+   // zigzag varints. boolean[] arrays are packed 8 to a byte in both formats.
+   // The read...Array(dest, in) overloads decode straight into the caller's array, which must
+   // be large enough, and return the number of elements read.
+   private static final int       ARRAY_CHUNK_SIZE = 8 * 1024;
+   private static final VarHandle INT_VIEW    = MethodHandles.byteArrayViewVarHandle(int[].class,    ByteOrder.BIG_ENDIAN);
+   private static final VarHandle LONG_VIEW   = MethodHandles.byteArrayViewVarHandle(long[].class,   ByteOrder.BIG_ENDIAN);
+   private static final VarHandle DOUBLE_VIEW = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.BIG_ENDIAN);
+
+   // minBitsPerElement is the least each element can take up in the stream, so that a length
+   // the rest of the frame can't hold is rejected before we allocate an array for it.
+   private static int readArrayLength(DataInputStream in, int capacity, int minBitsPerElement) throws IOException {
+      int size = readInt(in);
+      if ((size < 0) || (size > capacity)) {
+         throw new IOException("array of " + size + " elements does not fit in " + capacity);
+      }
+      checkRemaining(in, (((long) size * minBitsPerElement) + 7) / 8);
+      return size;
+   }
+
+   // Received frames are decoded from memory, so a ProtocolInputStream knows exactly how many
+   // bytes are left. Lengths sent by the peer are checked against that before anything is
+   // allocated for them, so that a small frame can't make us allocate a huge array.
+   static void checkRemaining(DataInputStream in, long bytes) throws IOException {
+      if (in instanceof ProtocolInputStream) {
+         int remaining = in.available();
+         if (bytes > remaining) {
+            throw new IOException("length needs " + bytes + " bytes, but only " + remaining + " are left in the frame");
+         }
       }
    }
 
+   public static void writeToStream(byte[] data, DataOutputStream out) throws IOException {
+      writeToStream(data.length, out);
+      out.write(data);
+   }
+
    public static byte[] readByteArray(DataInputStream in) throws IOException {
-      int size = in.readInt();
+      int size = readArrayLength(in, Integer.MAX_VALUE, Byte.SIZE);
       byte[] array = new byte[size];
-      for (int i=0 ; i<array.length ; i++) {
-         array[i] = in.readByte();
+      in.readFully(array);
+      return array;
+   }
+
+   public static int readByteArray(byte[] dest, DataInputStream in) throws IOException {
+      int size = readArrayLength(in, dest.length, Byte.SIZE);
+      in.readFully(dest, 0, size);
+      return size;
+   }
+
+   public static void writeToStream(int[] data, DataOutputStream out) throws IOException {
+      writeToStream(data.length, out);
+      BufferPool bufferPool = BufferPool.getDefault();
+      byte[] buf = bufferPool.acquire(ARRAY_CHUNK_SIZE);
+      try {
+         if (isCompact(out)) {
+            int pos = 0;
+            for (int datum : data) {
+               if (pos > (buf.length - 5)) {
+                  out.write(buf, 0, pos);
+                  pos = 0;
+               }
+               pos = putVarInt(buf, pos, (datum << 1) ^ (datum >> 31));
+            }
+            out.write(buf, 0, pos);
+            return;
+         }
+         int perChunk = buf.length / Integer.BYTES;
+         for (int start = 0; start < data.length; start += perChunk) {
+            int count = Math.min(perChunk, data.length - start);
+            for (int i = 0; i < count; i++) {
+               INT_VIEW.set(buf, i * Integer.BYTES, data[start + i]);
+            }
+            out.write(buf, 0, count * Integer.BYTES);
+         }
+      } finally {
+         bufferPool.release(buf);
       }
+   }
+
+   public static int[] readIntArray(DataInputStream in) throws IOException {
+      int size = readArrayLength(in, Integer.MAX_VALUE, minBitsPerElement(in, Integer.SIZE));
+      int[] array = new int[size];
+      readIntElements(array, size, in);
       return array;
    }
 
+   public static int readIntArray(int[] dest, DataInputStream in) throws IOException {
+      int size = readArrayLength(in, dest.length, minBitsPerElement(in, Integer.SIZE));
+      readIntElements(dest, size, in);
+      return size;
+   }
+
+   // The elements of int[] and long[] arrays are varints of at least one byte each in the COMPACT format.
+   private static int minBitsPerElement(DataInputStream in, int classicBits) {
+      return isCompact(in) ? Byte.SIZE : classicBits;
+   }
+
+   private static void readIntElements(int[] dest, int size, DataInputStream in) throws IOException {
+      if (isCompact(in)) {
+         ProtocolInputStream protocolIn = (ProtocolInputStream) in;
+         for (int i = 0; i < size; i++) {
+            dest[i] = protocolIn.readSignedVarInt();
+         }
+         return;
+      }
+      BufferPool bufferPool = BufferPool.getDefault();
+      byte[] buf = bufferPool.acquire(ARRAY_CHUNK_SIZE);
+      try {
+         int perChunk = buf.length / Integer.BYTES;
+         for (int start = 0; start < size; start += perChunk) {
+            int count = Math.min(perChunk, size - start);
+            in.readFully(buf, 0, count * Integer.BYTES);
+            for (int i = 0; i < count; i++) {
+               dest[start + i] = (int) INT_VIEW.get(buf, i * Integer.BYTES);
+            }
+         }
+      } finally {
+         bufferPool.release(buf);
+      }
+   }
+
+   public static void writeToStream(long[] data, DataOutputStream out) throws IOException {
+      writeToStream(data.length, out);
+      BufferPool bufferPool = BufferPool.getDefault();
+      byte[] buf = bufferPool.acquire(ARRAY_CHUNK_SIZE);
+      try {
+         if (isCompact(out)) {
+            int pos = 0;
+            for (long datum : data) {
+               if (pos > (buf.length - 10)) {
+                  out.write(buf, 0, pos);
+                  pos = 0;
+               }
+               pos = putVarLong(buf, pos, (datum << 1) ^ (datum >> 63));
+            }
+            out.write(buf, 0, pos);
+            return;
+         }
+         int perChunk = buf.length / Long.BYTES;
+         for (int start = 0; start < data.length; start += perChunk) {
+            int count = Math.min(perChunk, data.length - start);
+            for (int i = 0; i < count; i++) {
+               LONG_VIEW.set(buf, i * Long.BYTES, data[start + i]);
+            }
+            out.write(buf, 0, count * Long.BYTES);
+         }
+      } finally {
+         bufferPool.release(buf);
+      }
+   }
+
+   public static long[] readLongArray(DataInputStream in) throws IOException {
+      int size = readArrayLength(in, Integer.MAX_VALUE, minBitsPerElement(in, Long.SIZE));
+      long[] array = new long[size];
+      readLongElements(array, size, in);
+      return array;
+   }
+
+   public static int readLongArray(long[] dest, DataInputStream in) throws IOException {
+      int size = readArrayLength(in, dest.length, minBitsPerElement(in, Long.SIZE));
+      readLongElements(dest, size, in);
+      return size;
+   }
+
+   private static void readLongElements(long[] dest, int size, DataInputStream in) throws IOException {
+      if (isCompact(in)) {
+         ProtocolInputStream protocolIn = (ProtocolInputStream) in;
+         for (int i = 0; i < size; i++) {
+            dest[i] = protocolIn.readSignedVarLong();
+         }
+         return;
+      }
+      BufferPool bufferPool = BufferPool.getDefault();
+      byte[] buf = bufferPool.acquire(ARRAY_CHUNK_SIZE);
+      try {
+         int perChunk = buf.length / Long.BYTES;
+         for (int start = 0; start < size; start += perChunk) {
+            int count = Math.min(perChunk, size - start);
+            in.readFully(buf, 0, count * Long.BYTES);
+            for (int i = 0; i < count; i++) {
+               dest[start + i] = (long) LONG_VIEW.get(buf, i * Long.BYTES);
+            }
+         }
+      } finally {
+         bufferPool.release(buf);
+      }
+   }
+
+   public static void writeToStream(double[] data, DataOutputStream out) throws IOException {
+      writeToStream(data.length, out);
+      BufferPool bufferPool = BufferPool.getDefault();
+      byte[] buf = bufferPool.acquire(ARRAY_CHUNK_SIZE);
+      try {
+         int perChunk = buf.length / Double.BYTES;
+         for (int start = 0; start < data.length; start += perChunk) {
+            int count = Math.min(perChunk, data.length - start);
+            for (int i = 0; i < count; i++) {
+               DOUBLE_VIEW.set(buf, i * Double.BYTES, data[start + i]);
+            }
+            out.write(buf, 0, count * Double.BYTES);
+         }
+      } finally {
+         bufferPool.release(buf);
+      }
+   }
+
+   public static double[] readDoubleArray(DataInputStream in) throws IOException {
+      int size = readArrayLength(in, Integer.MAX_VALUE, Double.SIZE);
+      double[] array = new double[size];
+      readDoubleElements(array, size, in);
+      return array;
+   }
+
+   public static int readDoubleArray(double[] dest, DataInputStream in) throws IOException {
+      int size = readArrayLength(in, dest.length, Double.SIZE);
+      readDoubleElements(dest, size, in);
+      return size;
+   }
+
+   private static void readDoubleElements(double[] dest, int size, DataInputStream in) throws IOException {
+      BufferPool bufferPool = BufferPool.getDefault();
+      byte[] buf = bufferPool.acquire(ARRAY_CHUNK_SIZE);
+      try {
+         int perChunk = buf.length / Double.BYTES;
+         for (int start = 0; start < size; start += perChunk) {
+            int count = Math.min(perChunk, size - start);
+            in.readFully(buf, 0, count * Double.BYTES);
+            for (int i = 0; i < count; i++) {
+               dest[start + i] = (double) DOUBLE_VIEW.get(buf, i * Double.BYTES);
+            }
+         }
+      } finally {
+         bufferPool.release(buf);
+      }
+   }
+
+   public static void writeToStream(boolean[] data, DataOutputStream out) throws IOException {
+      writeToStream(data.length, out);
+      BufferPool bufferPool = BufferPool.getDefault();
+      byte[] buf = bufferPool.acquire(ARRAY_CHUNK_SIZE);
+      try {
+         int perChunk = buf.length * 8;
+         for (int start = 0; start < data.length; start += perChunk) {
+            int count = Math.min(perChunk, data.length - start);
+            int bytes = (count + 7) / 8;
+            for (int b = 0; b < bytes; b++) {
+               int bits = 0;
+               int base = start + (b * 8);
+               int end = Math.min(8, count - (b * 8));
+               for (int i = 0; i < end; i++) {
+                  if (data[base + i]) {
+                     bits |= 1 << i;
+                  }
+               }
+               buf[b] = (byte) bits;
+            }
+            out.write(buf, 0, bytes);
+         }
+      } finally {
+         bufferPool.release(buf);
+      }
+   }
+
+   public static boolean[] readBooleanArray(DataInputStream in) throws IOException {
+      int size = readArrayLength(in, Integer.MAX_VALUE, 1);
+      boolean[] array = new boolean[size];
+      readBooleanElements(array, size, in);
+      return array;
+   }
+
+   public static int readBooleanArray(boolean[] dest, DataInputStream in) throws IOException {
+      int size = readArrayLength(in, dest.length, 1);
+      readBooleanElements(dest, size, in);
+      return size;
+   }
+
+   private static void readBooleanElements(boolean[] dest, int size, DataInputStream in) throws IOException {
+      BufferPool bufferPool = BufferPool.getDefault();
+      byte[] buf = bufferPool.acquire(ARRAY_CHUNK_SIZE);
+      try {
+         int perChunk = buf.length * 8;
+         for (int start = 0; start < size; start += perChunk) {
+            int count = Math.min(perChunk, size - start);
+            in.readFully(buf, 0, (count + 7) / 8);
+            for (int i = 0; i < count; i++) {
+               dest[start + i] = (buf[i >>> 3] & (1 << (i & 7))) != 0;
+            }
+         }
+      } finally {
+         bufferPool.release(buf);
+      }
+   }
+
+   private static int putVarInt(byte[] buf, int pos, int value) {
+      while ((value & ~0x7F) != 0) {
+         buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      buf[pos++] = (byte) value;
+      return pos;
+   }
+
+   private static int putVarLong(byte[] buf, int pos, long value) {
+      while ((value & ~0x7FL) != 0) {
+         buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      buf[pos++] = (byte) value;
+      return pos;
+   }
+
    public static List<SerializableObject> readIntoListSerializableObject(DataInputStream in) throws IOException {
       List<SerializableObject> data = new ArrayList<>();
-      int size = in.readShort();
+      int size = readSize(in);
       for (int i=0 ; i<size ; i++) {
          try {
-            String key = readString(in);
-            SerializableObject object = SerializableFactory.readObject(key, in);
-            data.add(object);
+            data.add(SerializableFactory.readObject(in));
          } catch (IOException ex) {
             ex.printStackTrace();
          }
@@ -12,6 +12,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.KeyEvent;
@@ -24,8 +29,8 @@ import ostrowski.util.sockets.ISynchronizedResponse;
 
 public abstract class SyncRequest extends SerializableObject implements ISynchronizedRequest, ISynchronizedResponse
 {
-   protected static int                  nextMessageKey = 1;
-   protected        int                  syncKey        = nextMessageKey++;
+   private static final AtomicInteger    NEXT_MESSAGE_KEY = new AtomicInteger(1);
+   protected        int                  syncKey        = nextMessageKey();
    protected        String               message        = "";
    protected        IRequestOption       answer         = null;
    protected        List<IRequestOption> options        = new ArrayList<>();
@@ -35,6 +40,16 @@ public abstract class SyncRequest extends SerializableObject implements ISynchro
 
    public final Semaphore lockThis = new Semaphore("SyncRequest", Semaphore.CLASS_SYNCHREQUEST);
 
+   // Used by waitForAnswer(), so that threads waiting for an answer (including virtual threads)
+   // don't have to wait on this object's monitor.
+   private final ReentrantLock answerLock    = new ReentrantLock();
+   private final Condition     answerArrived = answerLock.newCondition();
+
+   // Set by SocketConnector.sendRequest(), and completed when the answer arrives.
+   private volatile CompletableFuture<SyncRequest> responseFuture = null;
+   // Set by SocketConnector when it sends the request, so it can measure how long the answer took.
+   private long sentNanos = 0;
+
    public static final int OPT_CANCEL_ACTION = -2;
    public static final int ACTION_NONE       = 0;
 
@@ -42,6 +57,10 @@ public abstract class SyncRequest extends SerializableObject implements ISynchro
        init();
    }
 
+   protected static int nextMessageKey() {
+      return NEXT_MESSAGE_KEY.getAndIncrement();
+   }
+
    public void init()
    {
    }
@@ -53,7 +72,11 @@ public abstract class SyncRequest extends SerializableObject implements ISynchro
    public boolean isCancel() {  return (answer != null) && (answer.getIntValue() == OPT_CANCEL_ACTION); }
 
    public void setResultsQueue(List<SyncRequest> resultsQueue) { this.resultsQueue = resultsQueue;}
+   public CompletableFuture<SyncRequest> getResponseFuture() { return responseFuture;}
+   public void setResponseFuture(CompletableFuture<SyncRequest> future) { responseFuture = future;}
    public List<SyncRequest> getResultsQueue() { return resultsQueue;}
+   public long getSentNanos()                { return sentNanos;}
+   public void setSentNanos(long nanos)      { sentNanos = nanos;}
    public void setSyncKey(int messageKey)    { syncKey = messageKey; }
    //@Override from ISynchronizedRequest
    @Override
@@ -242,8 +265,7 @@ public abstract class SyncRequest extends SerializableObject implements ISynchro
          writeToStream(defaultID, out);
          writeToStream((answer instanceof SerializableObject), out);
          if (answer != null) {
-            writeToStream(SerializableFactory.getKey((SerializableObject) answer), out);
-            answer.serializeToStream(out);
+            SerializableFactory.writeObject((SerializableObject) answer, out);
          }
       } catch (IOException e) {
          e.printStackTrace();
@@ -267,7 +289,7 @@ public abstract class SyncRequest extends SerializableObject implements ISynchro
          boolean hasAnswer = readBoolean(in);
          answer = null;
          if (hasAnswer) {
-            answer = (IRequestOption) SerializableFactory.readObject(readString(in), in);
+            answer = (IRequestOption) SerializableFactory.readObject(in);
          }
       } catch (IOException e) {
          e.printStackTrace();
@@ -325,11 +347,7 @@ public abstract class SyncRequest extends SerializableObject implements ISynchro
          answer = new RequestOption(resp.getAnswerStr(), resp.getFullAnswerID(), true);
       }
       // Notify any thread waiting for this response.
-      synchronized (this) {
-         try (SemaphoreAutoLocker sal = new SemaphoreAutoLocker(this.lockThis)) {
-            notifyAll();
-         }
-      }
+      notifyAnswerWaiters();
       // If a results queue has been set up, then put this object into it
       // This method is used when one thread is waiting on multiple responses
       // so the waiting thread waits on the queue instead.
@@ -342,6 +360,51 @@ public abstract class SyncRequest extends SerializableObject implements ISynchro
       }
    }
 
+   /**
+    * Blocks the calling thread until this request has been answered, or until the timeout expires.
+    * Unlike wait()ing on this object, this does not pin the carrier when called from a virtual thread.
+    * @param timeoutMillis The maximum time to wait, in milliseconds
+    * @return true if this request has been answered
+    */
+   public boolean waitForAnswer(long timeoutMillis) throws InterruptedException
+   {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      answerLock.lock();
+      try {
+         while (!isAnswered()) {
+            if (nanos <= 0) {
+               return false;
+            }
+            nanos = answerArrived.awaitNanos(nanos);
+         }
+         return true;
+      } finally {
+         answerLock.unlock();
+      }
+   }
+
+   /**
+    * Completes the response future (if this request was sent with SocketConnector.sendRequest()),
+    * and wakes up every thread waiting for the answer to this request, both those
+    * in waitForAnswer(), and those waiting on this object's monitor.
+    */
+   public void notifyAnswerWaiters()
+   {
+      CompletableFuture<SyncRequest> future = responseFuture;
+      if (future != null) {
+         future.complete(this);
+      }
+      answerLock.lock();
+      try {
+         answerArrived.signalAll();
+      } finally {
+         answerLock.unlock();
+      }
+      synchronized (this) {
+         notifyAll();
+      }
+   }
+
    public int getAnswerIndex()
    {
       for (int index = 0; index < options.size() ; index++) {
@@ -0,0 +1,24 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.protocol;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field that a SchemaCodec serializes. Fields are written in ascending 'order'
+ * (the fields of a superclass before those of its subclasses), so the order of each field
+ * is part of the wire layout, and must never be changed once a class has shipped.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface WireField
+{
+   int order();
+}
@@ -0,0 +1,25 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.protocol;
+
+/**
+ * The encodings a SerializableObject can be written in.
+ * CLASSIC is the original format: fixed-size ints, short lengths, and type keys and
+ * strings written out in full. Every peer understands it.
+ * COMPACT writes ints, shorts, longs and lengths as (zigzag) varints, type keys as small
+ * integer IDs exchanged in a ProtocolHello, and repeated strings as references into a
+ * per-connection dictionary. It is only used once both peers have said they support it.
+ */
+public enum WireFormat {
+   CLASSIC(1),
+   COMPACT(2);
+
+   public final int mask;
+
+   WireFormat(int mask)
+   {
+      this.mask = mask;
+   }
+}
@@ -0,0 +1,130 @@
+package ostrowski.util;
+
+// Java Imports
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of byte arrays used for serialization and socket buffers.
+ * Buffers come in power-of-two size classes, from minBufferSize to maxBufferSize.
+ * Released buffers go into a lock-free queue per size class, and the total size of
+ * every buffer held by the pool is capped at maxPooledBytes. There are no per-thread
+ * caches: buffers are usually acquired on one thread (a reader) and released on another
+ * (a decoder), and a cache per thread would hold memory outside the cap for as long as
+ * the thread lives. Requests larger than maxBufferSize are never pooled.
+ *
+ * The hit, miss and overflow counters can be used to size the pool in production:
+ *  - a hit is an acquire() that was served from the pool
+ *  - a miss is an acquire() that had to allocate a new buffer
+ *  - an overflow is a release() whose buffer was dropped, because the pool was full,
+ *    or because the buffer was not one of our size classes.
+ */
+public class BufferPool
+{
+   private static final BufferPool DEFAULT = new BufferPool(256, 1024 * 1024, 64L * 1024 * 1024);
+
+   private final int                             minShift;
+   private final int                             maxShift;
+   private final long                            maxPooledBytes;
+   private final ConcurrentLinkedQueue<byte[]>[] sharedBuffers;
+   private final AtomicLong                      pooledBytes = new AtomicLong();
+
+   private final LongAdder hits      = new LongAdder();
+   private final LongAdder misses    = new LongAdder();
+   private final LongAdder overflows = new LongAdder();
+
+   /**
+    * @param minBufferSize   The smallest size class (rounded up to a power of two)
+    * @param maxBufferSize   The largest size class (rounded up to a power of two)
+    * @param maxPooledBytes  The maximum number of bytes held in the pool
+    */
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   public BufferPool(int minBufferSize, int maxBufferSize, long maxPooledBytes)
+   {
+      minShift = shiftFor(minBufferSize);
+      maxShift = Math.max(minShift, shiftFor(maxBufferSize));
+      this.maxPooledBytes = maxPooledBytes;
+      sharedBuffers = new ConcurrentLinkedQueue[(maxShift - minShift) + 1];
+      for (int i = 0; i < sharedBuffers.length; i++) {
+         sharedBuffers[i] = new ConcurrentLinkedQueue<>();
+      }
+   }
+
+   public static BufferPool getDefault()
+   {
+      return DEFAULT;
+   }
+
+   private static int shiftFor(int size)
+   {
+      return (size <= 1) ? 0 : (32 - Integer.numberOfLeadingZeros(size - 1));
+   }
+
+   /**
+    * @return a buffer that is at least minSize bytes long. It may be longer.
+    */
+   public byte[] acquire(int minSize)
+   {
+      int sizeClass = shiftFor(minSize) - minShift;
+      if (sizeClass < 0) {
+         sizeClass = 0;
+      }
+      if (sizeClass >= sharedBuffers.length) {
+         misses.increment();
+         return new byte[minSize];
+      }
+      byte[] buf = sharedBuffers[sizeClass].poll();
+      if (buf != null) {
+         pooledBytes.addAndGet(-buf.length);
+         hits.increment();
+         return buf;
+      }
+      misses.increment();
+      return new byte[1 << (sizeClass + minShift)];
+   }
+
+   /**
+    * Return a buffer to the pool. The caller must not use the buffer after this call.
+    */
+   public void release(byte[] buf)
+   {
+      if (buf == null) {
+         return;
+      }
+      int length = buf.length;
+      int sizeClass = shiftFor(length) - minShift;
+      if ((sizeClass < 0) || (sizeClass >= sharedBuffers.length) || (length != (1 << (sizeClass + minShift)))) {
+         overflows.increment();
+         return;
+      }
+      if (pooledBytes.addAndGet(length) > maxPooledBytes) {
+         pooledBytes.addAndGet(-length);
+         overflows.increment();
+         return;
+      }
+      sharedBuffers[sizeClass].offer(buf);
+   }
+
+   public long getHitCount()      { return hits.sum();}
+   public long getMissCount()     { return misses.sum();}
+   public long getOverflowCount() { return overflows.sum();}
+   public long getPooledBytes()   { return pooledBytes.get();}
+   public long getMaxPooledBytes(){ return maxPooledBytes;}
+
+   public void resetCounters()
+   {
+      hits.reset();
+      misses.reset();
+      overflows.reset();
+   }
+
+   @Override
+   public String toString()
+   {
+      return "BufferPool: sizes " + (1 << minShift) + "-" + (1 << maxShift)
+             + ", pooled bytes = " + getPooledBytes() + "/" + maxPooledBytes
+             + ", hits = " + getHitCount() + ", misses = " + getMissCount()
+             + ", overflows = " + getOverflowCount();
+   }
+}
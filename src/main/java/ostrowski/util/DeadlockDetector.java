@@ -0,0 +1,441 @@
+package ostrowski.util;
+
+// Java Imports
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Finds real deadlocks among threads waiting for Semaphores, where the lock order rules of
+ * Semaphore can only warn about possible ones. While a detector is running, each thread that
+ * has to wait in Semaphore.lock() adds an edge to a wait-for graph, from itself to the thread
+ * that owns the Semaphore, and removes it once it has the lock. Optionally, threads blocked on
+ * monitors and java.util.concurrent locks are followed too, using the ThreadMXBean.
+ *
+ * Since a thread waits for only one lock at a time, each thread has at most one edge out of it,
+ * so finding a cycle through a wait is just following the owners from it. A deadlock never goes
+ * away by itself, and the edge that closed the cycle was the last one added, so each wait only
+ * needs to be followed once it has lasted a while, and then again at longer and longer intervals
+ * (in case it was followed while an owner was changing hands). Each scan only looks at the
+ * threads that are waiting, and only follows the waits that are due, so the cost of detection
+ * doesn't grow with the number of threads that are running, or with how long they have waited.
+ *
+ * Each deadlock found is reported once, with every thread in the cycle, the lock it waits for,
+ * its stack, and (if setDiagnostics() was called) its Diagnostics associations, to the console and
+ * to logs/Deadlocks.log, like the other Semaphore reports. The BreakPolicy then decides whether to
+ * abort the wait of one of the threads, whose lock() throws a DeadlockException.
+ * Only threads that started waiting after the detector started are seen.
+ */
+public class DeadlockDetector
+{
+   public enum BreakPolicy {
+      // Only report the deadlock.
+      REPORT_ONLY,
+      // Abort the wait that started last, which is the one that closed the cycle.
+      ABORT_NEWEST_WAITER,
+      // Abort the wait that started first.
+      ABORT_OLDEST_WAITER,
+      // Abort the wait for the Semaphore of the highest order. Some thread in the cycle must be
+      // waiting for a Semaphore of a higher order than one it holds, and this is most likely it.
+      ABORT_HIGHEST_ORDER_WAITER
+   }
+
+   // The most times the interval between checks of the same wait is doubled.
+   private static final int MAX_BACKOFF_SHIFT = 6;
+
+   private static volatile DeadlockDetector active = null;
+
+   private final long                          intervalNanos;
+   private final ConcurrentHashMap<Long, Wait> waits            = new ConcurrentHashMap<>();
+   private final Thread                        detectorThread;
+   private final ThreadMXBean                  threadMXBean     = ManagementFactory.getThreadMXBean();
+   private volatile BreakPolicy                breakPolicy;
+   private volatile boolean                    includeMonitors  = false;
+   private volatile Diagnostics                diags            = null;
+   private volatile boolean                    running          = true;
+   private volatile long                       deadlocksFound   = 0;
+
+   /**
+    * One thread waiting in Semaphore.lock().
+    */
+   static final class Wait
+   {
+      final Thread    thread;
+      final long      threadId;
+      final Semaphore semaphore;
+      final long      startNanos;
+      // The rest is only used by the detector (in scan()), except for state.
+      long             nextCheckNanos;
+      int              checks   = 0;
+      boolean          reported = false;
+
+      // Whether the wait ended with the lock, or was aborted. The waiting thread and the
+      // detector each try to move the state on from WAITING, and only the one that does
+      // gets its way, so the detector never interrupts a thread that has taken the lock.
+      // The detector sets ABORTING, interrupts the thread, and then sets ABORTED.
+      static final int WAITING  = 0;
+      static final int ACQUIRED = 1;
+      static final int ABORTING = 2;
+      static final int ABORTED  = 3;
+      private static final AtomicIntegerFieldUpdater<Wait> STATE = AtomicIntegerFieldUpdater.newUpdater(Wait.class, "state");
+      private volatile int state = WAITING;
+
+      Wait(Semaphore semaphore, long intervalNanos)
+      {
+         thread = Thread.currentThread();
+         threadId = thread.getId();
+         this.semaphore = semaphore;
+         startNanos = System.nanoTime();
+         nextCheckNanos = startNanos + intervalNanos;
+      }
+
+      /**
+       * Called by the waiting thread once it has the lock.
+       * @return false if the detector aborted the wait first, in which case the lock must be given back
+       */
+      boolean acquired()
+      {
+         return STATE.compareAndSet(this, WAITING, ACQUIRED);
+      }
+
+      boolean isAborted()
+      {
+         return state >= ABORTING;
+      }
+
+      // Waits for the interrupt of an aborted wait to be sent, and clears it.
+      void clearAbortInterrupt()
+      {
+         while (state != ABORTED) {
+            Thread.onSpinWait();
+         }
+         Thread.interrupted();
+      }
+
+      // Called by the detector. Interrupts the waiting thread, unless it has already taken the lock.
+      boolean abort()
+      {
+         if (!STATE.compareAndSet(this, WAITING, ABORTING)) {
+            return false;
+         }
+         thread.interrupt();
+         state = ABORTED;
+         return true;
+      }
+   }
+
+   /**
+    * One edge of a cycle: a thread, the lock it waits for, and the thread that owns that lock.
+    * wait is null if the thread is blocked on a monitor (or other lock) rather than a Semaphore.
+    */
+   private static final class Edge
+   {
+      final long   threadId;
+      final String lockName;
+      final long   ownerId;
+      final Wait   wait;
+
+      Edge(long threadId, String lockName, long ownerId, Wait wait)
+      {
+         this.threadId = threadId;
+         this.lockName = lockName;
+         this.ownerId = ownerId;
+         this.wait = wait;
+      }
+   }
+
+   private DeadlockDetector(long intervalMillis, BreakPolicy breakPolicy)
+   {
+      intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+      this.breakPolicy = breakPolicy;
+      detectorThread = new TrackableThread(this::run, "DeadlockDetector");
+      detectorThread.setDaemon(true);
+   }
+
+   /**
+    * Start detecting deadlocks, stopping the detector that was running before, if any.
+    * @param intervalMillis How often to look for deadlocks, and how long a thread must have
+    *                       been waiting before its wait is followed
+    * @return the new detector
+    */
+   public static synchronized DeadlockDetector start(long intervalMillis, BreakPolicy breakPolicy)
+   {
+      DeadlockDetector previous = active;
+      if (previous != null) {
+         previous.stop();
+      }
+      DeadlockDetector detector = new DeadlockDetector(intervalMillis, breakPolicy);
+      active = detector;
+      detector.detectorThread.start();
+      return detector;
+   }
+
+   /**
+    * @return the running detector, or null if there is none
+    */
+   public static DeadlockDetector getActive()
+   {
+      return active;
+   }
+
+   public void stop()
+   {
+      synchronized (DeadlockDetector.class) {
+         if (active == this) {
+            active = null;
+         }
+      }
+      running = false;
+      LockSupport.unpark(detectorThread);
+   }
+
+   public void setBreakPolicy(BreakPolicy breakPolicy) { this.breakPolicy = breakPolicy;}
+   public BreakPolicy getBreakPolicy()                 { return breakPolicy;}
+
+   /**
+    * @param includeMonitors If true, threads blocked on monitors (synchronized blocks) and
+    *                        java.util.concurrent locks are followed as well as Semaphores.
+    *                        Only the waits for Semaphores can be aborted.
+    */
+   public void setIncludeMonitors(boolean includeMonitors) { this.includeMonitors = includeMonitors;}
+   public boolean isIncludeMonitors()                      { return includeMonitors;}
+
+   /**
+    * @param diags If not null, the Diagnostics associations of each thread are included in reports
+    */
+   public void setDiagnostics(Diagnostics diags) { this.diags = diags;}
+
+   /**
+    * @return the number of deadlocks found so far
+    */
+   public long getDeadlocksFound() { return deadlocksFound;}
+
+   // Called by Semaphore.lock() when the current thread has to wait for the semaphore.
+   Wait waitStarted(Semaphore semaphore)
+   {
+      Wait wait = new Wait(semaphore, intervalNanos);
+      waits.put(wait.threadId, wait);
+      return wait;
+   }
+
+   // Called by Semaphore.lock() once the current thread has stopped waiting, whether it got the lock or not.
+   void waitEnded(Wait wait)
+   {
+      waits.remove(wait.threadId, wait);
+   }
+
+   private void run()
+   {
+      long nextScan = System.nanoTime() + intervalNanos;
+      while (running) {
+         long sleepNanos = nextScan - System.nanoTime();
+         if (sleepNanos > 0) {
+            LockSupport.parkNanos(this, sleepNanos);
+            continue;
+         }
+         try {
+            detectNow();
+         } catch (RuntimeException e) {
+            e.printStackTrace();
+         }
+         nextScan = System.nanoTime() + intervalNanos;
+      }
+   }
+
+   /**
+    * Look for deadlocks right away, instead of waiting for the next scan.
+    * @return the number of new deadlocks found
+    */
+   public synchronized int detectNow()
+   {
+      int found = 0;
+      long now = System.nanoTime();
+      for (Wait wait : waits.values()) {
+         if (wait.reported || (now - wait.nextCheckNanos < 0)) {
+            continue;
+         }
+         wait.checks++;
+         wait.nextCheckNanos = now + (intervalNanos << Math.min(wait.checks, MAX_BACKOFF_SHIFT));
+         List<Edge> cycle = findCycle(wait);
+         // The edges were read one at a time, so make sure they all still hold before reporting them.
+         if ((cycle != null) && isStillDeadlocked(cycle)) {
+            for (Edge edge : cycle) {
+               if (edge.wait != null) {
+                  edge.wait.reported = true;
+               }
+            }
+            found++;
+            deadlocksFound++;
+            reportAndBreak(cycle);
+         }
+      }
+      return found;
+   }
+
+   /**
+    * Follow the owners of the locks, starting with the given wait.
+    * @return the edges of the cycle back to the waiting thread, or null if the owners don't lead back to it
+    */
+   private List<Edge> findCycle(Wait start)
+   {
+      List<Edge> edges = new ArrayList<>();
+      Set<Long> visited = new HashSet<>();
+      long threadId = start.threadId;
+      while (visited.add(threadId)) {
+         Edge edge = getEdgeFrom(threadId);
+         if (edge == null) {
+            return null;
+         }
+         edges.add(edge);
+         if (edge.ownerId == start.threadId) {
+            return edges;
+         }
+         threadId = edge.ownerId;
+      }
+      // We ran into a cycle that doesn't include the start. It will be found from one of its own waits.
+      return null;
+   }
+
+   private Edge getEdgeFrom(long threadId)
+   {
+      Wait wait = waits.get(threadId);
+      if (wait != null) {
+         Thread owner = wait.semaphore.getOwner();
+         if (owner == null) {
+            return null;
+         }
+         return new Edge(threadId, "Semaphore " + wait.semaphore.name, owner.getId(), wait);
+      }
+      if (includeMonitors) {
+         ThreadInfo info = threadMXBean.getThreadInfo(threadId);
+         if ((info == null) || (info.getLockOwnerId() == -1)) {
+            return null;
+         }
+         return new Edge(threadId, info.getLockName(), info.getLockOwnerId(), null);
+      }
+      return null;
+   }
+
+   private boolean isStillDeadlocked(List<Edge> cycle)
+   {
+      for (Edge edge : cycle) {
+         Edge current = getEdgeFrom(edge.threadId);
+         if ((current == null) || (current.wait != edge.wait) || (current.ownerId != edge.ownerId)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void reportAndBreak(List<Edge> cycle)
+   {
+      Diagnostics diagnostics = diags;
+      Vector<String> lines = new Vector<>();
+      lines.add(StringUtils.getTimeStamp());
+      lines.add("Deadlock found among " + cycle.size() + " threads:");
+      for (Edge edge : cycle) {
+         StringBuilder sb = new StringBuilder();
+         String threadName;
+         StackTraceElement[] stack;
+         if (edge.wait != null) {
+            threadName = edge.wait.thread.getName();
+            stack = edge.wait.thread.getStackTrace();
+         }
+         else {
+            ThreadInfo info = threadMXBean.getThreadInfo(edge.threadId, Integer.MAX_VALUE);
+            threadName = (info == null) ? ("#" + edge.threadId) : info.getThreadName();
+            stack = (info == null) ? new StackTraceElement[0] : info.getStackTrace();
+         }
+         sb.append("Thread ").append(threadName);
+         if ((diagnostics != null) && (edge.wait != null)) {
+            try {
+               sb.append(" (Diag Assoc = ").append(diagnostics.getAssociationsStringForThread(edge.wait.thread)).append(")");
+            } catch (RuntimeException e) {
+               // The associations are only a nicety, don't let them stop the report.
+            }
+         }
+         sb.append(" is waiting for ").append(edge.lockName);
+         sb.append(", held by thread ").append(getThreadName(edge.ownerId, cycle));
+         for (StackTraceElement frame : stack) {
+            sb.append(Semaphore.lineSeparator).append("    at ").append(frame);
+         }
+         lines.add(sb.toString());
+      }
+      Edge victim = chooseVictim(cycle);
+      if (victim != null) {
+         if (victim.wait.abort()) {
+            lines.add("Broke the deadlock by aborting the wait of thread " + victim.wait.thread.getName()
+                      + " for " + victim.lockName + ".");
+         }
+         else {
+            lines.add("Thread " + victim.wait.thread.getName() + " got " + victim.lockName
+                      + " before its wait could be aborted.");
+         }
+      }
+      for (String line : lines) {
+         System.err.println(line);
+      }
+      Semaphore.writeStringsToDeadlockFile(lines);
+   }
+
+   private String getThreadName(long threadId, List<Edge> cycle)
+   {
+      for (Edge edge : cycle) {
+         if ((edge.threadId == threadId) && (edge.wait != null)) {
+            return edge.wait.thread.getName();
+         }
+      }
+      ThreadInfo info = threadMXBean.getThreadInfo(threadId);
+      return (info == null) ? ("#" + threadId) : info.getThreadName();
+   }
+
+   /**
+    * @return the edge whose wait the break policy aborts, or null if there is none
+    */
+   private Edge chooseVictim(List<Edge> cycle)
+   {
+      BreakPolicy policy = breakPolicy;
+      Edge victim = null;
+      for (Edge edge : cycle) {
+         // Only the waits for Semaphores can be aborted.
+         if (edge.wait == null) {
+            continue;
+         }
+         if (victim == null) {
+            victim = edge;
+            continue;
+         }
+         switch (policy) {
+            case ABORT_NEWEST_WAITER:
+               if (edge.wait.startNanos - victim.wait.startNanos > 0) {
+                  victim = edge;
+               }
+               break;
+            case ABORT_OLDEST_WAITER:
+               if (edge.wait.startNanos - victim.wait.startNanos < 0) {
+                  victim = edge;
+               }
+               break;
+            case ABORT_HIGHEST_ORDER_WAITER:
+               if ((edge.wait.semaphore.order > victim.wait.semaphore.order)
+                   || ((edge.wait.semaphore.order == victim.wait.semaphore.order)
+                       && (edge.wait.startNanos - victim.wait.startNanos > 0))) {
+                  victim = edge;
+               }
+               break;
+            default:
+               return null;
+         }
+      }
+      return (policy == BreakPolicy.REPORT_ONLY) ? null : victim;
+   }
+}
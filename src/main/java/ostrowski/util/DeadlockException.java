@@ -0,0 +1,15 @@
+package ostrowski.util;
+
+/**
+ * Thrown by Semaphore.lock() when the DeadlockDetector has aborted the wait for the
+ * lock to break a deadlock. The Semaphore was not locked. The thread should unwind,
+ * unlocking the Semaphores it holds as it goes, so the other threads in the cycle can proceed.
+ */
+@SuppressWarnings("serial")
+public class DeadlockException extends RuntimeException
+{
+   public DeadlockException(String message)
+   {
+      super(message);
+   }
+}
@@ -0,0 +1,229 @@
+package ostrowski.util;
+
+// Java Imports
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A timer for large numbers of timeouts that are usually cancelled before they expire,
+ * such as request timeouts. A single thread advances a wheel of buckets once per tick;
+ * a timeout is placed in the bucket for its deadline, along with the number of full
+ * revolutions of the wheel that must pass before it expires. Scheduling and cancelling
+ * are O(1), and the cost of waiting is one thread for the whole process, not one per timeout.
+ * Timeouts fire on the timer thread, so their tasks must be short.
+ */
+public class HashedWheelTimer
+{
+   private static volatile HashedWheelTimer defaultTimer = null;
+
+   private final long                           tickNanos;
+   private final Bucket[]                       wheel;
+   private final int                            mask;
+   private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+   private final Thread                         workerThread;
+   private final long                           startTime;
+   private volatile boolean                     running     = true;
+   private long                                 tick        = 0;
+
+   /**
+    * @param name         The name of the timer thread
+    * @param tickDuration The resolution of the timer
+    * @param unit         The unit of tickDuration
+    * @param wheelSize    The number of buckets in the wheel (rounded up to a power of two)
+    */
+   public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize)
+   {
+      tickNanos = Math.max(1, unit.toNanos(tickDuration));
+      int size = 1;
+      while (size < wheelSize) {
+         size <<= 1;
+      }
+      wheel = new Bucket[size];
+      for (int i = 0; i < size; i++) {
+         wheel[i] = new Bucket();
+      }
+      mask = size - 1;
+      startTime = System.nanoTime();
+      workerThread = new TrackableThread(this::run, name);
+      workerThread.setDaemon(true);
+      workerThread.start();
+   }
+
+   /**
+    * @return a process-wide timer with a 10ms tick, created on first use.
+    */
+   public static HashedWheelTimer getDefault()
+   {
+      HashedWheelTimer timer = defaultTimer;
+      if (timer == null) {
+         synchronized (HashedWheelTimer.class) {
+            timer = defaultTimer;
+            if (timer == null) {
+               timer = new HashedWheelTimer("HashedWheelTimer", 10, TimeUnit.MILLISECONDS, 512);
+               defaultTimer = timer;
+            }
+         }
+      }
+      return timer;
+   }
+
+   /**
+    * Schedule a task to be run once, after the given delay.
+    * @return a Timeout that can be used to cancel the task
+    */
+   public Timeout newTimeout(Runnable task, long delay, TimeUnit unit)
+   {
+      Timeout timeout = new Timeout(task, (System.nanoTime() - startTime) + unit.toNanos(delay));
+      newTimeouts.add(timeout);
+      return timeout;
+   }
+
+   public void stop()
+   {
+      running = false;
+      LockSupport.unpark(workerThread);
+   }
+
+   private void run()
+   {
+      while (running) {
+         long deadline = tickNanos * (tick + 1);
+         long sleepNanos;
+         while ((sleepNanos = deadline - (System.nanoTime() - startTime)) > 0) {
+            LockSupport.parkNanos(this, sleepNanos);
+            if (!running) {
+               return;
+            }
+         }
+         transferNewTimeouts();
+         wheel[(int) (tick & mask)].expire();
+         tick++;
+      }
+   }
+
+   private void transferNewTimeouts()
+   {
+      // Limit how many we transfer per tick, so that a flood of new
+      // timeouts can't keep the worker from expiring the current bucket.
+      for (int i = 0; i < 100000; i++) {
+         Timeout timeout = newTimeouts.poll();
+         if (timeout == null) {
+            return;
+         }
+         if (timeout.isCancelled()) {
+            continue;
+         }
+         long calculatedTick = timeout.deadline / tickNanos;
+         timeout.remainingRounds = (calculatedTick - tick) / wheel.length;
+         // Timeouts already in the past go into the current bucket.
+         long ticks = Math.max(calculatedTick, tick);
+         wheel[(int) (ticks & mask)].add(timeout);
+      }
+   }
+
+   /**
+    * The handle for a scheduled task.
+    */
+   public static class Timeout
+   {
+      private static final int ST_INIT      = 0;
+      private static final int ST_CANCELLED = 1;
+      private static final int ST_EXPIRED   = 2;
+
+      private final Runnable      task;
+      private final long          deadline;
+      private final AtomicInteger state = new AtomicInteger(ST_INIT);
+      long    remainingRounds;
+      Timeout next;
+      Timeout prev;
+
+      Timeout(Runnable task, long deadline)
+      {
+         this.task = task;
+         this.deadline = deadline;
+      }
+
+      /**
+       * Cancel this timeout. Its task will not be run, unless it has already started.
+       * Cancelled timeouts are removed from the wheel lazily, by the timer thread.
+       * @return true if the timeout was cancelled by this call
+       */
+      public boolean cancel()
+      {
+         return state.compareAndSet(ST_INIT, ST_CANCELLED);
+      }
+
+      public boolean isCancelled() { return state.get() == ST_CANCELLED;}
+      public boolean isExpired()   { return state.get() == ST_EXPIRED;}
+
+      void expire()
+      {
+         if (state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+            try {
+               task.run();
+            } catch (RuntimeException e) {
+               e.printStackTrace();
+            }
+         }
+      }
+   }
+
+   // A doubly linked list of timeouts. Only ever touched by the timer thread.
+   private static class Bucket
+   {
+      private Timeout head;
+      private Timeout tail;
+
+      void add(Timeout timeout)
+      {
+         if (head == null) {
+            head = tail = timeout;
+         }
+         else {
+            tail.next = timeout;
+            timeout.prev = tail;
+            tail = timeout;
+         }
+      }
+
+      void expire()
+      {
+         Timeout timeout = head;
+         while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.isCancelled()) {
+               remove(timeout);
+            }
+            else if (timeout.remainingRounds <= 0) {
+               remove(timeout);
+               timeout.expire();
+            }
+            else {
+               timeout.remainingRounds--;
+            }
+            timeout = next;
+         }
+      }
+
+      private void remove(Timeout timeout)
+      {
+         Timeout next = timeout.next;
+         if (timeout.prev != null) {
+            timeout.prev.next = next;
+         }
+         if (next != null) {
+            next.prev = timeout.prev;
+         }
+         if (timeout == head) {
+            head = next;
+         }
+         if (timeout == tail) {
+            tail = timeout.prev;
+         }
+         timeout.prev = null;
+         timeout.next = null;
+      }
+   }
+}
@@ -0,0 +1,121 @@
+package ostrowski.util;
+
+// Java Imports
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values, such as latencies or sizes, with one bucket per
+ * power of two. Recording a value is lock-free and allocation-free, so it can be done on
+ * hot paths. Percentiles are approximate: they are reported as the upper bound of the
+ * bucket that holds them (capped at the largest value recorded).
+ */
+public class LatencyHistogram
+{
+   // Bucket 0 holds the value 0, bucket n holds values in [2^(n-1), 2^n - 1].
+   private static final int BUCKETS = 64;
+
+   private final String          name;
+   private final String          unit;
+   private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+   private final LongAdder       count   = new LongAdder();
+   private final LongAdder       sum     = new LongAdder();
+   private final LongAccumulator max     = new LongAccumulator(Math::max, 0);
+
+   /**
+    * @param name The name reported by toString()
+    * @param unit The unit of the recorded values, such as "us" or "bytes"
+    */
+   public LatencyHistogram(String name, String unit)
+   {
+      this.name = name;
+      this.unit = unit;
+   }
+
+   public void record(long value)
+   {
+      if (value < 0) {
+         value = 0;
+      }
+      buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+      count.increment();
+      sum.add(value);
+      max.accumulate(value);
+   }
+
+   public String getName() { return name;}
+   public String getUnit() { return unit;}
+   public long   getCount(){ return count.sum();}
+   public long   getSum()  { return sum.sum();}
+   public long   getMax()  { return max.get();}
+
+   public double getMean()
+   {
+      long samples = count.sum();
+      return (samples == 0) ? 0 : ((double) sum.sum()) / samples;
+   }
+
+   /**
+    * @param percentile A value between 0 and 100
+    * @return the upper bound of the bucket holding the value at the given percentile
+    */
+   public long getValueAtPercentile(double percentile)
+   {
+      long[] counts = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         counts[i] = buckets.get(i);
+         total += counts[i];
+      }
+      if (total == 0) {
+         return 0;
+      }
+      long target = Math.max(1, (long) Math.ceil((percentile / 100.0) * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += counts[i];
+         if (seen >= target) {
+            long upperBound = (i == 0) ? 0 : (i == (BUCKETS - 1)) ? Long.MAX_VALUE : ((1L << i) - 1);
+            return Math.min(upperBound, max.get());
+         }
+      }
+      return max.get();
+   }
+
+   /**
+    * @return a copy of this histogram, which later records don't change. Values recorded
+    *         while the copy is being made may or may not be included in it.
+    */
+   public LatencyHistogram snapshot()
+   {
+      LatencyHistogram copy = new LatencyHistogram(name, unit);
+      for (int i = 0; i < BUCKETS; i++) {
+         copy.buckets.set(i, buckets.get(i));
+      }
+      copy.count.add(count.sum());
+      copy.sum.add(sum.sum());
+      copy.max.accumulate(max.get());
+      return copy;
+   }
+
+   public void reset()
+   {
+      for (int i = 0; i < BUCKETS; i++) {
+         buckets.set(i, 0);
+      }
+      count.reset();
+      sum.reset();
+      max.reset();
+   }
+
+   @Override
+   public String toString()
+   {
+      return name + ": count = " + getCount()
+             + ", mean = " + String.format("%.1f", getMean()) + unit
+             + ", p50 = " + getValueAtPercentile(50) + unit
+             + ", p99 = " + getValueAtPercentile(99) + unit
+             + ", max = " + getMax() + unit;
+   }
+}
@@ -0,0 +1,111 @@
+package ostrowski.util;
+
+// Java Imports
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The contention statistics of one Semaphore (or of all the Semaphores of one order),
+ * as gathered by the SemaphoreProfiler. Recording is lock-free, so many threads can
+ * record into the same LockStats without waiting for each other.
+ */
+public class LockStats
+{
+   // The most call sites we keep counts for. Contended locks from any other call site are counted as OTHER_CALL_SITES.
+   static final int    MAX_CALL_SITES   = 32;
+   static final String OTHER_CALL_SITES = "(other call sites)";
+
+   private final String           name;
+   private final LongAdder        acquires          = new LongAdder();
+   private final LongAdder        contendedAcquires = new LongAdder();
+   private final LongAdder        totalWaitNanos    = new LongAdder();
+   private final LongAccumulator  maxWaitNanos      = new LongAccumulator(Math::max, 0);
+   private final LatencyHistogram holdTime;
+   // The number of sampled contended locks from each call site.
+   private final ConcurrentHashMap<String, LongAdder> contendingCallSites = new ConcurrentHashMap<>();
+
+   LockStats(String name)
+   {
+      this.name = name;
+      holdTime = new LatencyHistogram(name + " hold time", "ns");
+   }
+
+   void recordAcquire(long waitNanos, boolean contended)
+   {
+      acquires.increment();
+      if (contended) {
+         contendedAcquires.increment();
+         totalWaitNanos.add(waitNanos);
+         maxWaitNanos.accumulate(waitNanos);
+      }
+   }
+
+   void recordHold(long holdNanos)
+   {
+      holdTime.record(holdNanos);
+   }
+
+   void recordContendingCallSite(String callSite)
+   {
+      LongAdder count = contendingCallSites.get(callSite);
+      if (count == null) {
+         if (contendingCallSites.size() >= MAX_CALL_SITES) {
+            callSite = OTHER_CALL_SITES;
+         }
+         count = contendingCallSites.computeIfAbsent(callSite, site -> new LongAdder());
+      }
+      count.increment();
+   }
+
+   public String           getName()              { return name;}
+   public long             getAcquires()          { return acquires.sum();}
+   public long             getContendedAcquires() { return contendedAcquires.sum();}
+   public long             getTotalWaitNanos()    { return totalWaitNanos.sum();}
+   public long             getMaxWaitNanos()      { return maxWaitNanos.get();}
+   public LatencyHistogram getHoldTime()          { return holdTime;}
+
+   /**
+    * @return up to count of the call sites that were sampled most often while waiting for the lock,
+    *         with the number of times each was sampled, most often first.
+    */
+   public List<Map.Entry<String, Long>> getTopContendingCallSites(int count)
+   {
+      List<Map.Entry<String, Long>> callSites = new ArrayList<>();
+      for (Map.Entry<String, LongAdder> entry : contendingCallSites.entrySet()) {
+         callSites.add(Map.entry(entry.getKey(), entry.getValue().sum()));
+      }
+      callSites.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+      return (callSites.size() > count) ? callSites.subList(0, count) : callSites;
+   }
+
+   public void reset()
+   {
+      acquires.reset();
+      contendedAcquires.reset();
+      totalWaitNanos.reset();
+      maxWaitNanos.reset();
+      holdTime.reset();
+      contendingCallSites.clear();
+   }
+
+   @Override
+   public String toString()
+   {
+      long contended = getContendedAcquires();
+      StringBuilder sb = new StringBuilder();
+      sb.append(name).append(": acquires = ").append(getAcquires())
+        .append(", contended = ").append(contended)
+        .append(", total wait = ").append(getTotalWaitNanos() / 1000).append("us")
+        .append(", mean wait = ").append((contended == 0) ? 0 : getTotalWaitNanos() / contended / 1000).append("us")
+        .append(", max wait = ").append(getMaxWaitNanos() / 1000).append("us")
+        .append("; ").append(holdTime);
+      for (Map.Entry<String, Long> callSite : getTopContendingCallSites(5)) {
+         sb.append(Semaphore.lineSeparator).append("    ").append(callSite.getValue()).append(" x ").append(callSite.getKey());
+      }
+      return sb.toString();
+   }
+}
@@ -6,9 +6,21 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.Enumeration;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
 
 public class Semaphore {
 
@@ -17,24 +29,279 @@ public class Semaphore {
    // want to fail (throw exception) if the call to lock() would block.
    // lockCount tells us how many times this Semaphore is locked by the
    // current thread. When this is zero, the Semaphore is unlocked.
+   // It is only ever changed by the thread that holds the lock.
    protected int lockCount;
 
    // This can be used to see how many threads are waiting for this lock
-   public int waitCount;
+   public volatile int waitCount;
+   private static final AtomicIntegerFieldUpdater<Semaphore> WAIT_COUNT = AtomicIntegerFieldUpdater.newUpdater(Semaphore.class, "waitCount");
 
    // The Semaphore object can also be used to track 'synchronize' blocks
    // without actually locking anything itself. When we use it in this manner,
    // we need to keep track of how many times 'track' and 'untrack' have
-   // been called.
-   public int trackCount;
+   // been called. It is changed atomically, rather than under a monitor, because
+   // a thread may track a Semaphore that it has not locked.
+   public volatile int trackCount;
+   private static final AtomicIntegerFieldUpdater<Semaphore> TRACK_COUNT = AtomicIntegerFieldUpdater.newUpdater(Semaphore.class, "trackCount");
 
    // This lets us identify which Thread owns this Semaphore
-   public Thread ownerThread;
+   public volatile Thread ownerThread;
 
-   // This Hashtable provides us with a mapping between the current thread
-   // and a Vector that contains all the Semaphore objects that the thread
-   // has locked.
-   private static final Hashtable<Thread, Vector<Semaphore>> THREAD_HASH = new Hashtable<>(51); // assume about 50 threads may run in the server
+   // When the current lock() of this Semaphore took it, if the SemaphoreProfiler was on
+   // at the time (0 otherwise). Only used by the thread that owns the lock.
+   private long lockedAtNanos;
+   // Where the SemaphoreProfiler keeps our statistics, once we have been locked while it is on.
+   private LockStats semaphoreStats = null;
+   private LockStats orderStats     = null;
+
+   /**
+    * How much of the lock order verification is done by lock() and tryLock().
+    * Whatever the mode, every lock is tracked until it is unlocked, so each lock that
+    * is verified is checked against all the locks its thread holds, and printLocks()
+    * still shows them. The mode only decides which locks are checked, and any violation
+    * found is reported the same way in every mode. Locks that are not verified skip
+    * the order check, but not the tracking. The explicit track(), untrack() and check()
+    * methods always verify.
+    */
+   public enum VerificationMode {
+      // Verify every lock (the default).
+      FULL,
+      // Verify a random fraction of locks (see setVerificationSampleRate()). A violation
+      // is found the first time the lock that breaks the order happens to be verified,
+      // so a rate of 1% finds it about once in every 100 times it happens.
+      SAMPLED,
+      // Verify only the first locks of each lock site (see setVerificationFirstN()).
+      FIRST_N,
+      // Verify nothing.
+      OFF
+   }
+
+   private static volatile VerificationMode verificationMode       = VerificationMode.FULL;
+   private static volatile double           verificationSampleRate = 0.01;
+   // The sample rate as a fraction of 2^32, so sampling only needs a random int.
+   private static volatile long             verificationSampleBound = sampleBoundOf(0.01);
+   private static volatile int              verificationFirstN     = 1000;
+   // The number of locks verified so far at each lock site, while in FIRST_N mode.
+   private static final ConcurrentHashMap<String, AtomicInteger> VERIFIED_LOCKS_BY_SITE = new ConcurrentHashMap<>();
+   // Our lock site (see setVerificationFirstN()), once it has been needed.
+   private String lockSite = null;
+
+   public static void setVerificationMode(VerificationMode mode) {
+      verificationMode = mode;
+   }
+
+   public static VerificationMode getVerificationMode() {
+      return verificationMode;
+   }
+
+   /**
+    * @param rate The fraction (from 0 to 1) of locks to verify in SAMPLED mode
+    */
+   public static void setVerificationSampleRate(double rate) {
+      if ((rate < 0) || (rate > 1)) {
+         throw new IllegalArgumentException("sample rate " + rate + " is not between 0 and 1");
+      }
+      verificationSampleRate = rate;
+      verificationSampleBound = sampleBoundOf(rate);
+   }
+
+   private static long sampleBoundOf(double rate) {
+      return (long) (rate * (1L << 32));
+   }
+
+   public static double getVerificationSampleRate() {
+      return verificationSampleRate;
+   }
+
+   /**
+    * Sets the number of locks to verify at each lock site in FIRST_N mode, and starts
+    * counting them again. Walking the stack to find the caller of every lock() would cost
+    * far more than the check itself, so a lock site is the name of the Semaphore, without
+    * any instance detail in parentheses (so all "MonitoredObject (...)" Semaphores share one).
+    * Semaphores are named for the class and field that uses them, which every lock of them
+    * is in, so this is close to the call site, and the number of sites is bounded.
+    */
+   public static void setVerificationFirstN(int firstN) {
+      verificationFirstN = firstN;
+      VERIFIED_LOCKS_BY_SITE.clear();
+   }
+
+   public static int getVerificationFirstN() {
+      return verificationFirstN;
+   }
+
+   // Decide whether the lock we have just taken should be checked for order violations.
+   private boolean shouldVerifyLock() {
+      switch (verificationMode) {
+         case FULL:
+            return true;
+         case SAMPLED:
+            return Integer.toUnsignedLong(ThreadLocalRandom.current().nextInt()) < verificationSampleBound;
+         case FIRST_N:
+            // Look the counter up each time, rather than keeping it, so setVerificationFirstN() restarts every site.
+            String site = getLockSite();
+            AtomicInteger verifiedLocks = VERIFIED_LOCKS_BY_SITE.get(site);
+            if (verifiedLocks == null) {
+               verifiedLocks = VERIFIED_LOCKS_BY_SITE.computeIfAbsent(site, s -> new AtomicInteger());
+            }
+            // Once the site has used up its quota, this is a single read of a shared value that no longer changes.
+            return (verifiedLocks.get() < verificationFirstN) && (verifiedLocks.getAndIncrement() < verificationFirstN);
+         default:
+            return false;
+      }
+   }
+
+   private String getLockSite() {
+      String site = lockSite;
+      if (site == null) {
+         int detailStart = name.indexOf(" (");
+         site = (detailStart < 0) ? name : name.substring(0, detailStart);
+         lockSite = site;
+      }
+      return site;
+   }
+
+   // The lock itself. Its state is the number of times its owner has locked it, so
+   // an uncontended lock() or unlock() is a single compare-and-set, or plain write.
+   // Threads that have to wait for the lock are parked in the synchronizer's queue.
+   private final Sync sync;
+
+   private static final class Sync extends AbstractQueuedSynchronizer
+   {
+      private static final long serialVersionUID = 1L;
+
+      final boolean fair;
+
+      Sync(boolean fair) {
+         this.fair = fair;
+      }
+
+      @Override
+      protected boolean tryAcquire(int acquires) {
+         Thread current = Thread.currentThread();
+         int count = getState();
+         if (count == 0) {
+            // A fair lock goes to the thread that has waited longest, instead of whoever asks for it first.
+            if ((!fair || !hasQueuedPredecessors()) && compareAndSetState(0, acquires)) {
+               setExclusiveOwnerThread(current);
+               return true;
+            }
+         }
+         else if (current == getExclusiveOwnerThread()) {
+            setState(count + acquires);
+            return true;
+         }
+         return false;
+      }
+
+      // Takes the lock if it is free, even if other threads are waiting for a fair lock.
+      boolean tryBarge() {
+         Thread current = Thread.currentThread();
+         int count = getState();
+         if (count == 0) {
+            if (compareAndSetState(0, 1)) {
+               setExclusiveOwnerThread(current);
+               return true;
+            }
+         }
+         else if (current == getExclusiveOwnerThread()) {
+            setState(count + 1);
+            return true;
+         }
+         return false;
+      }
+
+      @Override
+      protected boolean tryRelease(int releases) {
+         if (Thread.currentThread() != getExclusiveOwnerThread()) {
+            throw new IllegalMonitorStateException();
+         }
+         int count = getState() - releases;
+         if (count == 0) {
+            setExclusiveOwnerThread(null);
+         }
+         setState(count);
+         return count == 0;
+      }
+
+      @Override
+      protected boolean isHeldExclusively() {
+         return getExclusiveOwnerThread() == Thread.currentThread();
+      }
+
+      Thread getOwner() {
+         return getExclusiveOwnerThread();
+      }
+   }
+
+   // Each thread keeps the Semaphore objects it has locked (tracked) in a HeldLocks
+   // stack of its own, so locking never touches any state shared with other threads.
+   // The registry maps each thread to its stack, so printLocks() and
+   // closeSocketOfLongestOperation() can look at every thread. It only holds the
+   // threads weakly, and is only changed when a thread tracks its first Semaphore.
+   private static final Map<Thread, HeldLocks> HELD_LOCKS_REGISTRY = Collections.synchronizedMap(new WeakHashMap<>());
+   private static final ThreadLocal<HeldLocks> HELD_LOCKS = ThreadLocal.withInitial(() -> {
+      HeldLocks heldLocks = new HeldLocks();
+      HELD_LOCKS_REGISTRY.put(Thread.currentThread(), heldLocks);
+      return heldLocks;
+   });
+
+   /**
+    * The Semaphores tracked by one thread, in the order they were tracked (a First-In,
+    * Last-Out stack). Only the thread itself changes its stack. Other threads may only
+    * take a snapshot() of it, which may be a moment out of date.
+    */
+   static final class HeldLocks
+   {
+      private static final VarHandle SIZE;
+      static {
+         try {
+            SIZE = MethodHandles.lookup().findVarHandle(HeldLocks.class, "size", int.class);
+         } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+         }
+      }
+
+      private Semaphore[] locks = new Semaphore[8];
+      // Written with release semantics, so a snapshot sees every lock below the size it reads.
+      private int         size  = 0;
+
+      void push(Semaphore semaphore) {
+         if (size == locks.length) {
+            locks = Arrays.copyOf(locks, size * 2);
+         }
+         locks[size] = semaphore;
+         SIZE.setRelease(this, size + 1);
+      }
+
+      void removeAt(int index) {
+         System.arraycopy(locks, index + 1, locks, index, size - index - 1);
+         locks[size - 1] = null;
+         SIZE.setRelease(this, size - 1);
+      }
+
+      Semaphore peek() {
+         return (size == 0) ? null : locks[size - 1];
+      }
+
+      int lastIndexOf(Semaphore semaphore) {
+         for (int i = size - 1; i >= 0; i--) {
+            if (locks[i] == semaphore) {
+               return i;
+            }
+         }
+         return -1;
+      }
+
+      boolean contains(Semaphore semaphore) { return lastIndexOf(semaphore) >= 0;}
+      boolean isEmpty()                      { return size == 0;}
+
+      Semaphore[] snapshot() {
+         int count = (int) SIZE.getAcquire(this);
+         Semaphore[] current = locks;
+         return Arrays.copyOf(current, Math.min(count, current.length));
+      }
+   }
 
    // This variable gives us a name we can display in the error cases, making
    // it easier to locate the violations
@@ -87,8 +354,19 @@ public class Semaphore {
    //static int DependsOn(int d1, int d2, int d3, int d4, int d5, int d6, int d7) { return Math.max(Math.max(Math.max(Math.max(Math.max(Math.max(d1, d2), d3), d4), d5), d6), d7)+1;}
 
    public Semaphore(String name, int order) {
+      this(name, order, false);
+   }
+
+   /**
+    * @param fair If true, the lock is given to the threads waiting for it in the order they
+    *             started waiting. Otherwise (the default), a thread that asks for the lock just as
+    *             it is released may take it ahead of the waiting threads, which saves
+    *             parking and waking a thread each time the lock changes hands.
+    */
+   public Semaphore(String name, int order, boolean fair) {
       this.name = name + "[" + order + "]";
       this.order = order;
+      sync = new Sync(fair);
       lockCount = 0;
       waitCount = 0;
       trackCount = 0;
@@ -99,6 +377,7 @@ public class Semaphore {
    public Semaphore(String name, int order, LockableDataOutputStream lockableDataOutStream) {
       this.name = name + "[" + order + "]";
       this.order = order;
+      sync = new Sync(false);
       lockCount = 0;
       waitCount = 0;
       trackCount = 0;
@@ -128,45 +407,103 @@ public class Semaphore {
       peerLockAuthorityParent = parentLock;
    }
 
-   public synchronized void lock() {
-      // If we already own this Semaphore, don't try to re-lock it.
-      if (ownerThread != null)
-      {
-         if (ownerThread.equals(Thread.currentThread()))
-         {
-            ++lockCount;
-            return;
-         }
-      }
+   public boolean isFair() {
+      return sync.fair;
+   }
+
+   /**
+    * @return an estimate of the number of threads waiting to lock this Semaphore
+    */
+   public int getQueueLength() {
+      return sync.getQueueLength();
+   }
 
-      ++waitCount;
-      while (lockCount > 0) {
-         // we must be notified not interrupted,
-         // so catch and ignore interruptions.
+   public void lock() {
+      boolean profiling = SemaphoreProfiler.isEnabled();
+      long waitStartNanos = 0;
+      // If nobody owns this Semaphore, or we already do, this takes (or re-takes) it right away.
+      if (!sync.tryAcquire(1)) {
+         // Otherwise, wait in line. Like wait() used to, this ignores interrupts
+         // (but unlike wait(), it leaves the thread's interrupted status set).
+         if (profiling) {
+            waitStartNanos = System.nanoTime();
+         }
+         WAIT_COUNT.incrementAndGet(this);
+         // Let the DeadlockDetector (if there is one) know who we are waiting for.
+         DeadlockDetector detector = DeadlockDetector.getActive();
+         DeadlockDetector.Wait wait = (detector == null) ? null : detector.waitStarted(this);
          try {
-            // during this wait(), other threads may
-            // enter any synchronized functions
-            wait();
-            // If we get here, then notify was called,
-            // so unlock() was called, we succeeded.
-            break;
-         } catch (InterruptedException e) {
-            continue;    // no unlock() called yet
+            if (wait == null) {
+               sync.acquire(1);
+            }
+            else {
+               acquireAbortably(wait);
+            }
+         } finally {
+            WAIT_COUNT.decrementAndGet(this);
+            if (wait != null) {
+               detector.waitEnded(wait);
+            }
          }
       }
       // we have acquired (locked) this Semaphore
-      --waitCount;
-      ++lockCount;
-      ownerThread = Thread.currentThread();
-      track();
+      if (++lockCount == 1) {
+         ownerThread = Thread.currentThread();
+         if (profiling) {
+            recordAcquire(waitStartNanos);
+         }
+         track(shouldVerifyLock());
+      }
    }
 
-   public synchronized boolean unlock() {
-      // Make sure that the current thread really owns this Semaphore
+   // Waits for the lock like sync.acquire(1), unless the DeadlockDetector aborts
+   // the wait to break a deadlock, in which case this throws a DeadlockException.
+   private void acquireAbortably(DeadlockDetector.Wait wait) {
+      boolean interrupted = false;
+      try {
+         while (true) {
+            try {
+               sync.acquireInterruptibly(1);
+            } catch (InterruptedException e) {
+               if (wait.isAborted()) {
+                  throw abortedWait(wait);
+               }
+               // Like lock() without a detector, keep waiting, and leave the interrupted status set afterwards.
+               interrupted = true;
+               continue;
+            }
+            if (wait.acquired()) {
+               return;
+            }
+            // The detector aborted the wait just as we got the lock. It has already reported
+            // the wait as aborted, so give the lock back, and unwind as it said we would.
+            sync.release(1);
+            throw abortedWait(wait);
+         }
+      } finally {
+         if (interrupted) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
 
-      // If ownerThread is null, then this will throw a RuntimeException
-      // (NullPointerException), which is the desired behaviour (see below)
-      if (!ownerThread.equals(Thread.currentThread()))
+   private DeadlockException abortedWait(DeadlockDetector.Wait wait) {
+      // The interrupt was only sent to abort the wait, so it shouldn't outlive it.
+      wait.clearAbortInterrupt();
+      return new DeadlockException("Lock of Semaphore " + name + " by thread " + Thread.currentThread().getName()
+                                   + " aborted to break a deadlock");
+   }
+
+   /**
+    * @return the thread that has this Semaphore locked, or null if it is unlocked
+    */
+   Thread getOwner() {
+      return sync.getOwner();
+   }
+
+   public boolean unlock() {
+      // Make sure that the current thread really owns this Semaphore
+      if (ownerThread != Thread.currentThread())
       {
          // this is really bad if this occurs. It means that we don't own this
          // object, but we are trying to unlock it.
@@ -174,7 +511,8 @@ public class Semaphore {
          // enforcement with the whole 'throws NotOwnerException' garbage in
          // the function definition, which would force the programmer to have
          // to have a try/catch block around every unlock method call.
-         throw new IllegalStateException();
+         throw new IllegalStateException("Semaphore " + name + " unlocked by " + Thread.currentThread().getName()
+                                         + ", which doesn't own it");
       }
 
       if (--lockCount == 0)
@@ -182,109 +520,118 @@ public class Semaphore {
          // If this was the last lock held by the current thread
          // on this Semaphore, then the Semaphore is now unlocked.
          untrack();
+         if (lockedAtNanos != 0) {
+            long holdNanos = System.nanoTime() - lockedAtNanos;
+            semaphoreStats.recordHold(holdNanos);
+            orderStats.recordHold(holdNanos);
+            lockedAtNanos = 0;
+         }
 
          // clear the ownerThread, and then let another thread lock this.
          ownerThread = null;
-
-         // This wakes up one thread, which may be in the lock() function.
-         // Since both the unlock() and the lock() are synchronized, the
-         // lock() function thread wont continue until this unlock() function exits.
-         notify();
       }
+      // This wakes up the next waiting thread, if any, once the Semaphore is unlocked.
+      sync.release(1);
       return true;
    }
 
+   // Record our first lock() by the current thread with the SemaphoreProfiler.
+   // waitStartNanos is when we started waiting for the lock, or 0 if we didn't have to.
+   private void recordAcquire(long waitStartNanos) {
+      if (semaphoreStats == null) {
+         semaphoreStats = SemaphoreProfiler.statsForSemaphore(getLockSite());
+         orderStats = SemaphoreProfiler.statsForOrder(order);
+      }
+      long now = System.nanoTime();
+      boolean contended = (waitStartNanos != 0);
+      long waitNanos = contended ? (now - waitStartNanos) : 0;
+      semaphoreStats.recordAcquire(waitNanos, contended);
+      orderStats.recordAcquire(waitNanos, contended);
+      if (contended && SemaphoreProfiler.sampleCallSite()) {
+         String callSite = SemaphoreProfiler.getCallSite();
+         semaphoreStats.recordContendingCallSite(callSite);
+         orderStats.recordContendingCallSite(callSite);
+      }
+      // Start timing the hold after the bookkeeping, so it isn't counted as part of it.
+      lockedAtNanos = System.nanoTime();
+   }
+
    public SemaphoreAutoTracker trackAuto() {
       return new SemaphoreAutoTracker(this);
    }
 
-   public synchronized void track() {
+   public void track() {
+      track(true/*verify*/);
+   }
+
+   // Tracks this Semaphore, checking it for an order violation first only if verify is true.
+   private void track(boolean verify) {
       // If the tackCount is non-zero, then we are already tracking
       // this object, so we do nothing except increment trackCount
-      if (++trackCount > 1) {
+      if (TRACK_COUNT.incrementAndGet(this) > 1) {
          return;
       }
 
-      // Now we need to update the Hashtable that contains a Vector
-      // for each thread that owns a Semaphore.
-      Vector<Semaphore> threadsLockedSemaphores = THREAD_HASH.get(Thread.currentThread());
-      if (threadsLockedSemaphores == null)
-      {
-         threadsLockedSemaphores = new Vector<>();
-         // Now put the new Vector into the Hashtable.
-         THREAD_HASH.put(Thread.currentThread(), threadsLockedSemaphores);
-         // Since this is an empty Vector, there is no need to checkForOrderViolations.
-      }
-      else
-      {
+      // Now we need to update the stack of Semaphores held by this thread.
+      HeldLocks threadsLockedSemaphores = HELD_LOCKS.get();
+      if (verify) {
          checkForOrderViolation(threadsLockedSemaphores, true/*unlockLockedObject*/);
       }
-      // Add this Semaphore to the end of the Vector. It should
+      // Add this Semaphore to the top of the stack. It should
       // be the first one removed (a First-In, Last-Out Queue).
-      threadsLockedSemaphores.add(this);
+      threadsLockedSemaphores.push(this);
    }
 
-   public synchronized void untrack() {
+   public void untrack() {
       // If the tackCount is non-zero, then we are still tracking
       // this object, so we do nothing except decrement trackCount
-      if (--trackCount > 0) {
+      int count = TRACK_COUNT.decrementAndGet(this);
+      if (count > 0) {
          return;
       }
 
-      // We need to update the Hashtable that contains a Vector
-      // for each thread that owns a Semaphore.
-      Vector<Semaphore> threadsLockedSemaphores = THREAD_HASH.get(Thread.currentThread());
-      if (threadsLockedSemaphores != null)
+      // We need to update the stack of Semaphores held by this thread.
+      HeldLocks threadsLockedSemaphores = HELD_LOCKS.get();
+      // When multiple Semaphores are unlocked, they must be
+      // unlocked in the reverse of the order in which they
+      // were locked, or a deadlock condition may result.
+      // Therefore, the Semaphore at the top of the stack
+      // should be ourselves (this Semaphore)
+      boolean objectRemoveFromList = false;
+      Semaphore lastLockedSem = threadsLockedSemaphores.peek();
+      if (lastLockedSem != null)
       {
-         // When multiple Semaphores are unlocked, they must be
-         // unlocked in the reverse of the order in which they
-         // were locked, or a deadlock condition may result.
-         // Therefore, the Semaphore at the end of the Vector
-         // should be ourselves (this Semaphore)
-         boolean objectRemoveFromList = false;
-         if (!threadsLockedSemaphores.isEmpty()) {
-            Semaphore lastLockedSem = threadsLockedSemaphores.lastElement();
-            if (lastLockedSem != null)
-            {
-               if (lastLockedSem.equals(this)) {
-                  // remove the last element (which is 'this') from the Vector
-                  threadsLockedSemaphores.removeElementAt(threadsLockedSemaphores.size()-1);
-                  objectRemoveFromList = true;
-               }
-               else {
-                  // DEADLOCK CONDITION POSSIBLE!!!!!
-                  // Find where in this Vector this Semaphore object exists and remove it.
-                  int index = threadsLockedSemaphores.lastIndexOf(this);
-                  if (index != -1) {
-                     String strReason  = "Objects not unlocked in the reverse of the lock order. ";
-                            strReason += "Object " + name + " is being unlocked, ";
-                            strReason += "while object " + lastLockedSem.name + " was most recently locked.";
-
-                     ReportPossibleDeadlockCondition(strReason);
-                     // remove the 'this' from the Vector
-                     threadsLockedSemaphores.removeElementAt(index);
-                     objectRemoveFromList = true;
-                  }
-               }
-               // now put the modified Vector back into the Hashtable
-               THREAD_HASH.put(Thread.currentThread(), threadsLockedSemaphores);
-            }
+         // Find where in the stack this Semaphore object exists and remove it.
+         int index = threadsLockedSemaphores.lastIndexOf(this);
+         if ((index != -1) && (lastLockedSem != this)) {
+            // DEADLOCK CONDITION POSSIBLE!!!!!
+            String strReason  = "Objects not unlocked in the reverse of the lock order. ";
+                   strReason += "Object " + name + " is being unlocked, ";
+                   strReason += "while object " + lastLockedSem.name + " was most recently locked.";
+
+            ReportPossibleDeadlockCondition(strReason);
          }
-         if (!objectRemoveFromList)
-         {
-            if (trackCount >= 0) {
-               // 'This' did not exist in our lock list, report the error and do nothing.
-               ReportPossibleDeadlockCondition("Object " + name + " unlocked that was not previously locked.");
-            }
-            else {
-               // If the track count was below zero, AND this object was not removed from
-               // the list of locked object, then this object was likely forcibly removed when
-               // it was found to be tracked while a higher order lock was trying to be locked.
-               trackCount = 0;
-            }
+         if (index != -1) {
+            // remove the 'this' from the stack
+            threadsLockedSemaphores.removeAt(index);
+            objectRemoveFromList = true;
          }
       }
-      if (trackCount < 0)
+      if (!objectRemoveFromList)
+      {
+         if (count >= 0) {
+            // 'This' did not exist in our lock list, report the error and do nothing.
+            ReportPossibleDeadlockCondition("Object " + name + " unlocked that was not previously locked.");
+         }
+         else {
+            // If the track count was below zero, AND this object was not removed from
+            // the list of locked object, then this object was likely forcibly removed when
+            // it was found to be tracked while a higher order lock was trying to be locked.
+            count = 0;
+            trackCount = 0;
+         }
+      }
+      if (count < 0)
       {
          // If the track count is now LESS than zero, report the error
          ReportPossibleDeadlockCondition("Object " + name + " untracked more often than it was tracked.");
@@ -294,41 +641,39 @@ public class Semaphore {
    // The check method combines track() and untrack() to verify that an
    // object lock could be acquired without causing a deadlock, but does
    // not actually modify the threadHash Hashtable (for efficiency).
-   public synchronized void check() {
+   public void check() {
       // If the tackCount is non-zero, then we are already tracking
       // this object for real, so everything is cool, do nothing.
       if (trackCount > 0) {
          return;
       }
 
-      // Now we need to update the Hashtable that contains a Vector
-      // for each thread that owns a Semaphore.
-      Vector<Semaphore> threadsLockedSemaphores = THREAD_HASH.get(Thread.currentThread());
       // If there is no other locks held by this thread, then we are
       // certain no deadlock could occur by the locking of this Semaphore
-      if (threadsLockedSemaphores == null) {
+      HeldLocks threadsLockedSemaphores = HELD_LOCKS.get();
+      if (threadsLockedSemaphores.isEmpty()) {
          return;
       }
 
       checkForOrderViolation(threadsLockedSemaphores, false/*unlockLockedObject*/);
    }
 
-   boolean checkForOrderViolation(Vector<Semaphore> threadsLockedSemaphores, boolean unlockLockedObject)
+   boolean checkForOrderViolation(HeldLocks threadsLockedSemaphores, boolean unlockLockedObject)
    {
       // If other Semaphores are owned by this thread, we need
       // to make sure that the order of those Semaphores are
       // greater than the order of this Semaphore. If this is
       // not true, then a deadlock could occur.
-      // Because the first Semaphore locked is at the top of the
-      // Vector, and the most recently locked Semaphore is at
-      // the bottom of the Vector, and because the order of the
+      // Because the first Semaphore locked is at the bottom of the
+      // stack, and the most recently locked Semaphore is at
+      // the top of the stack, and because the order of the
       // Semaphore must always be decreasing, the lowest order
-      // Semaphore should be at the bottom of the Vector.
+      // Semaphore should be at the top of the stack.
       // Thus, we only need to compare the order of the Semaphore
-      // at the end of the Vector to the order of this Semaphore.
+      // at the top of the stack to the order of this Semaphore.
       if (!threadsLockedSemaphores.isEmpty())
       {
-         Semaphore lowestLockedSem = threadsLockedSemaphores.lastElement();
+         Semaphore lowestLockedSem = threadsLockedSemaphores.peek();
          if (lowestLockedSem.order <= order)
          {
             boolean deadlockPossible = true;
@@ -366,15 +711,21 @@ public class Semaphore {
    }
 
    @Override
-   public synchronized String toString() {
+   public String toString() {
       return "Name [order] = " + name + ", lock count = " + lockCount + ", wait count = " + waitCount + ", track count = " + trackCount;
    }
 
-   public synchronized boolean tryLock() {
-      if ((lockCount > 0) && (!ownerThread.equals(Thread.currentThread()))) {
+   public boolean tryLock() {
+      if (!sync.tryBarge()) {
          return false;
       }
-      this.lock();
+      if (++lockCount == 1) {
+         ownerThread = Thread.currentThread();
+         if (SemaphoreProfiler.isEnabled()) {
+            recordAcquire(0);
+         }
+         track(shouldVerifyLock());
+      }
       return true;
    }
 
@@ -418,7 +769,7 @@ public class Semaphore {
    public static final String lineSeparator = "\n";//(String) java.security.AccessController.doPrivileged(
                                              //    new sun.security.action.GetPropertyAction("line.separator"));
 
-   private static void writeStringsToDeadlockFile(Vector<String> messageLines)
+   static void writeStringsToDeadlockFile(Vector<String> messageLines)
    {
       // create the file, if it doesn't already exist
       File file = new File("logs", "Deadlocks.log");
@@ -543,51 +894,65 @@ public class Semaphore {
       }
    }
 
+   // Takes a snapshot of the locks held by every registered thread.
+   private static Map<Thread, Semaphore[]> snapshotHeldLocks() {
+      List<Map.Entry<Thread, HeldLocks>> entries;
+      synchronized (HELD_LOCKS_REGISTRY) {
+         entries = new ArrayList<>(HELD_LOCKS_REGISTRY.entrySet());
+      }
+      Map<Thread, Semaphore[]> snapshot = new Hashtable<>();
+      for (Map.Entry<Thread, HeldLocks> entry : entries) {
+         snapshot.put(entry.getKey(), entry.getValue().snapshot());
+      }
+      return snapshot;
+   }
+
    public static Vector<String> printLocks(Diagnostics diags) {
       SortedStrings sortedString = new SortedStrings();
-      synchronized(THREAD_HASH) {
-         Enumeration<Thread> enumThreads = THREAD_HASH.keys();
-         Vector<Semaphore> threadsLockedSemaphores;
-         Thread currentThread;
-         StringBuilder threadData = new StringBuilder();
-         String diagOperations;
-         while(enumThreads.hasMoreElements()) {
-            currentThread = (enumThreads.nextElement());
-            threadsLockedSemaphores = THREAD_HASH.get(currentThread);
-            if (threadsLockedSemaphores != null) {
-               diagOperations   = "";
-               // start with a fresh string buffer
-               threadData.setLength(0);
-               // print the thread name
-               threadData.append("Thread ").append(currentThread);
-               if (diags != null) {
-                  // record the operations for this thread, so we can use it
-                  // to sort with once we have the completed string buffer.
-                  diagOperations = diags.getOperationsStringForThread(currentThread);
-                  // print all the Diagnostic associations for this thread
-                  threadData.append(" (Diag Assoc = ").append(diags.getAssociationsStringForThread(currentThread));
-                  // print the operations (as names)
-                  threadData.append(", Operations = ").append(diagOperations).append(")");
-               }
-               // print how many locks this thread has locked
-               threadData.append(" has ").append(threadsLockedSemaphores.size()).append(" locks:");
-               for (int i=0 ; i<threadsLockedSemaphores.size() ; i++) {
-                  Semaphore lockedSemaphore = threadsLockedSemaphores.elementAt(i);
-                  if (lockedSemaphore != null) {
-                     // separate each lock with a CR-LF
-                     threadData.append(Diagnostics.lineSeparator);
-                     // the indent and print each semaphore that is locked.
-                     threadData.append("    ").append(lockedSemaphore);
-                  }
-               }
-               // put the thread data into the sortedString object, sorted by it operations.
-               sortedString.AddString(diagOperations, threadData.toString());
+      Semaphore[] threadsLockedSemaphores;
+      Thread currentThread;
+      StringBuilder threadData = new StringBuilder();
+      String diagOperations;
+      for (Map.Entry<Thread, Semaphore[]> entry : snapshotHeldLocks().entrySet()) {
+         currentThread = entry.getKey();
+         threadsLockedSemaphores = entry.getValue();
+         diagOperations   = "";
+         // start with a fresh string buffer
+         threadData.setLength(0);
+         // print the thread name
+         threadData.append("Thread ").append(currentThread);
+         if (diags != null) {
+            // record the operations for this thread, so we can use it
+            // to sort with once we have the completed string buffer.
+            diagOperations = diags.getOperationsStringForThread(currentThread);
+            // print all the Diagnostic associations for this thread
+            threadData.append(" (Diag Assoc = ").append(diags.getAssociationsStringForThread(currentThread));
+            // print the operations (as names)
+            threadData.append(", Operations = ").append(diagOperations).append(")");
+         }
+         // print how many locks this thread has locked
+         threadData.append(" has ").append(threadsLockedSemaphores.length).append(" locks:");
+         for (Semaphore lockedSemaphore : threadsLockedSemaphores) {
+            if (lockedSemaphore != null) {
+               // separate each lock with a CR-LF
+               threadData.append(Diagnostics.lineSeparator);
+               // the indent and print each semaphore that is locked.
+               threadData.append("    ").append(lockedSemaphore);
             }
          }
+         // put the thread data into the sortedString object, sorted by it operations.
+         sortedString.AddString(diagOperations, threadData.toString());
       }
       return sortedString.ConvertToSortedVectorOfDataStringsAndDestroy();
    }
 
+   /**
+    * @return the lock contention statistics gathered by the SemaphoreProfiler (see SemaphoreProfiler.dump())
+    */
+   public static Vector<String> printLockStats() {
+      return SemaphoreProfiler.dump();
+   }
+
    public static boolean closeSocketOfLongestOperation(Diagnostics diags, long socketOutputTimeAllowanceInMilliseconds) {
       if (diags == null) {
          // If the diags parameter is null, we can not do anything, so return false.
@@ -595,69 +960,62 @@ public class Semaphore {
       }
       // This will hold the LockableDataOutputStream object that is currently locked by
       // the longest socket operation that has a LockableDataOutputStream object locked.
-      // We will use this list after we release our lock on synchronized(_threadHash).
+      // We will close it once we are done looking at the snapshot of held locks.
       LockableDataOutputStream dosWithLongestSocketLock = null;
-      // To avoid writing diagnostics while we have a lock on synchronized(_threadHash),
-      // we create this StringBuffer, and write all diagnostics to it. Then, once we have
-      // exited the synchronized block, we can print the diags safely.
+      // We write all diagnostics to this StringBuffer, and print them once
+      // we have looked at every thread.
       StringBuilder diagOutput = new StringBuilder();
       diagOutput.append("Checking threads for blocking sockets");
       diagOutput.append(':').append(Diagnostics.lineSeparator);
-      synchronized(THREAD_HASH) {
-         Vector<Semaphore> threadsLockedSemaphores;
-         Thread currentThread;
-         long longestOperationTime = -1;
-         // Go through all the threads that have objects locked,
-         // looking for Semaphores that are blocking on socket sends.
-         Enumeration<Thread> enumThreads = THREAD_HASH.keys();
-         while(enumThreads.hasMoreElements()) {
-            currentThread = enumThreads.nextElement();
-            threadsLockedSemaphores = THREAD_HASH.get(currentThread);
-            if (threadsLockedSemaphores != null) {
-               // Look at all the Semaphores that this thread has locked, and
-               // see if it has a Semaphore locked that has a data output stream.
-               for (int i=0 ; i<threadsLockedSemaphores.size() ; i++) {
-                  Semaphore lockedSemaphore = threadsLockedSemaphores.elementAt(i);
-                  if (lockedSemaphore != null) {
-                     if (lockedSemaphore.lockableDataOutputStream != null) {
-                        // Determine how long this lock has been locked for.
-                        long lockTimeLength = lockedSemaphore.lockableDataOutputStream.getLockTimeLengthInMilliseconds();
-                        // If this thread does contain a locked Semaphore of the right
-                        // type, then we check to see if it is the longest known operation.
-                        diagOutput.append("Thread ").append(currentThread);
-                        diagOutput.append(" contains a locked semaphore for a data output stream,");
-                        diagOutput.append(" operationID = ").append(diags.getFirstOperationIDsForThread(currentThread));
-                        diagOutput.append(" locked for ").append(lockTimeLength).append(" milliseconds");
-                        if ((longestOperationTime == -1) || (longestOperationTime > lockTimeLength)) {
-                           if (longestOperationTime == -1) {
-                              diagOutput.append(" (first, longest operation)");
-                           }
-                           else {
-                              diagOutput.append(" (replacing previous longest operation length of ").append(longestOperationTime).append(")");
-                           }
-                           // This is the new longest operation time.
-                           // Check to see if the socket has been locked for a period of time longer than
-                           // the time allowed by the socketOutputTimeAllowanceInMilliseconds parameter.
-                           if (lockTimeLength > socketOutputTimeAllowanceInMilliseconds) {
-                              // record the thread, and the operationID
-                              longestOperationTime = lockTimeLength;
-                              dosWithLongestSocketLock = lockedSemaphore.lockableDataOutputStream;
-                           }
-                           else {
-                              diagOutput.append(", but socket has not been locked for the minimum ");
-                              diagOutput.append(socketOutputTimeAllowanceInMilliseconds).append(" milliseconds.");
-                           }
-                           diagOutput.append(Diagnostics.lineSeparator);
-                           // Since we found this to be true, we don't need to continue
-                           // searching the other Semaphore objects.
-                           break;
-                        }
+      Semaphore[] threadsLockedSemaphores;
+      Thread currentThread;
+      long longestOperationTime = -1;
+      // Go through all the threads that have objects locked,
+      // looking for Semaphores that are blocking on socket sends.
+      for (Map.Entry<Thread, Semaphore[]> entry : snapshotHeldLocks().entrySet()) {
+         currentThread = entry.getKey();
+         threadsLockedSemaphores = entry.getValue();
+         // Look at all the Semaphores that this thread has locked, and
+         // see if it has a Semaphore locked that has a data output stream.
+         for (Semaphore lockedSemaphore : threadsLockedSemaphores) {
+            if (lockedSemaphore != null) {
+               if (lockedSemaphore.lockableDataOutputStream != null) {
+                  // Determine how long this lock has been locked for.
+                  long lockTimeLength = lockedSemaphore.lockableDataOutputStream.getLockTimeLengthInMilliseconds();
+                  // If this thread does contain a locked Semaphore of the right
+                  // type, then we check to see if it is the longest known operation.
+                  diagOutput.append("Thread ").append(currentThread);
+                  diagOutput.append(" contains a locked semaphore for a data output stream,");
+                  diagOutput.append(" operationID = ").append(diags.getFirstOperationIDsForThread(currentThread));
+                  diagOutput.append(" locked for ").append(lockTimeLength).append(" milliseconds");
+                  if ((longestOperationTime == -1) || (longestOperationTime > lockTimeLength)) {
+                     if (longestOperationTime == -1) {
+                        diagOutput.append(" (first, longest operation)");
+                     }
+                     else {
+                        diagOutput.append(" (replacing previous longest operation length of ").append(longestOperationTime).append(")");
+                     }
+                     // This is the new longest operation time.
+                     // Check to see if the socket has been locked for a period of time longer than
+                     // the time allowed by the socketOutputTimeAllowanceInMilliseconds parameter.
+                     if (lockTimeLength > socketOutputTimeAllowanceInMilliseconds) {
+                        // record the thread, and the operationID
+                        longestOperationTime = lockTimeLength;
+                        dosWithLongestSocketLock = lockedSemaphore.lockableDataOutputStream;
+                     }
+                     else {
+                        diagOutput.append(", but socket has not been locked for the minimum ");
+                        diagOutput.append(socketOutputTimeAllowanceInMilliseconds).append(" milliseconds.");
                      }
+                     diagOutput.append(Diagnostics.lineSeparator);
+                     // Since we found this to be true, we don't need to continue
+                     // searching the other Semaphore objects.
+                     break;
                   }
                }
-            } // end if (threadsLockedSemaphores != null)
-         } // end while(enumThreads.hasMoreElements())
-      } // end synchronized(_threadHash)
+            }
+         }
+      } // end for each thread
 
       // Print the results into the log file and/or to the console.
       diags.logMessage(Diagnostics.TYPE_INFO, diagOutput.toString());
@@ -678,32 +1036,32 @@ public class Semaphore {
       return false;
    }
 
-   public static synchronized boolean addNewThreadToTrackTable() {
-      // Update the Hashtable that contains a Vector
-      // for each thread that owns a Semaphore.
-      Vector<Semaphore> threadsLockedSemaphores = THREAD_HASH.get(Thread.currentThread());
-      // If the thread is already in our threadHash table, do nothing.
-      if (threadsLockedSemaphores == null)
-      {
-         threadsLockedSemaphores = new Vector<>();
-         // Now put the new Vector into the Hashtable.
-         THREAD_HASH.put(Thread.currentThread(), threadsLockedSemaphores);
-         return true;
+   public static boolean addNewThreadToTrackTable() {
+      // Make sure the current thread is in the registry of the threads' lock stacks.
+      // If the thread is already in the registry, do nothing.
+      Thread currentThread = Thread.currentThread();
+      boolean added = !HELD_LOCKS_REGISTRY.containsKey(currentThread);
+      if (added) {
+         HELD_LOCKS_REGISTRY.put(currentThread, HELD_LOCKS.get());
       }
-      return false;
+      return added;
    }
 
    public static boolean removeDyingThread(Thread threadToRemove) {
-      Vector<Semaphore> threadsLockedSemaphores = THREAD_HASH.remove(threadToRemove);
-      if (threadsLockedSemaphores == null) {
+      HeldLocks heldLocks = HELD_LOCKS_REGISTRY.remove(threadToRemove);
+      if (threadToRemove == Thread.currentThread()) {
+         HELD_LOCKS.remove();
+      }
+      if (heldLocks == null) {
          return false;
       }
-      if (!threadsLockedSemaphores.isEmpty()) {
+      Semaphore[] threadsLockedSemaphores = heldLocks.snapshot();
+      if (threadsLockedSemaphores.length > 0) {
          Vector<String> errors = new Vector<>();
          errors.add(StringUtils.getTimeStamp());
          errors.add("Thread dying before all its object locks have been released:");
          errors.add(threadToRemove.toString());
-         errors.add(threadsLockedSemaphores.toString());
+         errors.add(Arrays.toString(threadsLockedSemaphores));
          errors.add(getCallStack(new Exception()));
 
          writeStringsToDeadlockFile(errors);
@@ -0,0 +1,220 @@
+package ostrowski.util;
+
+// Java Imports
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Gathers lock contention statistics for every Semaphore while profiling is on: how often
+ * each is locked, how often a thread had to wait for it, for how long, how long it is held,
+ * and (for a sample of the waits) which call sites had to wait. The statistics are kept
+ * both per Semaphore and per Semaphore order. Semaphores are grouped by name, without any
+ * instance detail in parentheses, so all the "MonitoredObject (...)" Semaphores share one
+ * LockStats, as they do for Semaphore.VerificationMode.FIRST_N.
+ *
+ * Profiling is off by default. While it is off, locking a Semaphore only reads the flag.
+ * While it is on, each lock also reads the clock twice and updates a few LongAdders, and
+ * one in every setCallSiteSampling() waits also walks the stack to find the caller.
+ * The statistics can be read with dump() (much like Semaphore.printLocks()), or through
+ * JMX, once registerMBean() has been called.
+ */
+public class SemaphoreProfiler implements SemaphoreProfilerMBean
+{
+   public static final String OBJECT_NAME = "ostrowski.util:type=SemaphoreProfiler";
+
+   private static final SemaphoreProfiler INSTANCE = new SemaphoreProfiler();
+
+   private static volatile boolean profiling          = false;
+   private static volatile int     callSiteSampleRate = 16;
+
+   private static final ConcurrentHashMap<String, LockStats>  STATS_BY_SEMAPHORE = new ConcurrentHashMap<>();
+   private static final ConcurrentHashMap<Integer, LockStats> STATS_BY_ORDER     = new ConcurrentHashMap<>();
+
+   private static final StackWalker STACK_WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+   private static ObjectName objectName = null;
+
+   private SemaphoreProfiler()
+   {
+   }
+
+   public static boolean isEnabled()
+   {
+      return profiling;
+   }
+
+   public static void setEnabled(boolean enabled)
+   {
+      profiling = enabled;
+   }
+
+   /**
+    * @param oneIn The call site of one in every oneIn contended locks is recorded (0 to record none)
+    */
+   public static void setCallSiteSampling(int oneIn)
+   {
+      callSiteSampleRate = oneIn;
+   }
+
+   static LockStats statsForSemaphore(String lockSite)
+   {
+      LockStats stats = STATS_BY_SEMAPHORE.get(lockSite);
+      if (stats == null) {
+         stats = STATS_BY_SEMAPHORE.computeIfAbsent(lockSite, LockStats::new);
+      }
+      return stats;
+   }
+
+   static LockStats statsForOrder(int order)
+   {
+      LockStats stats = STATS_BY_ORDER.get(order);
+      if (stats == null) {
+         stats = STATS_BY_ORDER.computeIfAbsent(order, o -> new LockStats("order " + o));
+      }
+      return stats;
+   }
+
+   /**
+    * @return true if the call site of a contended lock should be recorded this time
+    */
+   static boolean sampleCallSite()
+   {
+      int oneIn = callSiteSampleRate;
+      return (oneIn > 0) && ((oneIn == 1) || (ThreadLocalRandom.current().nextInt(oneIn) == 0));
+   }
+
+   /**
+    * @return the method (with its file and line) that called into Semaphore, or one of its helpers
+    */
+   static String getCallSite()
+   {
+      return STACK_WALKER.walk(frames -> frames.filter(frame -> !isLockingClass(frame.getDeclaringClass()))
+                                               .findFirst()
+                                               .map(frame -> frame.getClassName() + "." + frame.getMethodName()
+                                                             + "(" + frame.getFileName() + ":" + frame.getLineNumber() + ")")
+                                               .orElse("(unknown)"));
+   }
+
+   private static boolean isLockingClass(Class<?> cls)
+   {
+      return (cls == Semaphore.class) || (cls == SemaphoreProfiler.class) || (cls == SemaphoreAutoLocker.class);
+   }
+
+   /**
+    * @return the statistics of each Semaphore, by name
+    */
+   public static Map<String, LockStats> getStatsBySemaphore()
+   {
+      return new TreeMap<>(STATS_BY_SEMAPHORE);
+   }
+
+   /**
+    * @return the statistics of each Semaphore order
+    */
+   public static Map<Integer, LockStats> getStatsByOrder()
+   {
+      return new TreeMap<>(STATS_BY_ORDER);
+   }
+
+   /**
+    * @return a description of every Semaphore that has been locked while profiling,
+    *         most total wait time first, followed by that of every order.
+    */
+   public static Vector<String> dump()
+   {
+      Vector<String> lines = new Vector<>();
+      for (LockStats stats : sortedByWaitTime()) {
+         lines.add(stats.toString());
+      }
+      for (LockStats stats : getStatsByOrder().values()) {
+         lines.add(stats.toString());
+      }
+      return lines;
+   }
+
+   private static List<LockStats> sortedByWaitTime()
+   {
+      List<LockStats> sorted = new ArrayList<>(STATS_BY_SEMAPHORE.values());
+      sorted.sort((a, b) -> Long.compare(b.getTotalWaitNanos(), a.getTotalWaitNanos()));
+      return sorted;
+   }
+
+   public static void resetStats()
+   {
+      for (LockStats stats : STATS_BY_SEMAPHORE.values()) {
+         stats.reset();
+      }
+      for (LockStats stats : STATS_BY_ORDER.values()) {
+         stats.reset();
+      }
+   }
+
+   /**
+    * Registers the profiler with the platform MBean server, under the name OBJECT_NAME.
+    */
+   public static synchronized void registerMBean()
+   {
+      if (objectName != null) {
+         return;
+      }
+      try {
+         ObjectName name = new ObjectName(OBJECT_NAME);
+         ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+         objectName = name;
+      } catch (JMException e) {
+         e.printStackTrace();
+      }
+   }
+
+   public static synchronized void unregisterMBean()
+   {
+      if (objectName == null) {
+         return;
+      }
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+         if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+         }
+      } catch (JMException e) {
+         e.printStackTrace();
+      }
+      objectName = null;
+   }
+
+   @Override public boolean isProfiling()                    { return profiling;}
+   @Override public void    setProfiling(boolean enabled)    { profiling = enabled;}
+   @Override public int     getCallSiteSampleRate()          { return callSiteSampleRate;}
+   @Override public void    setCallSiteSampleRate(int oneIn) { callSiteSampleRate = oneIn;}
+   @Override public void    reset()                          { resetStats();}
+
+   @Override
+   public String[] getSemaphoreStats()
+   {
+      List<String> stats = new ArrayList<>();
+      for (LockStats semaphoreStats : sortedByWaitTime()) {
+         stats.add(semaphoreStats.toString());
+      }
+      return stats.toArray(new String[0]);
+   }
+
+   @Override
+   public String[] getOrderStats()
+   {
+      List<String> stats = new ArrayList<>();
+      for (LockStats orderStats : getStatsByOrder().values()) {
+         stats.add(orderStats.toString());
+      }
+      return stats.toArray(new String[0]);
+   }
+}
@@ -0,0 +1,25 @@
+package ostrowski.util;
+
+/**
+ * The JMX view of the SemaphoreProfiler (see SemaphoreProfiler.registerMBean()).
+ */
+public interface SemaphoreProfilerMBean
+{
+   boolean isProfiling();
+   void    setProfiling(boolean profiling);
+
+   int  getCallSiteSampleRate();
+   void setCallSiteSampleRate(int oneIn);
+
+   /**
+    * @return the statistics of each Semaphore, most total wait time first
+    */
+   String[] getSemaphoreStats();
+
+   /**
+    * @return the statistics of each Semaphore order, lowest order first
+    */
+   String[] getOrderStats();
+
+   void reset();
+}
@@ -0,0 +1,98 @@
+package ostrowski.util;
+
+// Java Imports
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free FIFO for exactly one producer and one consumer thread at a time.
+ * (The producer, or the consumer, may be a different thread from one call to the next,
+ * as long as something else, such as a lock, orders those calls.)
+ * Neither offer() nor poll() ever waits, or allocates anything: each side only writes its
+ * own counter, and only reads the other side's counter when the copy it cached last time
+ * says the ring is full (or empty). The two counters are kept on separate cache lines,
+ * so the producer and the consumer don't slow each other down by writing them.
+ */
+public class SpscRing<E>
+{
+   // The counters live in one array, 128 bytes apart, and away from the array's header.
+   private static final int HEAD    = 8;
+   private static final int TAIL    = 24;
+   private static final int PADDING = 32;
+
+   private final Object[]        items;
+   private final int             mask;
+   // counters[HEAD] is the index of the next item to poll, counters[TAIL] that of the next item to offer.
+   private final AtomicLongArray counters = new AtomicLongArray(PADDING);
+   // Only used by the producer.
+   private long                  cachedHead = 0;
+   // Only used by the consumer.
+   private long                  cachedTail = 0;
+
+   /**
+    * @param capacity The number of items the ring can hold, rounded up to a power of two
+    */
+   public SpscRing(int capacity)
+   {
+      int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+      items = new Object[size];
+      mask = size - 1;
+   }
+
+   public int getCapacity()
+   {
+      return items.length;
+   }
+
+   /**
+    * @return false if the ring is full. Must only be called by the producer.
+    */
+   public boolean offer(E item)
+   {
+      long tail = counters.get(TAIL);
+      if ((tail - cachedHead) >= items.length) {
+         cachedHead = counters.get(HEAD);
+         if ((tail - cachedHead) >= items.length) {
+            return false;
+         }
+      }
+      items[(int) tail & mask] = item;
+      // The release store publishes the item before the consumer can see the new tail.
+      counters.lazySet(TAIL, tail + 1);
+      return true;
+   }
+
+   /**
+    * @return the oldest item, or null if the ring is empty. Must only be called by the consumer.
+    */
+   @SuppressWarnings("unchecked")
+   public E poll()
+   {
+      long head = counters.get(HEAD);
+      if (head >= cachedTail) {
+         cachedTail = counters.get(TAIL);
+         if (head >= cachedTail) {
+            return null;
+         }
+      }
+      int index = (int) head & mask;
+      E item = (E) items[index];
+      items[index] = null;
+      counters.lazySet(HEAD, head + 1);
+      return item;
+   }
+
+   /**
+    * @return the number of items in the ring. This is only a snapshot when called by a thread
+    *         that is neither the producer nor the consumer.
+    */
+   public int size()
+   {
+      long head = counters.get(HEAD);
+      return (int) Math.max(0, counters.get(TAIL) - head);
+   }
+
+   public boolean isEmpty()
+   {
+      return size() == 0;
+   }
+}
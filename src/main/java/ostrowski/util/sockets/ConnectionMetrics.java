@@ -0,0 +1,311 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ostrowski.protocol.SyncRequest;
+import ostrowski.util.LatencyHistogram;
+
+/**
+ * The traffic, timing and error counts of one SocketConnector. Everything is recorded with
+ * LongAdders and LatencyHistograms, so recording is lock-free and allocation-free, and costs
+ * a few tens of nanoseconds. The queue depths are read from the connector when asked for.
+ * The metrics can be read directly, as a consistent-enough Snapshot, or through JMX, once
+ * registerMBean() has been called (the MBean is unregistered when the connection closes).
+ * Objects handed over as they are on a loopback connection count as frames of 0 bytes.
+ */
+public class ConnectionMetrics implements ConnectionMetricsMBean
+{
+   public static final String JMX_DOMAIN = "ostrowski.util.sockets";
+
+   private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+   private final SocketConnector connector;
+   private final LongAdder framesSent          = new LongAdder();
+   private final LongAdder bytesSent           = new LongAdder();
+   private final LongAdder framesReceived      = new LongAdder();
+   private final LongAdder bytesReceived       = new LongAdder();
+   private final LongAdder requestsSent        = new LongAdder();
+   private final LongAdder requestsAnswered    = new LongAdder();
+   private final LongAdder requestTimeouts     = new LongAdder();
+   private final LongAdder requestFailures     = new LongAdder();
+   private final LongAdder sendErrors          = new LongAdder();
+   private final LongAdder decodeErrors        = new LongAdder();
+   private final LongAdder droppedMessages     = new LongAdder();
+   private final LongAdder overflowDisconnects = new LongAdder();
+   private final LatencyHistogram encodeTime   = new LatencyHistogram("encode time", "ns");
+   private final LatencyHistogram decodeTime   = new LatencyHistogram("decode time", "ns");
+   // The time from sending each type of request until its answer arrived.
+   private final ConcurrentHashMap<Class<?>, LatencyHistogram> roundTrips = new ConcurrentHashMap<>();
+   private ObjectName objectName = null;
+
+   ConnectionMetrics(SocketConnector connector)
+   {
+      this.connector = connector;
+   }
+
+   void recordSent(int bytes)
+   {
+      framesSent.increment();
+      bytesSent.add(bytes);
+   }
+
+   void recordReceived(int bytes)
+   {
+      framesReceived.increment();
+      bytesReceived.add(bytes);
+   }
+
+   void recordEncode(long nanos)      { encodeTime.record(nanos);}
+   void recordDecode(long nanos)      { decodeTime.record(nanos);}
+   void recordRequestSent()           { requestsSent.increment();}
+   void recordRequestTimeout()        { requestTimeouts.increment();}
+   void recordRequestFailure()        { requestFailures.increment();}
+   void recordSendError()             { sendErrors.increment();}
+   void recordDecodeError()           { decodeErrors.increment();}
+   void recordDroppedMessage()        { droppedMessages.increment();}
+   void recordOverflowDisconnect()    { overflowDisconnects.increment();}
+
+   /**
+    * Records the round trip of a request whose answer has just arrived.
+    */
+   void recordAnswer(SyncRequest request)
+   {
+      requestsAnswered.increment();
+      long sentNanos = request.getSentNanos();
+      if (sentNanos != 0) {
+         LatencyHistogram histogram = roundTrips.get(request.getClass());
+         if (histogram == null) {
+            histogram = roundTrips.computeIfAbsent(request.getClass(),
+                                                   cls -> new LatencyHistogram(cls.getSimpleName() + " round trip", "us"));
+         }
+         histogram.record((System.nanoTime() - sentNanos) / 1000);
+      }
+   }
+
+   @Override public String getConnectionName()    { return connector.getName();}
+   @Override public long getFramesSent()          { return framesSent.sum();}
+   @Override public long getBytesSent()           { return bytesSent.sum();}
+   @Override public long getFramesReceived()      { return framesReceived.sum();}
+   @Override public long getBytesReceived()       { return bytesReceived.sum();}
+   @Override public long getRequestsSent()        { return requestsSent.sum();}
+   @Override public long getRequestsAnswered()    { return requestsAnswered.sum();}
+   @Override public long getRequestTimeouts()     { return requestTimeouts.sum();}
+   @Override public long getRequestFailures()     { return requestFailures.sum();}
+   @Override public long getSendErrors()          { return sendErrors.sum();}
+   @Override public long getDecodeErrors()        { return decodeErrors.sum();}
+   @Override public long getDroppedMessages()     { return droppedMessages.sum();}
+   @Override public long getOverflowDisconnects() { return overflowDisconnects.sum();}
+
+   @Override public int getOutboundQueuedFrames() { return connector.outbound.getQueuedFrames();}
+   @Override public int getOutboundQueuedBytes()  { return connector.outbound.getQueuedBytes();}
+   @Override public int getPendingRequests()      { return connector.pendingRequests.size();}
+
+   @Override
+   public int getDecodeQueueDepth()
+   {
+      SerialStage stage = connector.getDecodeStage();
+      return (stage == null) ? 0 : stage.getDepth();
+   }
+
+   @Override
+   public int getDispatchQueueDepth()
+   {
+      SerialStage stage = connector.getDispatchStage();
+      return (stage == null) ? 0 : stage.getDepth();
+   }
+
+   @Override public double getEncodeMeanNanos() { return encodeTime.getMean();}
+   @Override public long   getEncodeP99Nanos()  { return encodeTime.getValueAtPercentile(99);}
+   @Override public double getDecodeMeanNanos() { return decodeTime.getMean();}
+   @Override public long   getDecodeP99Nanos()  { return decodeTime.getValueAtPercentile(99);}
+
+   public LatencyHistogram getEncodeTime() { return encodeTime;}
+   public LatencyHistogram getDecodeTime() { return decodeTime;}
+
+   /**
+    * @return the round trip latency histogram of each type of request answered so far
+    */
+   public Map<Class<?>, LatencyHistogram> getRoundTrips()
+   {
+      return Collections.unmodifiableMap(roundTrips);
+   }
+
+   @Override
+   public String[] getRoundTripLatencies()
+   {
+      List<String> latencies = new ArrayList<>();
+      for (LatencyHistogram histogram : roundTrips.values()) {
+         latencies.add(histogram.toString());
+      }
+      Collections.sort(latencies);
+      return latencies.toArray(new String[0]);
+   }
+
+   @Override
+   public void reset()
+   {
+      for (LongAdder counter : new LongAdder[] {framesSent, bytesSent, framesReceived, bytesReceived,
+                                                requestsSent, requestsAnswered, requestTimeouts, requestFailures,
+                                                sendErrors, decodeErrors, droppedMessages, overflowDisconnects}) {
+         counter.reset();
+      }
+      encodeTime.reset();
+      decodeTime.reset();
+      roundTrips.clear();
+   }
+
+   public Snapshot snapshot()
+   {
+      return new Snapshot(this);
+   }
+
+   /**
+    * Registers these metrics with the platform MBean server, under the name
+    * ostrowski.util.sockets:type=SocketConnector,name=(connection name),id=(unique number)
+    */
+   public synchronized void registerMBean()
+   {
+      if (objectName != null) {
+         return;
+      }
+      try {
+         ObjectName name = new ObjectName(JMX_DOMAIN + ":type=SocketConnector,name=" + ObjectName.quote(connector.getName())
+                                          + ",id=" + NEXT_ID.getAndIncrement());
+         ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+         objectName = name;
+      } catch (JMException e) {
+         e.printStackTrace();
+      }
+   }
+
+   public synchronized void unregisterMBean()
+   {
+      if (objectName == null) {
+         return;
+      }
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+         if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+         }
+      } catch (JMException e) {
+         e.printStackTrace();
+      }
+      objectName = null;
+   }
+
+   public synchronized ObjectName getObjectName()
+   {
+      return objectName;
+   }
+
+   @Override
+   public String toString()
+   {
+      return snapshot().toString();
+   }
+
+   /**
+    * The metrics of a connection at one point in time. Each value is read once, so values
+    * recorded while the snapshot is taken may show up in some values and not yet in others.
+    */
+   public static class Snapshot
+   {
+      public final String connectionName;
+      public final long   timeMillis;
+      public final long   framesSent;
+      public final long   bytesSent;
+      public final long   framesReceived;
+      public final long   bytesReceived;
+      public final long   requestsSent;
+      public final long   requestsAnswered;
+      public final long   requestTimeouts;
+      public final long   requestFailures;
+      public final long   sendErrors;
+      public final long   decodeErrors;
+      public final long   droppedMessages;
+      public final long   overflowDisconnects;
+      public final int    outboundQueuedFrames;
+      public final int    outboundQueuedBytes;
+      public final int    pendingRequests;
+      public final int    decodeQueueDepth;
+      public final int    dispatchQueueDepth;
+      public final LatencyHistogram              encodeTime;
+      public final LatencyHistogram              decodeTime;
+      // Keyed by the simple name of each type of request.
+      public final Map<String, LatencyHistogram> roundTrips;
+
+      Snapshot(ConnectionMetrics metrics)
+      {
+         connectionName       = metrics.getConnectionName();
+         timeMillis           = System.currentTimeMillis();
+         framesSent           = metrics.getFramesSent();
+         bytesSent            = metrics.getBytesSent();
+         framesReceived       = metrics.getFramesReceived();
+         bytesReceived        = metrics.getBytesReceived();
+         requestsSent         = metrics.getRequestsSent();
+         requestsAnswered     = metrics.getRequestsAnswered();
+         requestTimeouts      = metrics.getRequestTimeouts();
+         requestFailures      = metrics.getRequestFailures();
+         sendErrors           = metrics.getSendErrors();
+         decodeErrors         = metrics.getDecodeErrors();
+         droppedMessages      = metrics.getDroppedMessages();
+         overflowDisconnects  = metrics.getOverflowDisconnects();
+         outboundQueuedFrames = metrics.getOutboundQueuedFrames();
+         outboundQueuedBytes  = metrics.getOutboundQueuedBytes();
+         pendingRequests      = metrics.getPendingRequests();
+         decodeQueueDepth     = metrics.getDecodeQueueDepth();
+         dispatchQueueDepth   = metrics.getDispatchQueueDepth();
+         encodeTime           = metrics.encodeTime.snapshot();
+         decodeTime           = metrics.decodeTime.snapshot();
+         Map<String, LatencyHistogram> trips = new TreeMap<>();
+         for (Map.Entry<Class<?>, LatencyHistogram> entry : metrics.roundTrips.entrySet()) {
+            trips.put(entry.getKey().getSimpleName(), entry.getValue().snapshot());
+         }
+         roundTrips = Collections.unmodifiableMap(trips);
+      }
+
+      @Override
+      public String toString()
+      {
+         StringBuilder sb = new StringBuilder();
+         sb.append("ConnectionMetrics ").append(connectionName)
+           .append(": sent ").append(framesSent).append(" frames (").append(bytesSent).append(" bytes)")
+           .append(", received ").append(framesReceived).append(" frames (").append(bytesReceived).append(" bytes)")
+           .append(", requests sent = ").append(requestsSent)
+           .append(", answered = ").append(requestsAnswered)
+           .append(", timed out = ").append(requestTimeouts)
+           .append(", failed = ").append(requestFailures)
+           .append(", send errors = ").append(sendErrors)
+           .append(", decode errors = ").append(decodeErrors)
+           .append(", dropped = ").append(droppedMessages)
+           .append(", overflow disconnects = ").append(overflowDisconnects)
+           .append(", queued = ").append(outboundQueuedFrames).append(" frames (").append(outboundQueuedBytes).append(" bytes)")
+           .append(", pending requests = ").append(pendingRequests)
+           .append(", decode queue = ").append(decodeQueueDepth)
+           .append(", dispatch queue = ").append(dispatchQueueDepth)
+           .append("; ").append(encodeTime)
+           .append("; ").append(decodeTime);
+         for (LatencyHistogram roundTrip : roundTrips.values()) {
+            sb.append("; ").append(roundTrip);
+         }
+         return sb.toString();
+      }
+   }
+}
@@ -0,0 +1,46 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+/**
+ * The JMX view of the ConnectionMetrics of a SocketConnector (see ConnectionMetrics.registerMBean()).
+ */
+public interface ConnectionMetricsMBean
+{
+   String getConnectionName();
+
+   long getFramesSent();
+   long getBytesSent();
+   long getFramesReceived();
+   long getBytesReceived();
+
+   long getRequestsSent();
+   long getRequestsAnswered();
+   long getRequestTimeouts();
+   long getRequestFailures();
+
+   long getSendErrors();
+   long getDecodeErrors();
+   long getDroppedMessages();
+   long getOverflowDisconnects();
+
+   int  getOutboundQueuedFrames();
+   int  getOutboundQueuedBytes();
+   int  getPendingRequests();
+   int  getDecodeQueueDepth();
+   int  getDispatchQueueDepth();
+
+   double getEncodeMeanNanos();
+   long   getEncodeP99Nanos();
+   double getDecodeMeanNanos();
+   long   getDecodeP99Nanos();
+
+   /**
+    * @return a summary of the request round trip latency of each type of SyncRequest
+    */
+   String[] getRoundTripLatencies();
+
+   void reset();
+}
@@ -0,0 +1,79 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses frames with the JDK's raw deflate (no zlib header or checksum, since TCP
+ * already checks the data). The default level favors speed, since by far most of what
+ * a SocketConnector sends is small and repetitive. The native memory of the Deflater and
+ * Inflater is released by their cleaners once the connector is no longer referenced.
+ */
+public class DeflateFrameCodec implements IFrameCodec
+{
+   public static final String NAME = "deflate";
+
+   private final int    level;
+   private final byte[] overrun  = new byte[1];
+   private Deflater     deflater = null;
+   private Inflater     inflater = null;
+
+   public DeflateFrameCodec()
+   {
+      this(Deflater.BEST_SPEED);
+   }
+
+   public DeflateFrameCodec(int level)
+   {
+      this.level = level;
+   }
+
+   @Override
+   public String getName()
+   {
+      return NAME;
+   }
+
+   @Override
+   public int compress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset, int destLength)
+   {
+      // Most connections only ever compress or decompress, so only create what we use.
+      if (deflater == null) {
+         deflater = new Deflater(level, true/*nowrap*/);
+      }
+      deflater.reset();
+      deflater.setInput(src, srcOffset, srcLength);
+      deflater.finish();
+      int size = deflater.deflate(dest, destOffset, destLength);
+      return deflater.finished() ? size : -1;
+   }
+
+   @Override
+   public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset, int destLength) throws IOException
+   {
+      if (inflater == null) {
+         inflater = new Inflater(true/*nowrap*/);
+      }
+      inflater.reset();
+      inflater.setInput(src, srcOffset, srcLength);
+      try {
+         int size = inflater.inflate(dest, destOffset, destLength);
+         // When dest fills up exactly, the inflater may not have reached the end of the data yet.
+         // Make sure there is nothing more than what we expect.
+         if ((size == destLength) && !inflater.finished() && (inflater.inflate(overrun) != 0)) {
+            size++;
+         }
+         if ((size != destLength) || !inflater.finished()) {
+            throw new IOException("compressed frame doesn't decompress to " + destLength + " bytes");
+         }
+      } catch (DataFormatException e) {
+         throw new IOException("malformed compressed frame", e);
+      }
+   }
+}
@@ -0,0 +1,251 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import ostrowski.util.BufferPool;
+
+/**
+ * Compresses the frames one side of a connection sends, or decompresses the frames it
+ * receives, with the IFrameCodec both sides agreed on in their ProtocolHello.
+ * A compressed frame is flagged with FrameOutputBuffer.FLAG_COMPRESSED, and its payload is
+ * the varint size of the original payload followed by the compressed payload.
+ *
+ * Only payloads of at least 'threshold' bytes are compressed, and only if that makes them
+ * smaller. The compressor also keeps an eye on how much it saves: when a window of attempts
+ * saves less than 'minSavings' of the bytes, it stops trying for a while (longer each time
+ * it happens in a row), since the CPU isn't buying anything. After that it tries again, in
+ * case the traffic has changed.
+ * The outbound side is only used while holding the connection's output lock, and the
+ * inbound side only by the thread reading the connection, so neither is synchronized.
+ */
+public class FrameCompressor
+{
+   public static final int    DEFAULT_THRESHOLD   = 512;
+   public static final double DEFAULT_MIN_SAVINGS = 0.10;
+
+   // The number of compression attempts we judge the savings over.
+   static final int WINDOW_FRAMES      = 32;
+   // The number of frames sent uncompressed after a window that didn't save enough, which doubles
+   // for each window in a row that didn't save enough.
+   static final int MIN_BACKOFF_FRAMES = 256;
+   static final int MAX_BACKOFF_FRAMES = 16 * 1024;
+
+   private static final ConcurrentHashMap<String, Supplier<? extends IFrameCodec>> CODECS = new ConcurrentHashMap<>();
+   private static final List<String>                                             CODEC_NAMES = new ArrayList<>();
+
+   static {
+      registerCodec(DeflateFrameCodec.NAME, DeflateFrameCodec::new);
+   }
+
+   /**
+    * Make a codec available for negotiation. Both sides of a connection must register it under the same name.
+    */
+   public static synchronized void registerCodec(String name, Supplier<? extends IFrameCodec> supplier)
+   {
+      if (CODECS.put(name, supplier) == null) {
+         CODEC_NAMES.add(name);
+      }
+   }
+
+   /**
+    * @return the names of every registered codec, in the order they were registered.
+    */
+   public static synchronized List<String> getCodecNames()
+   {
+      return new ArrayList<>(CODEC_NAMES);
+   }
+
+   /**
+    * Pick the codec two sides of a connection will use: the first codec that one side offers
+    * that the other side offers too. Both sides must pass the same 'sender' list (the one of
+    * the side sending the frames) to agree on the same codec.
+    * @return the chosen codec, or null if they have none in common, or it isn't registered here.
+    */
+   public static String negotiate(List<String> senderCodecs, List<String> receiverCodecs)
+   {
+      for (String name : senderCodecs) {
+         if (receiverCodecs.contains(name) && CODECS.containsKey(name)) {
+            return name;
+         }
+      }
+      return null;
+   }
+
+   private final IFrameCodec codec;
+   private final BufferPool  bufferPool;
+   private final int         threshold;
+   private final double      minSavings;
+
+   private int  windowFrames   = 0;
+   private long windowBytesIn  = 0;
+   private long windowBytesOut = 0;
+   private int  backoffFrames  = MIN_BACKOFF_FRAMES;
+   private int  skipFrames     = 0;
+
+   private final LongAdder framesCompressed = new LongAdder();
+   private final LongAdder framesSkipped    = new LongAdder();
+   private final LongAdder bytesIn          = new LongAdder();
+   private final LongAdder bytesOut         = new LongAdder();
+   private final LongAdder nanosSpent       = new LongAdder();
+   private final LongAdder backoffs         = new LongAdder();
+
+   /**
+    * @param codecName  The name of a registered codec
+    * @param threshold  The smallest payload worth compressing
+    * @param minSavings The fraction of the bytes compression must save to be worth the CPU
+    */
+   public FrameCompressor(String codecName, BufferPool bufferPool, int threshold, double minSavings)
+   {
+      Supplier<? extends IFrameCodec> supplier = CODECS.get(codecName);
+      if (supplier == null) {
+         throw new IllegalArgumentException("no frame codec registered as " + codecName);
+      }
+      this.codec = supplier.get();
+      this.bufferPool = bufferPool;
+      this.threshold = threshold;
+      this.minSavings = minSavings;
+   }
+
+   public String getCodecName()       { return codec.getName();}
+   public long   getFramesCompressed(){ return framesCompressed.sum();}
+   public long   getFramesSkipped()   { return framesSkipped.sum();}
+   public long   getBytesIn()         { return bytesIn.sum();}
+   public long   getBytesOut()        { return bytesOut.sum();}
+   public long   getNanosSpent()      { return nanosSpent.sum();}
+   public long   getBackoffCount()    { return backoffs.sum();}
+
+   /**
+    * @return the compressed size of the frames it compressed (or decompressed), over their original size.
+    */
+   public double getRatio()
+   {
+      long in = bytesIn.sum();
+      return (in == 0) ? 1 : ((double) bytesOut.sum()) / in;
+   }
+
+   /**
+    * Compress the payload of the frame in place, if it is worth it. Call this after the
+    * payload has been written, and before endFrame().
+    * @return true if the frame was compressed, and so must be flagged with FLAG_COMPRESSED
+    */
+   public boolean compress(FrameOutputBuffer frame)
+   {
+      int frameSize = frame.size();
+      int payloadSize = frameSize - FrameOutputBuffer.HEADER_SIZE;
+      if (payloadSize < threshold) {
+         return false;
+      }
+      if (skipFrames > 0) {
+         skipFrames--;
+         framesSkipped.increment();
+         return false;
+      }
+      long start = System.nanoTime();
+      byte[] dest = bufferPool.acquire(frameSize);
+      int pos = putVarInt(dest, FrameOutputBuffer.HEADER_SIZE, payloadSize);
+      // Anything that isn't smaller than the original isn't worth sending.
+      int size = codec.compress(frame.array(), FrameOutputBuffer.HEADER_SIZE, payloadSize, dest, pos, frameSize - 1 - pos);
+      boolean compressed = (size >= 0);
+      if (compressed) {
+         frame.replace(dest, pos + size);
+         framesCompressed.increment();
+      }
+      else {
+         bufferPool.release(dest);
+      }
+      int compressedSize = compressed ? ((pos + size) - FrameOutputBuffer.HEADER_SIZE) : payloadSize;
+      nanosSpent.add(System.nanoTime() - start);
+      bytesIn.add(payloadSize);
+      bytesOut.add(compressedSize);
+      judge(payloadSize, compressedSize);
+      return compressed;
+   }
+
+   private void judge(int payloadSize, int compressedSize)
+   {
+      windowBytesIn += payloadSize;
+      windowBytesOut += compressedSize;
+      if (++windowFrames < WINDOW_FRAMES) {
+         return;
+      }
+      if (windowBytesOut > (windowBytesIn * (1 - minSavings))) {
+         skipFrames = backoffFrames;
+         backoffFrames = Math.min(backoffFrames * 2, MAX_BACKOFF_FRAMES);
+         backoffs.increment();
+      }
+      else {
+         backoffFrames = MIN_BACKOFF_FRAMES;
+      }
+      windowFrames = 0;
+      windowBytesIn = 0;
+      windowBytesOut = 0;
+   }
+
+   /**
+    * Decompress the payload of a frame flagged with FLAG_COMPRESSED into a buffer borrowed
+    * from the buffer pool, and point 'into' at it.
+    * @param maxSize The largest decompressed payload to accept. Larger ones are taken to be corrupt.
+    * @return the borrowed buffer, which the caller must release once it has decoded the frame
+    */
+   public byte[] decompress(byte[] src, int offset, int length, FrameInputBuffer into, int maxSize) throws IOException
+   {
+      long start = System.nanoTime();
+      int end = offset + length;
+      int size = 0;
+      int pos = offset;
+      for (int shift = 0; ; shift += 7) {
+         if ((pos >= end) || (shift > 28)) {
+            throw new IOException("malformed compressed frame header");
+         }
+         int b = src[pos++];
+         size |= (b & 0x7F) << shift;
+         if ((b & 0x80) == 0) {
+            break;
+         }
+      }
+      if ((size < 0) || (size > maxSize)) {
+         throw new IOException("compressed frame of " + size + " bytes is too large");
+      }
+      byte[] dest = bufferPool.acquire(size);
+      try {
+         codec.decompress(src, pos, end - pos, dest, 0, size);
+      } catch (IOException | RuntimeException e) {
+         bufferPool.release(dest);
+         throw e;
+      }
+      into.reset(dest, 0, size);
+      framesCompressed.increment();
+      bytesIn.add(size);
+      bytesOut.add(length);
+      nanosSpent.add(System.nanoTime() - start);
+      return dest;
+   }
+
+   private static int putVarInt(byte[] buf, int pos, int value)
+   {
+      while ((value & ~0x7F) != 0) {
+         buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      buf[pos++] = (byte) value;
+      return pos;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "FrameCompressor(" + codec.getName() + "): " + getFramesCompressed() + " frames compressed"
+             + ", " + getFramesSkipped() + " skipped after " + getBackoffCount() + " backoffs"
+             + ", ratio = " + String.format("%.2f", getRatio())
+             + ", " + (getNanosSpent() / 1000) + "us spent";
+   }
+}
@@ -0,0 +1,59 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.io.InputStream;
+
+/**
+ * An InputStream over a region of a byte array, that can be re-pointed at the next
+ * received frame with reset(). This lets a SocketConnector keep a single DataInputStream
+ * for decoding, instead of wrapping every frame in new stream objects.
+ * Unlike ByteArrayInputStream, this class is not synchronized.
+ */
+public class FrameInputBuffer extends InputStream
+{
+   private byte[] buf   = new byte[0];
+   private int    pos   = 0;
+   private int    limit = 0;
+
+   public void reset(byte[] data, int offset, int length)
+   {
+      buf = data;
+      pos = offset;
+      limit = offset + length;
+   }
+
+   @Override
+   public int read()
+   {
+      return (pos < limit) ? (buf[pos++] & 0xFF) : -1;
+   }
+
+   @Override
+   public int read(byte[] dest, int off, int len)
+   {
+      if (pos >= limit) {
+         return (len == 0) ? 0 : -1;
+      }
+      int count = Math.min(len, limit - pos);
+      System.arraycopy(buf, pos, dest, off, count);
+      pos += count;
+      return count;
+   }
+
+   @Override
+   public long skip(long n)
+   {
+      int count = (int) Math.max(0, Math.min(n, limit - pos));
+      pos += count;
+      return count;
+   }
+
+   @Override
+   public int available()
+   {
+      return limit - pos;
+   }
+}
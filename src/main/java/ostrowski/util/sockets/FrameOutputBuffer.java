@@ -0,0 +1,146 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.io.OutputStream;
+
+import ostrowski.util.BufferPool;
+
+/**
+ * A growable, reusable buffer that a SocketConnector serializes outgoing frames into.
+ * The 4-byte length header is reserved by beginFrame() and patched in place by endFrame(),
+ * so the completed frame can be written to the socket straight out of array().
+ * The backing array is borrowed from a BufferPool when a frame begins, and should be
+ * given back with release() once the frame has been written, so idle connections don't
+ * hold on to any buffer memory.
+ * Unlike ByteArrayOutputStream, this class is not synchronized; the owner must make
+ * sure only one thread writes a frame at a time.
+ */
+public class FrameOutputBuffer extends OutputStream
+{
+   public static final int HEADER_SIZE = 4;
+   // The top bits of the length header are flags that describe the payload.
+   public static final int FLAG_COMPACT    = 0x40000000;
+   public static final int FLAG_COMPRESSED = 0x20000000;
+   public static final int LENGTH_MASK     = 0x1FFFFFFF;
+
+   private final BufferPool bufferPool;
+   private final int        initialCapacity;
+   private       byte[]     buf;
+   private       int        count;
+
+   public FrameOutputBuffer(BufferPool bufferPool, int initialCapacity)
+   {
+      this.bufferPool = bufferPool;
+      this.initialCapacity = Math.max(initialCapacity, HEADER_SIZE);
+      buf = null;
+      count = 0;
+   }
+
+   /**
+    * Discard any previous frame, and reserve room for the length header of a new frame.
+    */
+   public void beginFrame()
+   {
+      if (buf == null) {
+         buf = bufferPool.acquire(initialCapacity);
+      }
+      count = HEADER_SIZE;
+   }
+
+   /**
+    * Give the backing array back to the buffer pool.
+    */
+   public void release()
+   {
+      bufferPool.release(buf);
+      buf = null;
+      count = 0;
+   }
+
+   /**
+    * Hand the backing array over to the caller, who becomes responsible for releasing
+    * it to the buffer pool. The next beginFrame() will acquire a new array.
+    */
+   public byte[] detach()
+   {
+      byte[] detached = buf;
+      buf = null;
+      count = 0;
+      return detached;
+   }
+
+   /**
+    * Replace the current frame with one built in another array borrowed from the same
+    * buffer pool, which the frame buffer takes over. The old array is released.
+    * @param size The size of the new frame, including room for the length header
+    */
+   public void replace(byte[] newBuf, int size)
+   {
+      bufferPool.release(buf);
+      buf = newBuf;
+      count = size;
+   }
+
+   /**
+    * Patch the length header of the current frame.
+    * @param flags The FLAG_... bits describing the payload
+    * @return the size of the payload (not including the header)
+    */
+   public int endFrame(int flags)
+   {
+      int msgSize = count - HEADER_SIZE;
+      if (msgSize > LENGTH_MASK) {
+         throw new IllegalStateException("frame of " + msgSize + " bytes is too large");
+      }
+      int header = msgSize | flags;
+      buf[0] = (byte)(header >>> 24);
+      buf[1] = (byte)(header >>> 16);
+      buf[2] = (byte)(header >>>  8);
+      buf[3] = (byte)(header >>>  0);
+      return msgSize;
+   }
+
+   @Override
+   public void write(int b)
+   {
+      ensureCapacity(count + 1);
+      buf[count++] = (byte) b;
+   }
+
+   @Override
+   public void write(byte[] data, int off, int len)
+   {
+      ensureCapacity(count + len);
+      System.arraycopy(data, off, buf, count, len);
+      count += len;
+   }
+
+   private void ensureCapacity(int minCapacity)
+   {
+      if (minCapacity > buf.length) {
+         byte[] newBuf = bufferPool.acquire(Math.max(minCapacity, buf.length << 1));
+         System.arraycopy(buf, 0, newBuf, 0, count);
+         bufferPool.release(buf);
+         buf = newBuf;
+      }
+   }
+
+   /**
+    * @return the internal buffer. Only the first size() bytes are valid.
+    */
+   public byte[] array()
+   {
+      return buf;
+   }
+
+   /**
+    * @return the size of the current frame, including the length header.
+    */
+   public int size()
+   {
+      return count;
+   }
+}
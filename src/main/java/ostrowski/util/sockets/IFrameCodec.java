@@ -0,0 +1,30 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.io.IOException;
+
+/**
+ * A compression algorithm for the payload of frames, registered with FrameCompressor under
+ * the name returned by getName(). Each frame is compressed on its own, so a frame can be
+ * decompressed without any of the frames before it.
+ * An instance is only ever used by one thread at a time, so it may keep its own state
+ * (such as a Deflater) from one frame to the next.
+ */
+public interface IFrameCodec
+{
+   String getName();
+
+   /**
+    * @return the number of bytes written to dest, or -1 if the compressed data doesn't fit in destLength bytes.
+    */
+   int compress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset, int destLength);
+
+   /**
+    * Decompress exactly destLength bytes (the size of the original data) into dest.
+    * @throws IOException if src is not valid, or doesn't decompress to exactly destLength bytes
+    */
+   void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset, int destLength) throws IOException;
+}
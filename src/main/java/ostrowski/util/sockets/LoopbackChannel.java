@@ -0,0 +1,189 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import ostrowski.protocol.SerializableObject;
+import ostrowski.protocol.SyncRequest;
+import ostrowski.util.SpscRing;
+
+/**
+ * One end of an in-process connection between two SocketConnectors (see LoopbackTransport).
+ * Each end has a ring of its own that only the other end writes to, and only its own read
+ * loop reads from. The items in the rings are either frames (the very byte arrays that
+ * would have been written to a socket), or, if both connectors allow it, the objects that
+ * were sent. The senders of a connector are already kept to one at a time by its output
+ * lock, so each ring has exactly one producer and one consumer, and needs no lock of its own.
+ * Threads only park when a ring is empty (the reader) or full (the sender).
+ */
+final class LoopbackChannel
+{
+   private final SpscRing<Object> inbound;
+   private final boolean          passObjects;
+   // Shared by both ends: once either end closes, so has the other.
+   private final AtomicBoolean    closed;
+   private LoopbackChannel        peer;
+   // The reader of our ring, while it is parked waiting for an item.
+   private volatile Thread        waitingConsumer = null;
+   // The sender to our ring, while it is parked waiting for room.
+   private volatile Thread        waitingProducer = null;
+
+   private LoopbackChannel(int capacity, boolean passObjects, AtomicBoolean closed)
+   {
+      inbound = new SpscRing<>(capacity);
+      this.passObjects = passObjects;
+      this.closed = closed;
+   }
+
+   /**
+    * @return both ends of a new connection
+    */
+   static LoopbackChannel[] pair(int capacity, boolean passObjects)
+   {
+      AtomicBoolean closed = new AtomicBoolean(false);
+      LoopbackChannel first = new LoopbackChannel(capacity, passObjects, closed);
+      LoopbackChannel second = new LoopbackChannel(capacity, passObjects, closed);
+      first.peer = second;
+      second.peer = first;
+      return new LoopbackChannel[] {first, second};
+   }
+
+   boolean passesObjects()
+   {
+      return passObjects;
+   }
+
+   /**
+    * @return true if the object may be handed to the peer as is, without serializing it.
+    *         Requests are always serialized, since both ends keep track of them, and fill in their answers.
+    */
+   boolean passesObject(SerializableObject obj)
+   {
+      return passObjects && !(obj instanceof SyncRequest);
+   }
+
+   /**
+    * @return true if the peer's ring has room for another item.
+    */
+   boolean hasRoom()
+   {
+      return peer.inbound.size() < peer.inbound.getCapacity();
+   }
+
+   /**
+    * Wait until the peer's ring has room for another item.
+    * @param timeoutMillis The time to wait, or 0 to wait forever
+    * @return false if the time ran out, or the connection closed, first
+    */
+   boolean awaitRoom(long timeoutMillis) throws InterruptedException
+   {
+      LoopbackChannel receiver = peer;
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      receiver.waitingProducer = Thread.currentThread();
+      try {
+         // The reader checks for a waiting producer after it has taken an item,
+         // so one of us is sure to see the other.
+         VarHandle.fullFence();
+         while (!hasRoom()) {
+            if (closed.get()) {
+               return false;
+            }
+            if (timeoutMillis == 0) {
+               LockSupport.park(this);
+            }
+            else {
+               long remaining = deadline - System.nanoTime();
+               if (remaining <= 0) {
+                  return false;
+               }
+               LockSupport.parkNanos(this, remaining);
+            }
+            if (Thread.interrupted()) {
+               throw new InterruptedException();
+            }
+         }
+         return !closed.get();
+      } finally {
+         receiver.waitingProducer = null;
+      }
+   }
+
+   /**
+    * Send an item to the peer, waiting for room in its ring if it is full.
+    * Must only be called by one thread at a time.
+    * @param timeoutMillis The time to wait for room, or 0 to wait forever
+    * @return false if the connection is closed, or the peer's ring stayed full for timeoutMillis
+    */
+   boolean send(Object item, long timeoutMillis) throws InterruptedException
+   {
+      LoopbackChannel receiver = peer;
+      while (true) {
+         if (closed.get()) {
+            return false;
+         }
+         if (receiver.inbound.offer(item)) {
+            break;
+         }
+         if (!awaitRoom(timeoutMillis)) {
+            return false;
+         }
+      }
+      VarHandle.fullFence();
+      Thread consumer = receiver.waitingConsumer;
+      if (consumer != null) {
+         LockSupport.unpark(consumer);
+      }
+      return true;
+   }
+
+   /**
+    * Wait for the next item sent by the peer. Must only be called by the read loop of this end.
+    * @return null once the connection has been closed, and every item sent before that has been read.
+    */
+   Object receive()
+   {
+      while (true) {
+         Object item = inbound.poll();
+         if (item == null) {
+            waitingConsumer = Thread.currentThread();
+            // Look again now that we're visibly waiting, since the sender only wakes us if it sees that.
+            item = inbound.poll();
+            if (item == null) {
+               if (closed.get()) {
+                  waitingConsumer = null;
+                  return null;
+               }
+               LockSupport.park(this);
+            }
+            waitingConsumer = null;
+         }
+         if (item != null) {
+            VarHandle.fullFence();
+            Thread producer = waitingProducer;
+            if (producer != null) {
+               LockSupport.unpark(producer);
+            }
+            return item;
+         }
+      }
+   }
+
+   /**
+    * Close both ends, and wake any thread waiting on either of them. Items already sent can still be received.
+    */
+   void close()
+   {
+      if (closed.compareAndSet(false, true)) {
+         for (LoopbackChannel end : new LoopbackChannel[] {this, peer}) {
+            LockSupport.unpark(end.waitingConsumer);
+            LockSupport.unpark(end.waitingProducer);
+         }
+      }
+   }
+}
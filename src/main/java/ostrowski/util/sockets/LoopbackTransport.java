@@ -0,0 +1,86 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.net.BindException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Connects SocketConnectors that live in the same JVM without going through the network.
+ * Each connection is a pair of lock-free rings (see LoopbackChannel), so frames go straight
+ * from the sender's output lock to the peer's read loop, without a writer thread, a socket,
+ * or any system call (other than waking a read loop that had nothing to do).
+ * The connectors get the same callbacks they would over TCP, in the same order.
+ * If both connectors allow it (see SocketConnector.setLoopbackObjectPassing()), objects other
+ * than requests are handed over as they are, without being serialized at all, so the sender
+ * must not change an object once it has been sent.
+ *
+ * Servers listen() on a port number, which is only a name within this JVM, and clients
+ * connect() to it, much like SocketEventLoopGroup.listen() and connect(). As with any
+ * blocking connector, the client is start()ed by its owner, while the server's connector
+ * is started here.
+ */
+public class LoopbackTransport
+{
+   public static final int DEFAULT_RING_CAPACITY = 1024;
+
+   private static final ConcurrentHashMap<Integer, Supplier<? extends SocketConnector>> LISTENERS    = new ConcurrentHashMap<>();
+   private static volatile int                                                         ringCapacity = DEFAULT_RING_CAPACITY;
+
+   /**
+    * Sets the number of items (frames or objects) that each direction of connections made
+    * after this call can hold before senders have to wait for the reader.
+    */
+   public static void setRingCapacity(int capacity)
+   {
+      ringCapacity = capacity;
+   }
+
+   /**
+    * Accept connections to the given port, creating a connector for each one with the factory.
+    */
+   public static void listen(int port, Supplier<? extends SocketConnector> connectorFactory) throws BindException
+   {
+      if (LISTENERS.putIfAbsent(port, connectorFactory) != null) {
+         throw new BindException("loopback port " + port + " already in use");
+      }
+   }
+
+   public static void stopListening(int port)
+   {
+      LISTENERS.remove(port);
+   }
+
+   /**
+    * Connect to a server listening on the given port, and start the server's connector.
+    * @return true if the connection was established. Otherwise, the connector's
+    *         handleDisconnect() has been called.
+    */
+   public static boolean connect(int port, SocketConnector connector)
+   {
+      Supplier<? extends SocketConnector> connectorFactory = LISTENERS.get(port);
+      if (connectorFactory == null) {
+         connector.diag("nothing listening on loopback port " + port);
+         connector.handleDisconnect(connector);
+         return false;
+      }
+      SocketConnector server = connectorFactory.get();
+      pair(connector, server);
+      server.start();
+      return true;
+   }
+
+   /**
+    * Connect two connectors directly to each other. Neither of them is started.
+    */
+   public static void pair(SocketConnector first, SocketConnector second)
+   {
+      boolean passObjects = first.isLoopbackObjectPassing() && second.isLoopbackObjectPassing();
+      LoopbackChannel[] ends = LoopbackChannel.pair(ringCapacity, passObjects);
+      first.attachLoopback(ends[0]);
+      second.attachLoopback(ends[1]);
+   }
+}
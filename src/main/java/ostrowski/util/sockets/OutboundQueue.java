@@ -0,0 +1,514 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ostrowski.util.BufferPool;
+import ostrowski.util.LatencyHistogram;
+
+/**
+ * The frames a SocketConnector has encoded, but not yet written to its socket.
+ * Senders offer() complete frames; a single writer (the event loop of a non-blocking
+ * connection, or the writer thread of a blocking one) gathers as many queued frames as
+ * fit in one batch, writes them with a single call, and then calls removeWritten().
+ *
+ * A batch is due to be written as soon as it holds maxBatchBytes, or once its oldest
+ * frame has waited maxFlushDelay. With a maxFlushDelay of 0 (the default), frames are
+ * written as soon as the writer gets to them, and batches only form from frames that
+ * were queued while the previous batch was being written.
+ *
+ * The queue can be bounded with setCapacity(). The bound is checked before a frame is
+ * encoded (see hasCapacity() and awaitCapacity()), so it is soft: each sender that found
+ * room may add one frame beyond it. Independently of the capacity, the queue tracks a
+ * high and a low watermark. When the queued bytes reach the high watermark, the queue
+ * becomes unwritable, and it becomes writable again once they drop to the low watermark.
+ * Each change is reported to the WatermarkListener, on the thread that caused it, after
+ * the queue's lock has been released. Changes that happen while an earlier one is being
+ * reported may be merged, but the listener always ends up told the current state.
+ *
+ * Each frame's array is borrowed from the buffer pool, and is given back once the frame
+ * has been written, or discarded.
+ */
+public class OutboundQueue
+{
+   public static final int DEFAULT_MAX_BATCH_BYTES    = 64 * 1024;
+   public static final int DEFAULT_HIGH_WATERMARK     = 256 * 1024;
+   public static final int DEFAULT_LOW_WATERMARK      = 128 * 1024;
+
+   public interface WatermarkListener
+   {
+      void writabilityChanged(boolean writable);
+   }
+
+   private final BufferPool             bufferPool;
+   private final ReentrantLock          lock          = new ReentrantLock();
+   private final Condition              flushDue      = lock.newCondition();
+   private final Condition              notFull       = lock.newCondition();
+   private final ArrayDeque<Frame>      frames        = new ArrayDeque<>();
+   private       int                    queuedBytes   = 0;
+   private       boolean                closed        = false;
+   private volatile int                 maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+   private volatile long                maxFlushDelayNanos = 0;
+   // All of these are guarded by the lock. A capacity of 0 means the queue is unbounded.
+   private       int                    capacity      = 0;
+   private       int                    highWatermark = DEFAULT_HIGH_WATERMARK;
+   private       int                    lowWatermark  = DEFAULT_LOW_WATERMARK;
+   private       boolean                writable      = true;
+   private volatile WatermarkListener   watermarkListener = null;
+   // Serializes notifications, so that listeners see alternating states, ending with the current one.
+   private final ReentrantLock          notifyLock    = new ReentrantLock();
+   private       boolean                notifiedWritable = true;
+   // Set by offerDeferringNotification() when the writability changed, until notifyWritabilityChanged() reports it.
+   private volatile boolean             notificationPending = false;
+
+   private final LatencyHistogram batchFrames = new LatencyHistogram("batch size", " frames");
+   private final LatencyHistogram batchBytes  = new LatencyHistogram("batch bytes", " bytes");
+   private final LatencyHistogram queueDelay  = new LatencyHistogram("queue delay", "us");
+
+   // A queued frame, and when it was queued.
+   static final class Frame
+   {
+      final ByteBuffer buffer;
+      final long       enqueuedNanos;
+
+      Frame(ByteBuffer buffer, long enqueuedNanos)
+      {
+         this.buffer = buffer;
+         this.enqueuedNanos = enqueuedNanos;
+      }
+   }
+
+   public OutboundQueue(BufferPool bufferPool)
+   {
+      this.bufferPool = bufferPool;
+   }
+
+   /**
+    * @param maxBatchBytes The number of queued bytes that makes a batch due right away
+    * @param maxFlushDelay How long a frame may wait for more frames to join its batch
+    * @param unit          The unit of maxFlushDelay
+    */
+   public void setBatching(int maxBatchBytes, long maxFlushDelay, TimeUnit unit)
+   {
+      this.maxBatchBytes = Math.max(1, maxBatchBytes);
+      maxFlushDelayNanos = Math.max(0, unit.toNanos(maxFlushDelay));
+      signalFlush();
+   }
+
+   /**
+    * @param capacity The number of queued bytes at which the queue is full, or 0 for no limit
+    */
+   public void setCapacity(int capacity)
+   {
+      lock.lock();
+      try {
+         this.capacity = Math.max(0, capacity);
+         notFull.signalAll();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @param lowWatermark  The number of queued bytes at which an unwritable queue becomes writable again
+    * @param highWatermark The number of queued bytes at which the queue becomes unwritable
+    */
+   public void setWatermarks(int lowWatermark, int highWatermark)
+   {
+      if ((lowWatermark < 0) || (lowWatermark > highWatermark)) {
+         throw new IllegalArgumentException("invalid watermarks: low = " + lowWatermark + ", high = " + highWatermark);
+      }
+      Boolean changed;
+      lock.lock();
+      try {
+         this.lowWatermark = lowWatermark;
+         this.highWatermark = highWatermark;
+         changed = updateWritability();
+      } finally {
+         lock.unlock();
+      }
+      fireWritabilityChanged(changed);
+   }
+
+   public void setWatermarkListener(WatermarkListener listener)
+   {
+      watermarkListener = listener;
+   }
+
+   public int getCapacity()
+   {
+      lock.lock();
+      try {
+         return capacity;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return false if the queued bytes have reached the high watermark, and have not
+    *         dropped back to the low watermark since.
+    */
+   public boolean isWritable()
+   {
+      lock.lock();
+      try {
+         return writable;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return true if the queue is not full (or has been closed, so that offer() will reject the frame anyway).
+    */
+   public boolean hasCapacity()
+   {
+      lock.lock();
+      try {
+         return closed || (capacity == 0) || (queuedBytes < capacity);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Wait until the queue is not full.
+    * @param timeoutMillis The longest time to wait, or 0 to wait forever
+    * @return false if the queue was still full when the timeout ran out.
+    */
+   public boolean awaitCapacity(long timeoutMillis) throws InterruptedException
+   {
+      long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      lock.lock();
+      try {
+         while (!closed && (capacity != 0) && (queuedBytes >= capacity)) {
+            if (timeoutMillis <= 0) {
+               notFull.await();
+            }
+            else {
+               if (remainingNanos <= 0) {
+                  return false;
+               }
+               remainingNanos = notFull.awaitNanos(remainingNanos);
+            }
+         }
+         return true;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   // Must be called while holding the lock.
+   // @return the new writability if it changed, or null if it didn't
+   private Boolean updateWritability()
+   {
+      if (writable && (queuedBytes >= highWatermark)) {
+         writable = false;
+         return Boolean.FALSE;
+      }
+      if (!writable && (queuedBytes <= lowWatermark)) {
+         writable = true;
+         return Boolean.TRUE;
+      }
+      return null;
+   }
+
+   private void fireWritabilityChanged(Boolean changed)
+   {
+      if (changed == null) {
+         return;
+      }
+      notifyLock.lock();
+      try {
+         // Another thread may have changed the state again since we did,
+         // so report the current state, if it hasn't already been reported.
+         boolean writableNow = isWritable();
+         if (writableNow != notifiedWritable) {
+            notifiedWritable = writableNow;
+            WatermarkListener listener = watermarkListener;
+            if (listener != null) {
+               listener.writabilityChanged(writableNow);
+            }
+         }
+      } finally {
+         notifyLock.unlock();
+      }
+   }
+
+   public int  getMaxBatchBytes()      { return maxBatchBytes;}
+   public long getMaxFlushDelayNanos() { return maxFlushDelayNanos;}
+
+   /**
+    * Queue a frame for writing. The queue takes ownership of the frame's array.
+    * @return false if the queue has been closed, in which case the array has been released.
+    */
+   public boolean offer(byte[] frame, int length)
+   {
+      boolean offered = offerDeferringNotification(frame, length);
+      notifyWritabilityChanged();
+      return offered;
+   }
+
+   /**
+    * Queue a frame like offer(), but leave telling the WatermarkListener about any change
+    * in writability to notifyWritabilityChanged(), so a caller that holds a lock of its own
+    * can call the listener once it has released it.
+    */
+   boolean offerDeferringNotification(byte[] frame, int length)
+   {
+      Boolean changed;
+      lock.lock();
+      try {
+         if (closed) {
+            bufferPool.release(frame);
+            return false;
+         }
+         frames.add(new Frame(ByteBuffer.wrap(frame, 0, length), System.nanoTime()));
+         queuedBytes += length;
+         // The writer only needs waking if this frame starts a batch, or completes one.
+         if ((frames.size() == 1) || (queuedBytes >= maxBatchBytes)) {
+            flushDue.signal();
+         }
+         changed = updateWritability();
+      } finally {
+         lock.unlock();
+      }
+      if (changed != null) {
+         notificationPending = true;
+      }
+      return true;
+   }
+
+   /**
+    * Tells the WatermarkListener about a change in writability left pending by offerDeferringNotification().
+    */
+   void notifyWritabilityChanged()
+   {
+      if (notificationPending) {
+         notificationPending = false;
+         fireWritabilityChanged(Boolean.TRUE);
+      }
+   }
+
+   /**
+    * @return true if the queued frames should be written now, rather than waiting for
+    *         more frames to join them.
+    */
+   public boolean isFlushDue()
+   {
+      lock.lock();
+      try {
+         return isFlushDue(System.nanoTime());
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   // Must be called while holding the lock.
+   private boolean isFlushDue(long now)
+   {
+      Frame oldest = frames.peek();
+      if (oldest == null) {
+         return false;
+      }
+      return closed || (queuedBytes >= maxBatchBytes) || ((now - oldest.enqueuedNanos) >= maxFlushDelayNanos);
+   }
+
+   /**
+    * Wait until a batch is due to be written.
+    * @return false if the queue is closed, and there is nothing left to write.
+    */
+   public boolean awaitFlush() throws InterruptedException
+   {
+      lock.lock();
+      try {
+         while (true) {
+            if (frames.isEmpty()) {
+               if (closed) {
+                  return false;
+               }
+               flushDue.await();
+               continue;
+            }
+            long now = System.nanoTime();
+            if (isFlushDue(now)) {
+               return true;
+            }
+            flushDue.awaitNanos((frames.peek().enqueuedNanos + maxFlushDelayNanos) - now);
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Fill batch with the frames at the head of the queue, up to maxBatchBytes (but always
+    * at least one frame, however large it is). The frames stay in the queue until
+    * removeWritten() finds they have been written completely. Must only be called by the writer.
+    * @return the number of frames put into batch
+    */
+   public int gather(ByteBuffer[] batch)
+   {
+      lock.lock();
+      try {
+         int count = 0;
+         int bytes = 0;
+         int limit = maxBatchBytes;
+         Iterator<Frame> iter = frames.iterator();
+         while ((count < batch.length) && iter.hasNext()) {
+            ByteBuffer buffer = iter.next().buffer;
+            if ((count > 0) && ((bytes + buffer.remaining()) > limit)) {
+               break;
+            }
+            batch[count++] = buffer;
+            bytes += buffer.remaining();
+         }
+         if (count > 0) {
+            batchFrames.record(count);
+            batchBytes.record(bytes);
+         }
+         return count;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Remove the frames at the head of the queue that have been written completely, and
+    * give their arrays back to the buffer pool. Must only be called by the writer.
+    * @return true if the queue is now empty
+    */
+   public boolean removeWritten()
+   {
+      long now = System.nanoTime();
+      boolean empty;
+      Boolean changed;
+      lock.lock();
+      try {
+         Frame frame;
+         while (((frame = frames.peek()) != null) && !frame.buffer.hasRemaining()) {
+            frames.poll();
+            queuedBytes -= frame.buffer.limit();
+            queueDelay.record(TimeUnit.NANOSECONDS.toMicros(now - frame.enqueuedNanos));
+            bufferPool.release(frame.buffer.array());
+         }
+         if ((capacity == 0) || (queuedBytes < capacity)) {
+            notFull.signalAll();
+         }
+         empty = frames.isEmpty();
+         changed = updateWritability();
+      } finally {
+         lock.unlock();
+      }
+      fireWritabilityChanged(changed);
+      return empty;
+   }
+
+   /**
+    * Stop accepting frames. Frames already queued may still be written.
+    */
+   public void close()
+   {
+      lock.lock();
+      try {
+         closed = true;
+         flushDue.signalAll();
+         notFull.signalAll();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public boolean isClosed()
+   {
+      lock.lock();
+      try {
+         return closed;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Close the queue, and drop every frame that has not been written.
+    * Must only be called by the writer, or once the writer has stopped.
+    */
+   public void discard()
+   {
+      Boolean changed;
+      lock.lock();
+      try {
+         closed = true;
+         Frame frame;
+         while ((frame = frames.poll()) != null) {
+            bufferPool.release(frame.buffer.array());
+         }
+         queuedBytes = 0;
+         flushDue.signalAll();
+         notFull.signalAll();
+         changed = updateWritability();
+      } finally {
+         lock.unlock();
+      }
+      fireWritabilityChanged(changed);
+   }
+
+   private void signalFlush()
+   {
+      lock.lock();
+      try {
+         flushDue.signalAll();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public int getQueuedFrames()
+   {
+      lock.lock();
+      try {
+         return frames.size();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public int getQueuedBytes()
+   {
+      lock.lock();
+      try {
+         return queuedBytes;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the number of frames in each batch handed to the socket
+    */
+   public LatencyHistogram getBatchSizeHistogram()  { return batchFrames;}
+   /**
+    * @return the number of bytes in each batch handed to the socket
+    */
+   public LatencyHistogram getBatchBytesHistogram() { return batchBytes;}
+   /**
+    * @return the time (in microseconds) from a frame being queued until it was completely written
+    */
+   public LatencyHistogram getQueueDelayHistogram() { return queueDelay;}
+
+   @Override
+   public String toString()
+   {
+      return "OutboundQueue: " + getQueuedFrames() + " frames (" + getQueuedBytes() + " bytes) queued, "
+             + batchFrames + "; " + batchBytes + "; " + queueDelay;
+   }
+}
@@ -0,0 +1,262 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ostrowski.protocol.SyncRequest;
+
+/**
+ * The requests that a SocketConnector has sent, and for which it is still waiting for an
+ * answer, keyed by their (primitive int) sync key. The table is split into stripes, each
+ * an open-addressing hash table with its own lock, so threads sending requests and the
+ * thread reading answers rarely contend, and no Integer keys or map entries are allocated.
+ * Each entry may carry a deadline, after which evictExpired() will remove it.
+ * Deadlines are System.nanoTime() values, so they are only ever compared by subtraction.
+ */
+public class PendingRequestRegistry
+{
+   public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+   private static final int STRIPE_COUNT = 16;
+
+   private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+   public PendingRequestRegistry()
+   {
+      for (int i = 0; i < STRIPE_COUNT; i++) {
+         stripes[i] = new Stripe();
+      }
+   }
+
+   private static int hash(int key)
+   {
+      // spread the bits, since sync keys are sequential
+      int h = key * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+
+   private Stripe stripeFor(int hash)
+   {
+      return stripes[hash & (STRIPE_COUNT - 1)];
+   }
+
+   /**
+    * @param deadlineNanos The System.nanoTime() after which this entry may be evicted, or NO_DEADLINE
+    * @return the request previously registered with this key, if any
+    */
+   public SyncRequest put(int key, SyncRequest request, long deadlineNanos)
+   {
+      int hash = hash(key);
+      Stripe stripe = stripeFor(hash);
+      stripe.lock.lock();
+      try {
+         return stripe.put(key, hash, request, deadlineNanos);
+      } finally {
+         stripe.lock.unlock();
+      }
+   }
+
+   /**
+    * @return the request registered with this key, which is no longer registered, or null.
+    */
+   public SyncRequest remove(int key)
+   {
+      int hash = hash(key);
+      Stripe stripe = stripeFor(hash);
+      stripe.lock.lock();
+      try {
+         return stripe.remove(key, hash, null);
+      } finally {
+         stripe.lock.unlock();
+      }
+   }
+
+   /**
+    * Removes the entry for the key only if it is registered to the given request.
+    * @return true if the entry was removed
+    */
+   public boolean remove(int key, SyncRequest request)
+   {
+      int hash = hash(key);
+      Stripe stripe = stripeFor(hash);
+      stripe.lock.lock();
+      try {
+         return stripe.remove(key, hash, request) != null;
+      } finally {
+         stripe.lock.unlock();
+      }
+   }
+
+   public int size()
+   {
+      int size = 0;
+      for (Stripe stripe : stripes) {
+         size += stripe.size;
+      }
+      return size;
+   }
+
+   /**
+    * Removes every entry.
+    * @return the requests that were registered
+    */
+   public List<SyncRequest> removeAll()
+   {
+      List<SyncRequest> removed = new ArrayList<>();
+      for (Stripe stripe : stripes) {
+         stripe.lock.lock();
+         try {
+            stripe.drainAll(removed);
+         } finally {
+            stripe.lock.unlock();
+         }
+      }
+      return removed;
+   }
+
+   /**
+    * Removes every entry whose deadline is before nowNanos.
+    * @return the requests that were removed
+    */
+   public List<SyncRequest> evictExpired(long nowNanos)
+   {
+      List<SyncRequest> removed = new ArrayList<>();
+      for (Stripe stripe : stripes) {
+         stripe.lock.lock();
+         try {
+            stripe.drain(nowNanos, removed);
+         } finally {
+            stripe.lock.unlock();
+         }
+      }
+      return removed;
+   }
+
+   // A linear probing hash table. All access is done while holding 'lock'.
+   private static class Stripe
+   {
+      final ReentrantLock lock      = new ReentrantLock();
+      int[]               keys      = new int[16];
+      SyncRequest[]       values    = new SyncRequest[16];
+      long[]              deadlines = new long[16];
+      volatile int        size      = 0;
+
+      SyncRequest put(int key, int hash, SyncRequest request, long deadlineNanos)
+      {
+         if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+         }
+         int mask = keys.length - 1;
+         int index = (hash >>> 4) & mask;
+         while (values[index] != null) {
+            if (keys[index] == key) {
+               SyncRequest prev = values[index];
+               values[index] = request;
+               deadlines[index] = deadlineNanos;
+               return prev;
+            }
+            index = (index + 1) & mask;
+         }
+         keys[index] = key;
+         values[index] = request;
+         deadlines[index] = deadlineNanos;
+         size++;
+         return null;
+      }
+
+      SyncRequest remove(int key, int hash, SyncRequest expected)
+      {
+         int mask = keys.length - 1;
+         int index = (hash >>> 4) & mask;
+         while (values[index] != null) {
+            if (keys[index] == key) {
+               SyncRequest value = values[index];
+               if ((expected != null) && (value != expected)) {
+                  return null;
+               }
+               deleteAt(index);
+               return value;
+            }
+            index = (index + 1) & mask;
+         }
+         return null;
+      }
+
+      void drain(long nowNanos, List<SyncRequest> removed)
+      {
+         int index = 0;
+         while (index < keys.length) {
+            if ((values[index] != null) && isExpired(deadlines[index], nowNanos)) {
+               removed.add(values[index]);
+               // deleteAt may shift a later entry into this slot, so look at this slot again.
+               deleteAt(index);
+            }
+            else {
+               index++;
+            }
+         }
+      }
+
+      void drainAll(List<SyncRequest> removed)
+      {
+         for (int index = 0; index < keys.length; index++) {
+            if (values[index] != null) {
+               removed.add(values[index]);
+               values[index] = null;
+            }
+         }
+         size = 0;
+      }
+
+      private static boolean isExpired(long deadlineNanos, long nowNanos)
+      {
+         // NO_DEADLINE is a marker, not a time, so it must stay out of the arithmetic.
+         return (deadlineNanos != NO_DEADLINE) && (deadlineNanos - nowNanos < 0);
+      }
+
+      // Backward-shift deletion, so no tombstones are needed.
+      private void deleteAt(int index)
+      {
+         int mask = keys.length - 1;
+         int hole = index;
+         int next = (hole + 1) & mask;
+         while (values[next] != null) {
+            int home = (hash(keys[next]) >>> 4) & mask;
+            // Move the entry at 'next' into the hole, unless its home slot lies
+            // cyclically in (hole, next], in which case it is still reachable.
+            boolean reachable = (hole <= next) ? ((hole < home) && (home <= next))
+                                               : ((hole < home) || (home <= next));
+            if (!reachable) {
+               keys[hole] = keys[next];
+               values[hole] = values[next];
+               deadlines[hole] = deadlines[next];
+               hole = next;
+            }
+            next = (next + 1) & mask;
+         }
+         values[hole] = null;
+         size--;
+      }
+
+      private void resize(int newCapacity)
+      {
+         int[] oldKeys = keys;
+         SyncRequest[] oldValues = values;
+         long[] oldDeadlines = deadlines;
+         keys = new int[newCapacity];
+         values = new SyncRequest[newCapacity];
+         deadlines = new long[newCapacity];
+         size = 0;
+         for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+               put(oldKeys[i], hash(oldKeys[i]), oldValues[i], oldDeadlines[i]);
+            }
+         }
+      }
+   }
+}
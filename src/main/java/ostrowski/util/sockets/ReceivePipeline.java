@@ -0,0 +1,222 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import ostrowski.protocol.ClientID;
+import ostrowski.protocol.IReplicatedObject;
+import ostrowski.protocol.ObjectChanged;
+import ostrowski.protocol.ObjectDelete;
+import ostrowski.protocol.ObjectInfo;
+import ostrowski.protocol.SerializableObject;
+import ostrowski.util.LatencyHistogram;
+
+/**
+ * Moves the work of handling received frames off the threads that read the sockets.
+ * Each SocketConnector attached to a pipeline goes through these stages:
+ *  - read:     the connector's own thread (or event loop) reads each frame, and queues it for
+ *  - decode:   a stage of its own that decodes the frame, matches answers to the requests
+ *              waiting for them, and queues everything else for
+ *  - dispatch: which calls processReceivedObject().
+ * The decode stages run on one shared executor, and dispatch on another, so a slow handler
+ * only holds up the objects that must be handled after it, and not the reading or decoding
+ * of anything else.
+ * With Ordering.CONNECTION, each connection has a dispatch stage of its own, so its objects
+ * are handled in the order they were received. With Ordering.KEY, the objects of every
+ * connection are dispatched through a ShardedDispatchExecutor, by the key that the key function
+ * gives each object, so objects with the same key are handled in order, while objects with
+ * different keys may be handled in parallel. Objects without a key are keyed by their
+ * connection, so they are handled in order too (but not in order with the keyed objects).
+ *
+ * The queues between the stages are bounded. When a decode queue is full, the connection stops
+ * reading until it drains, which pushes back on the peer through TCP.
+ */
+public class ReceivePipeline
+{
+   public enum Ordering {CONNECTION, KEY}
+
+   public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+   private final    String                               name;
+   private final    Executor                             decodeExecutor;
+   private final    Executor                             dispatchExecutor;
+   private final    List<ExecutorService>                ownedExecutors = new ArrayList<>();
+   private final    int                                  decodeCapacity;
+   private final    int                                  dispatchCapacity;
+   private volatile Ordering                             ordering       = Ordering.CONNECTION;
+   private volatile Function<SerializableObject, Object> keyFunction    = null;
+   private volatile ShardedDispatchExecutor              keyedExecutor  = null;
+   private          ShardedDispatchExecutor              ownedKeyedExecutor = null;
+
+   /**
+    * A key function for Ordering.KEY: the replica ID of the object inside an ObjectChanged,
+    * ObjectInfo or ObjectDelete (when it is an IReplicatedObject), or the ID of a ClientID.
+    */
+   public static final Function<SerializableObject, Object> OBJECT_ID_KEY = ReceivePipeline::objectIdKey;
+
+   final LatencyHistogram decodeDepth   = new LatencyHistogram("decode queue depth", " frames");
+   final LatencyHistogram decodeDelay   = new LatencyHistogram("decode queue delay", "us");
+   final LatencyHistogram dispatchDepth = new LatencyHistogram("dispatch queue depth", " objects");
+   final LatencyHistogram dispatchDelay = new LatencyHistogram("dispatch queue delay", "us");
+
+   /**
+    * Creates a pipeline with its own pools of daemon threads, which shutdown() stops.
+    */
+   public ReceivePipeline(String name, int decodeThreads, int dispatchThreads)
+   {
+      this(name, newPool(name + "-decode", decodeThreads), newPool(name + "-dispatch", dispatchThreads),
+           DEFAULT_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY);
+      ownedExecutors.add((ExecutorService) decodeExecutor);
+      ownedExecutors.add((ExecutorService) dispatchExecutor);
+   }
+
+   /**
+    * @param decodeCapacity   The number of frames each connection may have waiting to be decoded
+    * @param dispatchCapacity The number of objects each dispatch stage (or lane of a keyed executor
+    *                         this pipeline creates) may have waiting to be handled
+    */
+   public ReceivePipeline(String name, Executor decodeExecutor, Executor dispatchExecutor, int decodeCapacity, int dispatchCapacity)
+   {
+      this.name = name;
+      this.decodeExecutor = decodeExecutor;
+      this.dispatchExecutor = dispatchExecutor;
+      this.decodeCapacity = decodeCapacity;
+      this.dispatchCapacity = dispatchCapacity;
+   }
+
+   private static ExecutorService newPool(String name, int threads)
+   {
+      AtomicInteger threadNumber = new AtomicInteger();
+      ThreadFactory factory = runnable -> {
+         Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      };
+      return Executors.newFixedThreadPool(threads, factory);
+   }
+
+   private static Object objectIdKey(SerializableObject obj)
+   {
+      SerializableObject keyObj = obj;
+      if (obj instanceof ObjectChanged) {
+         keyObj = ((ObjectChanged) obj).getOriginalObj();
+      }
+      else if (obj instanceof ObjectInfo) {
+         keyObj = ((ObjectInfo) obj).getObject();
+      }
+      else if (obj instanceof ObjectDelete) {
+         keyObj = ((ObjectDelete) obj).getObject();
+      }
+      if (keyObj instanceof IReplicatedObject) {
+         return ((IReplicatedObject) keyObj).getReplicaId();
+      }
+      if (keyObj instanceof ClientID) {
+         return ((ClientID) keyObj).getID();
+      }
+      return null;
+   }
+
+   /**
+    * Dispatch the objects of each connection in the order they were received. This is the default.
+    * This only affects connectors attached to the pipeline after this call.
+    */
+   public void setConnectionOrdering()
+   {
+      ordering = Ordering.CONNECTION;
+      keyFunction = null;
+      keyedExecutor = null;
+   }
+
+   /**
+    * Dispatch objects through a ShardedDispatchExecutor of its own, with 'lanes' threads,
+    * which shutdown() stops.
+    */
+   public synchronized void setKeyOrdering(Function<SerializableObject, Object> keyFunction, int lanes)
+   {
+      if (ownedKeyedExecutor == null) {
+         ownedKeyedExecutor = new ShardedDispatchExecutor(name + "-dispatch", lanes, dispatchCapacity);
+      }
+      setKeyOrdering(keyFunction, ownedKeyedExecutor);
+   }
+
+   /**
+    * Dispatch objects through the given executor, in order of the key the key function gives them
+    * (such as OBJECT_ID_KEY). This only affects connectors attached to the pipeline after this call.
+    */
+   public void setKeyOrdering(Function<SerializableObject, Object> keyFunction, ShardedDispatchExecutor executor)
+   {
+      this.keyFunction = keyFunction;
+      keyedExecutor = executor;
+      ordering = Ordering.KEY;
+   }
+
+   public Ordering getOrdering()
+   {
+      return ordering;
+   }
+
+   SerialStage newDecodeStage(String connectionName)
+   {
+      return new SerialStage(connectionName + "-decode", decodeExecutor, decodeCapacity, decodeDepth, decodeDelay);
+   }
+
+   /**
+    * @return the dispatch stage of a new connection, or null if objects are dispatched by key.
+    */
+   SerialStage newDispatchStage(String connectionName)
+   {
+      if (ordering == Ordering.KEY) {
+         return null;
+      }
+      return new SerialStage(connectionName + "-dispatch", dispatchExecutor, dispatchCapacity, dispatchDepth, dispatchDelay);
+   }
+
+   ShardedDispatchExecutor getKeyedExecutor()
+   {
+      return keyedExecutor;
+   }
+
+   Object keyFor(SerializableObject obj, Object connectionKey)
+   {
+      Object key = keyFunction.apply(obj);
+      return (key == null) ? connectionKey : key;
+   }
+
+   public LatencyHistogram getDecodeDepth()  { return decodeDepth;}
+   public LatencyHistogram getDecodeDelay()  { return decodeDelay;}
+   public LatencyHistogram getDispatchDepth(){ return dispatchDepth;}
+   public LatencyHistogram getDispatchDelay(){ return dispatchDelay;}
+
+   /**
+    * Stop the thread pools this pipeline created. Executors that were passed in are left alone.
+    */
+   public void shutdown()
+   {
+      for (ExecutorService executor : ownedExecutors) {
+         executor.shutdown();
+      }
+      synchronized (this) {
+         if (ownedKeyedExecutor != null) {
+            ownedKeyedExecutor.shutdown();
+         }
+      }
+   }
+
+   @Override
+   public String toString()
+   {
+      ShardedDispatchExecutor executor = keyedExecutor;
+      return "ReceivePipeline " + name + " (" + ordering + " ordering): " + decodeDepth + "; " + decodeDelay
+             + "; " + ((executor != null) ? executor.toString() : (dispatchDepth + "; " + dispatchDelay));
+   }
+}
@@ -0,0 +1,196 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ostrowski.util.LatencyHistogram;
+
+/**
+ * One stage of a ReceivePipeline: a bounded queue of tasks that run one at a time, in the
+ * order they were submitted, on an Executor that many stages share. A stage only occupies
+ * a thread of the executor while it has tasks, and gives the thread up after a few of them,
+ * so a busy stage can't starve the other stages that share its executor.
+ * A producer that finds the queue full either waits for room (put()), or is told once
+ * the queue has drained to half its capacity (offer()), which lets an event loop stop reading
+ * a connection without ever blocking.
+ */
+public class SerialStage
+{
+   // The number of tasks a stage runs before giving its thread back to the executor.
+   static final int MAX_TASKS_PER_TURN = 64;
+
+   private static final class Task
+   {
+      final Runnable runnable;
+      final long     enqueuedNanos;
+
+      Task(Runnable runnable, long enqueuedNanos) {
+         this.runnable = runnable;
+         this.enqueuedNanos = enqueuedNanos;
+      }
+   }
+
+   private final String           name;
+   private final Executor         executor;
+   private final int              capacity;
+   private final LatencyHistogram depthHistogram;
+   private final LatencyHistogram delayHistogram;
+
+   private final ReentrantLock    lock         = new ReentrantLock();
+   private final Condition        notFull      = lock.newCondition();
+   private final ArrayDeque<Task> tasks        = new ArrayDeque<>();
+   private       boolean          scheduled    = false;
+   private       Runnable         roomListener = null;
+   private volatile int           maxDepth     = 0;
+
+   private final LongAdder processed = new LongAdder();
+   private final LongAdder fullCount = new LongAdder();
+
+   /**
+    * @param depthHistogram Records the depth of the queue each time a task is queued
+    * @param delayHistogram Records how long (in microseconds) each task waited before it ran
+    */
+   public SerialStage(String name, Executor executor, int capacity, LatencyHistogram depthHistogram, LatencyHistogram delayHistogram)
+   {
+      this.name = name;
+      this.executor = executor;
+      this.capacity = capacity;
+      this.depthHistogram = depthHistogram;
+      this.delayHistogram = delayHistogram;
+   }
+
+   public String getName()          { return name;}
+   public int    getCapacity()      { return capacity;}
+   public int    getMaxDepth()      { return maxDepth;}
+   public long   getProcessedCount(){ return processed.sum();}
+   public long   getFullCount()     { return fullCount.sum();}
+
+   public int getDepth()
+   {
+      lock.lock();
+      try {
+         return tasks.size();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Queue the task, waiting for room if the queue is full.
+    */
+   public void put(Runnable task) throws InterruptedException
+   {
+      lock.lock();
+      try {
+         if (tasks.size() >= capacity) {
+            fullCount.increment();
+            while (tasks.size() >= capacity) {
+               notFull.await();
+            }
+         }
+         enqueue(task);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Queue the task if there is room for it.
+    * @param roomListener If the queue is full, this is run (on the thread of the stage) once
+    *                     the queue has drained to half its capacity.
+    * @return false if the queue is full, in which case the task was not queued.
+    */
+   public boolean offer(Runnable task, Runnable roomListener)
+   {
+      lock.lock();
+      try {
+         if (tasks.size() >= capacity) {
+            fullCount.increment();
+            this.roomListener = roomListener;
+            return false;
+         }
+         enqueue(task);
+         return true;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Queue the task even if the queue is full. This is meant for the occasional task that must
+    * follow everything already queued, such as telling the owner its connection closed.
+    */
+   public void add(Runnable task)
+   {
+      lock.lock();
+      try {
+         enqueue(task);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   // Called while holding 'lock'.
+   private void enqueue(Runnable task)
+   {
+      tasks.add(new Task(task, System.nanoTime()));
+      int depth = tasks.size();
+      if (depth > maxDepth) {
+         maxDepth = depth;
+      }
+      depthHistogram.record(depth);
+      if (!scheduled) {
+         scheduled = true;
+         executor.execute(this::runTasks);
+      }
+   }
+
+   private void runTasks()
+   {
+      for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+         Task task;
+         Runnable listener = null;
+         lock.lock();
+         try {
+            task = tasks.poll();
+            if (task == null) {
+               scheduled = false;
+               return;
+            }
+            notFull.signal();
+            if ((roomListener != null) && (tasks.size() <= (capacity / 2))) {
+               listener = roomListener;
+               roomListener = null;
+            }
+         } finally {
+            lock.unlock();
+         }
+         if (listener != null) {
+            listener.run();
+         }
+         delayHistogram.record((System.nanoTime() - task.enqueuedNanos) / 1000);
+         try {
+            task.runnable.run();
+         } catch (RuntimeException e) {
+            e.printStackTrace();
+         }
+         processed.increment();
+      }
+      // There may be more to do, but let the other stages on this executor have a turn first.
+      executor.execute(this::runTasks);
+   }
+
+   @Override
+   public String toString()
+   {
+      return "SerialStage " + name + ": " + getDepth() + "/" + capacity + " queued, max depth = " + maxDepth
+             + ", " + getProcessedCount() + " processed, full " + getFullCount() + " times";
+   }
+}
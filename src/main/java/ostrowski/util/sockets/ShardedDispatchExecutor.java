@@ -0,0 +1,281 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ostrowski.util.LatencyHistogram;
+
+/**
+ * Runs tasks that each have a key, so that tasks with the same key run one at a time, in
+ * the order they were submitted, while tasks with different keys may run in parallel.
+ * Keys are hashed onto shards, each of which is a FIFO of tasks, and the shards are spread
+ * over a fixed number of lanes, each with a single thread. A shard with tasks waits in the
+ * ready queue of its own (home) lane, and only one lane ever works on a shard at a time,
+ * which is what keeps the tasks of each key in order.
+ * A lane with nothing to do steals a waiting shard from the back of another lane's ready
+ * queue, so a few busy keys that happen to share a lane don't leave the other lanes idle.
+ * Each lane holds at most 'laneCapacity' tasks (0 for no limit); execute() waits for room,
+ * so the tasks must never submit more tasks to this executor themselves.
+ */
+public class ShardedDispatchExecutor
+{
+   static final int SHARDS_PER_LANE    = 16;
+   // The number of tasks a lane runs from one shard before it lets the other shards have a turn.
+   static final int MAX_TASKS_PER_TURN = 64;
+
+   private static final class Task
+   {
+      final Runnable runnable;
+      final long     enqueuedNanos;
+
+      Task(Runnable runnable, long enqueuedNanos) {
+         this.runnable = runnable;
+         this.enqueuedNanos = enqueuedNanos;
+      }
+   }
+
+   private static final class Shard
+   {
+      final Lane             home;
+      final ReentrantLock    lock      = new ReentrantLock();
+      final ArrayDeque<Task> tasks     = new ArrayDeque<>();
+      // Set while the shard is in a ready queue, or a lane is running its tasks.
+      boolean                scheduled = false;
+
+      Shard(Lane home) {
+         this.home = home;
+      }
+   }
+
+   private static final class Lane
+   {
+      final int                          index;
+      final ConcurrentLinkedDeque<Shard> ready    = new ConcurrentLinkedDeque<>();
+      final AtomicInteger                depth    = new AtomicInteger();
+      final Semaphore                    room;
+      final LongAdder                    executed = new LongAdder();
+      final LongAdder                    steals   = new LongAdder();
+      volatile int                       maxDepth = 0;
+      volatile boolean                   busy     = false;
+      Thread                             thread;
+
+      Lane(int index, int capacity) {
+         this.index = index;
+         this.room = (capacity > 0) ? new Semaphore(capacity) : null;
+      }
+   }
+
+   private final String                      name;
+   private final Lane[]                      lanes;
+   private final Shard[]                     shards;
+   private final ConcurrentLinkedQueue<Lane> idleLanes = new ConcurrentLinkedQueue<>();
+   private volatile boolean                  shutdown  = false;
+   private final LatencyHistogram            queueDelay;
+
+   /**
+    * @param laneCount    The number of lanes, and so of threads
+    * @param laneCapacity The number of tasks each lane may hold before execute() waits for room, or 0 for no limit
+    */
+   public ShardedDispatchExecutor(String name, int laneCount, int laneCapacity)
+   {
+      this.name = name;
+      queueDelay = new LatencyHistogram(name + " queue delay", "us");
+      lanes = new Lane[laneCount];
+      for (int i = 0; i < laneCount; i++) {
+         lanes[i] = new Lane(i, laneCapacity);
+      }
+      // A power of two, so a shard can be picked with a mask.
+      int shardCount = Integer.highestOneBit(Math.max(1, (laneCount * SHARDS_PER_LANE) - 1)) << 1;
+      shards = new Shard[shardCount];
+      for (int i = 0; i < shardCount; i++) {
+         shards[i] = new Shard(lanes[i % laneCount]);
+      }
+      for (Lane lane : lanes) {
+         lane.thread = new Thread(() -> runLane(lane), name + "-lane-" + lane.index);
+         lane.thread.setDaemon(true);
+         lane.thread.start();
+      }
+   }
+
+   public String           getName()                  { return name;}
+   public int              getLaneCount()             { return lanes.length;}
+   public int              getLaneDepth(int lane)     { return lanes[lane].depth.get();}
+   public int              getMaxLaneDepth(int lane)  { return lanes[lane].maxDepth;}
+   public long             getExecutedCount(int lane) { return lanes[lane].executed.sum();}
+   public long             getStealCount(int lane)    { return lanes[lane].steals.sum();}
+   public LatencyHistogram getQueueDelay()            { return queueDelay;}
+
+   /**
+    * Run the task after every task previously submitted with an equal key.
+    * Waits if the lane of the key is full.
+    */
+   public void execute(Object key, Runnable task) throws InterruptedException
+   {
+      if (shutdown) {
+         throw new IllegalStateException(name + " has been shut down");
+      }
+      int hash = key.hashCode() * 0x9E3779B9;
+      Shard shard = shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+      Lane home = shard.home;
+      if (home.room != null) {
+         home.room.acquire();
+      }
+      int depth = home.depth.incrementAndGet();
+      if (depth > home.maxDepth) {
+         home.maxDepth = depth;
+      }
+      boolean schedule;
+      shard.lock.lock();
+      try {
+         shard.tasks.add(new Task(task, System.nanoTime()));
+         schedule = !shard.scheduled;
+         shard.scheduled = true;
+      } finally {
+         shard.lock.unlock();
+      }
+      if (schedule) {
+         makeReady(shard);
+      }
+   }
+
+   private void makeReady(Shard shard)
+   {
+      Lane home = shard.home;
+      home.ready.addLast(shard);
+      LockSupport.unpark(home.thread);
+      if (home.busy) {
+         // The home lane will be a while, so give an idle lane the chance to steal the shard.
+         Lane idle = idleLanes.poll();
+         if (idle != null) {
+            LockSupport.unpark(idle.thread);
+         }
+      }
+   }
+
+   private void runLane(Lane lane)
+   {
+      while (true) {
+         Shard shard = lane.ready.pollFirst();
+         if (shard == null) {
+            shard = steal(lane);
+         }
+         if (shard != null) {
+            runShard(lane, shard);
+            continue;
+         }
+         if (shutdown) {
+            return;
+         }
+         // Say we're idle before looking for work one last time, so that a shard made
+         // ready in the meantime either shows up here, or its submitter unparks us.
+         idleLanes.add(lane);
+         if (lane.ready.isEmpty() && !hasReadyShards()) {
+            LockSupport.park(this);
+         }
+         idleLanes.remove(lane);
+      }
+   }
+
+   private Shard steal(Lane thief)
+   {
+      for (int i = 1; i < lanes.length; i++) {
+         Lane victim = lanes[(thief.index + i) % lanes.length];
+         Shard shard = victim.ready.pollLast();
+         if (shard != null) {
+            thief.steals.increment();
+            return shard;
+         }
+      }
+      return null;
+   }
+
+   private boolean hasReadyShards()
+   {
+      for (Lane lane : lanes) {
+         if (!lane.ready.isEmpty()) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private void runShard(Lane lane, Shard shard)
+   {
+      lane.busy = true;
+      try {
+         for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+            Task task;
+            shard.lock.lock();
+            try {
+               task = shard.tasks.poll();
+               if (task == null) {
+                  shard.scheduled = false;
+                  return;
+               }
+            } finally {
+               shard.lock.unlock();
+            }
+            queueDelay.record((System.nanoTime() - task.enqueuedNanos) / 1000);
+            try {
+               task.runnable.run();
+            } catch (RuntimeException e) {
+               e.printStackTrace();
+            }
+            lane.executed.increment();
+            shard.home.depth.decrementAndGet();
+            if (shard.home.room != null) {
+               shard.home.room.release();
+            }
+         }
+         // Let the other shards have a turn, and come back to this one later.
+         shard.lock.lock();
+         try {
+            if (shard.tasks.isEmpty()) {
+               shard.scheduled = false;
+               return;
+            }
+         } finally {
+            shard.lock.unlock();
+         }
+         makeReady(shard);
+      } finally {
+         lane.busy = false;
+      }
+   }
+
+   /**
+    * Stop the lanes once they have run every task already submitted.
+    */
+   public void shutdown()
+   {
+      shutdown = true;
+      for (Lane lane : lanes) {
+         LockSupport.unpark(lane.thread);
+      }
+   }
+
+   @Override
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder();
+      sb.append("ShardedDispatchExecutor ").append(name).append(':');
+      for (Lane lane : lanes) {
+         sb.append(" [lane ").append(lane.index).append(": depth = ").append(lane.depth.get())
+           .append(", max depth = ").append(lane.maxDepth)
+           .append(", executed = ").append(lane.executed.sum())
+           .append(", stolen = ").append(lane.steals.sum()).append(']');
+      }
+      sb.append("; ").append(queueDelay);
+      return sb.toString();
+   }
+}
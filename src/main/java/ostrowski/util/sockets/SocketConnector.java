@@ -4,24 +4,76 @@
  */
 package ostrowski.util.sockets;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
+import ostrowski.protocol.ObjectReplicaCache;
+import ostrowski.protocol.ProtocolHello;
+import ostrowski.protocol.ProtocolInputStream;
+import ostrowski.protocol.ProtocolOutputStream;
 import ostrowski.protocol.Response;
 import ostrowski.protocol.SerializableFactory;
 import ostrowski.protocol.SerializableObject;
 import ostrowski.protocol.SyncRequest;
-import ostrowski.util.Semaphore;
-import ostrowski.util.SemaphoreAutoLocker;
+import ostrowski.protocol.WireFormat;
+import ostrowski.util.BufferPool;
+import ostrowski.util.HashedWheelTimer;
 
-public abstract class SocketConnector extends Thread
+public abstract class SocketConnector implements Runnable
 {
+   /**
+    * Determines what kind of thread runs the blocking read loop of a SocketConnector.
+    * VIRTUAL requires a JDK 21 (or later) runtime. When the running JVM does not
+    * support virtual threads, VIRTUAL falls back to PLATFORM threads.
+    */
+   public enum ExecutionMode {
+      PLATFORM,
+      VIRTUAL
+   }
+
+   /**
+    * Determines what sendObject() does when the outbound queue of a connection is full:
+    * BLOCK makes the sender wait until the writer has made room, or the block timeout
+    * runs out, in which case the connection is closed.
+    * DROP drops messages of the droppable message types, and makes the sender wait
+    * (as BLOCK does) for any other message.
+    * DISCONNECT closes the connection, on the assumption that a peer this far behind
+    * will never catch up.
+    */
+   public enum OverflowPolicy {
+      BLOCK,
+      DROP,
+      DISCONNECT
+   }
+
+   /**
+    * Notified when the outbound queue of a connection reaches its high watermark
+    * (writable = false), and when it has drained back to its low watermark (writable = true).
+    * Producers can use this to throttle, or coalesce, what they send to a slow peer.
+    * Notifications are made on the thread that caused the change, which may be the event loop,
+    * so they must not block.
+    */
+   public interface IWritabilityListener
+   {
+      void writabilityChanged(SocketConnector connector, boolean writable);
+   }
+
    public abstract void processReceivedObject(SerializableObject inObj);
 
    public abstract void handleDisconnect(SocketConnector diconnectedConnection);
@@ -31,18 +83,418 @@ public abstract class SocketConnector extends Thread
    public abstract void diag(String message);
 
    final boolean connected;
-   boolean          running;
+   volatile boolean running;
    Socket           socket       = null;
    DataInputStream  inputStream  = null;
    DataOutputStream outputStream = null;
-   static final HashMap<Integer, SyncRequest> syncMap          = new HashMap<>();
-   final        Semaphore                     lock_inputStream = new Semaphore("SocketConnector", Semaphore.CLASS_SOCKETCONNECTOR);
+   // Requests that have been sent on this connection, and are waiting for their answer.
+   // Entries are removed when their answer arrives, when they time out or are cancelled,
+   // when they have been waiting longer than pendingRequestTimeoutMillis (if set), or
+   // when this connection closes, which fails all of them at once.
+   final PendingRequestRegistry pendingRequests             = new PendingRequestRegistry();
+   private volatile long        pendingRequestTimeoutMillis = 0;
+   private final AtomicBoolean  evictionScheduled           = new AtomicBoolean(false);
+
+   private static final ThreadFactory        VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+   private static volatile ExecutionMode     defaultExecutionMode   = ExecutionMode.PLATFORM;
+   private                 ExecutionMode     executionMode;
+   private volatile        String            name;
+   private volatile        Thread            thread                 = null;
+
+   // Outgoing frames are serialized into frameBuffer, and then handed over to the outbound
+   // queue, from which a single writer sends them to the socket in batches. lock_output makes
+   // sure only one thread builds and queues a frame at a time, so frames are written in the
+   // order they were sent. Incoming frames are decoded through decodeStream, which is
+   // re-pointed at each received frame, and is only ever used by the thread reading this
+   // connection (or, with a receive pipeline, by its decode stage, one frame at a time). The byte arrays behind all of these are borrowed from the buffer pool only
+   // while a frame is being sent or received.
+   static final int INITIAL_FRAME_BUFFER_SIZE = 4 * 1024;
+   static final int MAX_FRAMES_PER_BATCH      = 64;
+   final BufferPool        bufferPool   = BufferPool.getDefault();
+   final OutboundQueue     outbound     = new OutboundQueue(bufferPool);
+   final FrameOutputBuffer    frameBuffer  = new FrameOutputBuffer(bufferPool, INITIAL_FRAME_BUFFER_SIZE);
+   final ProtocolOutputStream frameStream  = new ProtocolOutputStream(frameBuffer);
+   final ReentrantLock        lock_output  = new ReentrantLock();
+   final FrameInputBuffer     frameInput   = new FrameInputBuffer();
+   final ProtocolInputStream  decodeStream = new ProtocolInputStream(frameInput);
+   final ConnectionMetrics    metrics      = new ConnectionMetrics(this);
+
+   // The wire format this connector would like to use. Anything other than CLASSIC makes it
+   // send a ProtocolHello when it connects. outboundFormat is the format it actually sends,
+   // which only becomes COMPACT once the peer's hello has said the peer can decode it.
+   // Each frame is flagged with the format it was encoded in.
+   private static volatile WireFormat defaultWireFormat = WireFormat.CLASSIC;
+   private                 WireFormat wireFormat;
+   private volatile        WireFormat outboundFormat    = WireFormat.CLASSIC;
+   // The number of bytes of the peer's replicated objects this connector offers to hold in an
+   // ObjectReplicaCache, or 0 for none. Only used with the COMPACT format.
+   public static final int DEFAULT_REPLICA_CACHE_CAPACITY = 1024 * 1024;
+   private static volatile int        defaultReplicaCacheCapacity = 0;
+   private                 int        replicaCacheCapacity;
+   // Frames with payloads of at least compressionThreshold bytes are compressed, once the peer's
+   // hello has told us which codecs it can decompress. 0 turns compression off. Frames from
+   // the peer are decompressed whenever it flags them, whatever our own threshold is.
+   private static volatile int        defaultCompressionThreshold = 0;
+   private                 int        compressionThreshold;
+   private volatile        FrameCompressor compressor   = null;
+   private                 FrameCompressor decompressor = null;
+   // The length of a frame comes from the peer, so a frame (or decompressed payload) larger
+   // than maxFrameSize is taken to be corrupt, and closes the connection, instead of making
+   // us allocate a buffer of up to FrameOutputBuffer.LENGTH_MASK bytes for it.
+   public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+   private static volatile int        defaultMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+   private volatile        int        maxFrameSize;
+
+   // What to do when the outbound queue is full. See OverflowPolicy.
+   private volatile OverflowPolicy overflowPolicy        = OverflowPolicy.BLOCK;
+   private volatile long           blockTimeoutMillis    = 0;
+   private volatile Class<?>[]     droppableMessageTypes = new Class<?>[0];
+   private final List<IWritabilityListener> writabilityListeners = new CopyOnWriteArrayList<>();
+
+   // When a receive pipeline is set, received frames are handed over to decodeStage, which
+   // decodes them and hands the objects to one of the dispatchStages. Otherwise, frames
+   // are decoded and dispatched on the thread that read them.
+   private ReceivePipeline pipeline      = null;
+   private SerialStage     decodeStage   = null;
+   private SerialStage     dispatchStage = null;
+   // The objects handed over to dispatch that haven't been handled yet, plus one until the
+   // connection closes. Whoever brings it to zero calls handleDisconnect().
+   private final AtomicInteger undispatched = new AtomicInteger(1);
+   // Only used on the event loop thread: set while the decode stage is too full to read more.
+   private boolean         readPaused    = false;
+
+   // The thread that writes the outbound queue of a blocking connection. It is started by the
+   // first sendObject(), and stops once the outbound queue has been closed and emptied.
+   private Thread writerThread = null;
+
+   // Non-blocking transport state. This is only used when this connector has been
+   // attached to a SocketEventLoopGroup, in which case this thread is never started,
+   // and all reads & writes happen on the event loop thread. The readBuffer wraps an
+   // array borrowed from the buffer pool, which is given back whenever it holds no partial frame.
+   static final int INITIAL_READ_BUFFER_SIZE = 16 * 1024;
+   SocketChannel   channel      = null;
+   SocketEventLoop eventLoop    = null;
+   SelectionKey    selectionKey = null;
+   ByteBuffer      readBuffer   = null;
+   final ByteBuffer[]  writeBatch            = new ByteBuffer[MAX_FRAMES_PER_BATCH];
+   final AtomicBoolean flushScheduled        = new AtomicBoolean(false);
+   final AtomicBoolean delayedFlushScheduled = new AtomicBoolean(false);
+
+   // In-process transport state. This is only used when this connector has been connected to
+   // another one in the same JVM by LoopbackTransport, in which case frames (or the objects
+   // themselves, if both connectors allow it) go straight to the peer's read loop, and the
+   // outbound queue, writer thread and socket are never used.
+   LoopbackChannel          loopback              = null;
+   private volatile boolean loopbackObjectPassing = false;
 
    public SocketConnector(String threadName)
    {
-      super(threadName);
+      name = threadName;
+      executionMode = defaultExecutionMode;
+      wireFormat = defaultWireFormat;
+      replicaCacheCapacity = defaultReplicaCacheCapacity;
+      compressionThreshold = defaultCompressionThreshold;
+      maxFrameSize = defaultMaxFrameSize;
       connected = false;
       running = false;
+      outbound.setWatermarkListener(this::fireWritabilityChanged);
+   }
+
+   private static ThreadFactory createVirtualThreadFactory()
+   {
+      // Thread.ofVirtual() only exists in JDK 21 and later, and we still compile for 17,
+      // so look it up reflectively once.
+      try {
+         Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+         return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+         return null;
+      }
+   }
+
+   public static boolean isVirtualThreadSupported()
+   {
+      return VIRTUAL_THREAD_FACTORY != null;
+   }
+
+   /**
+    * Sets the execution mode used by all SocketConnectors created after this call.
+    */
+   public static void setDefaultExecutionMode(ExecutionMode mode)
+   {
+      defaultExecutionMode = mode;
+   }
+
+   /**
+    * Sets the execution mode of this connector. This must be called before start().
+    */
+   public void setExecutionMode(ExecutionMode mode)
+   {
+      if (thread != null) {
+         throw new IllegalStateException("SocketConnector " + name + " already started");
+      }
+      executionMode = mode;
+   }
+
+   public ExecutionMode getExecutionMode()
+   {
+      return executionMode;
+   }
+
+   /**
+    * Sets the wire format preferred by all SocketConnectors created after this call.
+    */
+   public static void setDefaultWireFormat(WireFormat format)
+   {
+      defaultWireFormat = format;
+   }
+
+   /**
+    * Sets the wire format this connector would like to use. This must be called before
+    * the connection is established. COMPACT is only used if the peer also asks for it.
+    */
+   public void setWireFormat(WireFormat format)
+   {
+      wireFormat = format;
+   }
+
+   /**
+    * Sets the replica cache capacity offered by all SocketConnectors created after this call.
+    */
+   public static void setDefaultReplicaCacheCapacity(int capacity)
+   {
+      defaultReplicaCacheCapacity = capacity;
+   }
+
+   /**
+    * Sets the number of bytes of the peer's replicated objects (see IReplicatedObject) this
+    * connector offers to hold, such as DEFAULT_REPLICA_CACHE_CAPACITY, so that the peer only
+    * needs to send changes to them. This must be called
+    * before the connection is established. Replica caches are only used if both sides offer
+    * one, and both use the COMPACT wire format.
+    */
+   public void setReplicaCacheCapacity(int capacity)
+   {
+      replicaCacheCapacity = capacity;
+   }
+
+   /**
+    * Hand received frames over to the stages of the given pipeline to be decoded and
+    * dispatched, so that the thread reading this connection can go on reading while an
+    * object is being handled. This must be called before the connection is established.
+    */
+   public void setReceivePipeline(ReceivePipeline pipeline)
+   {
+      this.pipeline = pipeline;
+      decodeStage = (pipeline == null) ? null : pipeline.newDecodeStage(name);
+      dispatchStage = (pipeline == null) ? null : pipeline.newDispatchStage(name);
+   }
+
+   public ReceivePipeline getReceivePipeline(){ return pipeline;}
+   public SerialStage     getDecodeStage()    { return decodeStage;}
+   /**
+    * @return the dispatch stage of this connection, or null if its pipeline dispatches by key.
+    */
+   public SerialStage     getDispatchStage()  { return dispatchStage;}
+
+   /**
+    * Sets the compression threshold of all SocketConnectors created after this call.
+    */
+   public static void setDefaultCompressionThreshold(int threshold)
+   {
+      defaultCompressionThreshold = threshold;
+   }
+
+   /**
+    * Compress every frame whose payload is at least 'threshold' bytes (such as
+    * FrameCompressor.DEFAULT_THRESHOLD), or 0 to never compress. This must be called before
+    * the connection is established. Frames are only compressed with the COMPACT wire format,
+    * since the codec is agreed on in the ProtocolHello, and only while it saves enough.
+    */
+   public void setCompressionThreshold(int threshold)
+   {
+      compressionThreshold = threshold;
+   }
+
+   /**
+    * Sets the maximum frame size of all SocketConnectors created after this call.
+    */
+   public static void setDefaultMaxFrameSize(int size)
+   {
+      defaultMaxFrameSize = size;
+   }
+
+   /**
+    * Sets the largest frame (after decompression) this connector accepts from its peer.
+    * A larger frame closes the connection, since its length can't be trusted.
+    */
+   public void setMaxFrameSize(int size)
+   {
+      maxFrameSize = size;
+   }
+
+   public int getMaxFrameSize()
+   {
+      return maxFrameSize;
+   }
+
+   /**
+    * @return the compressor of the frames this connector sends, whose counters say how much it
+    *         saves, or null if this connector doesn't compress.
+    */
+   public FrameCompressor getCompressor()
+   {
+      return compressor;
+   }
+
+   /**
+    * @return the cache this connector sends replicated objects through, whose counters say
+    *         how much it saves, or null if the peer doesn't hold replicas.
+    */
+   public ObjectReplicaCache getReplicaCache()
+   {
+      return frameStream.getReplicaCache();
+   }
+
+   /**
+    * @return the wire format that this connector is currently sending in.
+    */
+   public WireFormat getOutboundWireFormat()
+   {
+      return outboundFormat;
+   }
+
+   // Tells the peer which wire formats we can decode, and how to decode our type IDs.
+   // This must be the first frame sent on the connection.
+   private void sendHello()
+   {
+      if (wireFormat != WireFormat.CLASSIC) {
+         List<String> typeKeys = SerializableFactory.getTypeKeys();
+         frameStream.setAnnouncedTypeCount(typeKeys.size());
+         int replicaCapacity = (wireFormat == WireFormat.COMPACT) ? replicaCacheCapacity : 0;
+         // Once we have said we decode escaped strings, a CLASSIC length of -1 means one follows.
+         decodeStream.setAcceptingEscapedStrings(true);
+         sendObject(new ProtocolHello(WireFormat.CLASSIC.mask | wireFormat.mask | ProtocolHello.FEATURE_ESCAPED_STRINGS,
+                                      typeKeys, replicaCapacity, FrameCompressor.getCodecNames()), getName());
+      }
+   }
+
+   private void handleHello(ProtocolHello hello)
+   {
+      decodeStream.setPeerTypeKeys(hello.getTypeKeys());
+      boolean compact = (wireFormat == WireFormat.COMPACT) && hello.supports(WireFormat.COMPACT);
+      boolean replicate = compact && (replicaCacheCapacity > 0) && (hello.getReplicaCacheCapacity() > 0);
+      String outboundCodec = null;
+      if (compact) {
+         if (replicate) {
+            // Each side's cache must match the one its peer mirrors it with, so we hold the
+            // peer's replicas in a cache of the capacity we offered, and send ours through
+            // a cache of the capacity the peer offered. The peer's hello is the first frame
+            // it sends, so nothing it sent before could have been sent through its cache.
+            decodeStream.setReplicaCache(new ObjectReplicaCache(replicaCacheCapacity));
+         }
+         // The peer compresses with the first of the codecs it listed that we can decompress, and we
+         // compress with the first of ours that it can.
+         String inboundCodec = FrameCompressor.negotiate(hello.getCompressionCodecs(), FrameCompressor.getCodecNames());
+         if (inboundCodec != null) {
+            decompressor = new FrameCompressor(inboundCodec, bufferPool, 0, 0);
+         }
+         outboundCodec = FrameCompressor.negotiate(FrameCompressor.getCodecNames(), hello.getCompressionCodecs());
+      }
+      // Senders read the outbound state while holding lock_output, so switching all of it
+      // under that lock means each frame is encoded entirely before or entirely after the switch.
+      // A sender only waits while holding lock_output for room in a loopback peer's ring,
+      // which the peer's reader frees without needing our lock, so the reading thread can take it.
+      lock_output.lock();
+      try {
+         // Strings that aren't short Latin-1 ones are only escaped for a peer that can decode them.
+         frameStream.setEscapingStrings(hello.supportsEscapedStrings());
+         if (compact) {
+            if (replicate) {
+               frameStream.setReplicaCache(new ObjectReplicaCache(hello.getReplicaCacheCapacity()));
+            }
+            if ((outboundCodec != null) && (compressionThreshold > 0)) {
+               compressor = new FrameCompressor(outboundCodec, bufferPool, compressionThreshold, FrameCompressor.DEFAULT_MIN_SAVINGS);
+            }
+            outboundFormat = WireFormat.COMPACT;
+         }
+      } finally {
+         lock_output.unlock();
+      }
+      diag("peer of " + getName() + " sent " + hello + ", sending in " + outboundFormat + " format");
+   }
+
+   /**
+    * Starts the blocking read loop of this connector on a new platform or virtual thread,
+    * depending on the execution mode. Connectors that are attached to a SocketEventLoopGroup
+    * must not be started.
+    */
+   public synchronized void start()
+   {
+      if (thread != null) {
+         throw new IllegalStateException("SocketConnector " + name + " already started");
+      }
+      thread = newThread(this, name);
+      thread.start();
+   }
+
+   private Thread newThread(Runnable task, String threadName)
+   {
+      if ((executionMode == ExecutionMode.VIRTUAL) && (VIRTUAL_THREAD_FACTORY != null)) {
+         Thread newThread = VIRTUAL_THREAD_FACTORY.newThread(task);
+         newThread.setName(threadName);
+         return newThread;
+      }
+      return new Thread(task, threadName);
+   }
+
+   public Thread getThread()
+   {
+      return thread;
+   }
+
+   public String getName()
+   {
+      return name;
+   }
+
+   public void setName(String name)
+   {
+      this.name = name;
+      Thread currentThread = thread;
+      if (currentThread != null) {
+         currentThread.setName(name);
+      }
+   }
+
+   public boolean isAlive()
+   {
+      Thread currentThread = thread;
+      return (currentThread != null) && currentThread.isAlive();
+   }
+
+   public void interrupt()
+   {
+      Thread currentThread = thread;
+      if (currentThread != null) {
+         currentThread.interrupt();
+      }
+   }
+
+   public void join() throws InterruptedException
+   {
+      Thread currentThread = thread;
+      if (currentThread != null) {
+         currentThread.join();
+      }
+   }
+
+   public void join(long millis) throws InterruptedException
+   {
+      Thread currentThread = thread;
+      if (currentThread != null) {
+         currentThread.join(millis);
+      }
    }
 
    public void connect(String ipAddress, int port)
@@ -55,12 +507,51 @@ public abstract class SocketConnector extends Thread
       }
    }
 
+   public void connect(String ipAddress, int port, SocketEventLoopGroup eventLoopGroup)
+   {
+      eventLoopGroup.connect(ipAddress, port, this);
+   }
+
    public void setSocket(Socket socket)
    {
       this.socket = socket;
       initStreams();
    }
 
+   /**
+    * Connect to a LoopbackTransport server in the same JVM. As with connect(ipAddress, port),
+    * the connector must then be start()ed.
+    */
+   public void connectLoopback(int port)
+   {
+      LoopbackTransport.connect(port, this);
+   }
+
+   /**
+    * Allows a LoopbackTransport connection to hand the objects this connector sends (other than
+    * requests) to its peer as they are, without serializing them, if the peer allows it too.
+    * Objects must then never be changed once they have been sent, nor after they have been received.
+    * This must be called before the connection is established.
+    */
+   public void setLoopbackObjectPassing(boolean allowed)
+   {
+      loopbackObjectPassing = allowed;
+   }
+
+   public boolean isLoopbackObjectPassing()
+   {
+      return loopbackObjectPassing;
+   }
+
+   // Called by LoopbackTransport once both ends of the connection exist.
+   void attachLoopback(LoopbackChannel loopback)
+   {
+      this.loopback = loopback;
+      diag("connected through loopback" + (loopback.passesObjects() ? ", passing objects" : ""));
+      sendHello();
+      handleConnect(this);
+   }
+
    public void initStreams()
    {
       if (socket != null) {
@@ -72,6 +563,7 @@ public abstract class SocketConnector extends Thread
          } catch (IOException e) {
             e.printStackTrace();
          }
+         sendHello();
          handleConnect(this);
       }
       else {
@@ -81,18 +573,32 @@ public abstract class SocketConnector extends Thread
 
    public void shutdown()
    {
+      if (channel != null) {
+         eventLoop.execute(this::closeChannel);
+         return;
+      }
       running = false;
+      if (loopback != null) {
+         // The read loops of both ends see the close once they have read what's already been sent.
+         loopback.close();
+         return;
+      }
+      // Give the writer a moment to send what has already been queued.
+      outbound.close();
+      Thread writer = getWriterThread();
+      if ((writer != null) && (writer != Thread.currentThread())) {
+         try {
+            writer.join(1000);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
       try {
          socket.shutdownInput();
          socket.shutdownOutput();
          socket.close();
          inputStream.close();
-         synchronized (inputStream) {
-            try (SemaphoreAutoLocker sal = new SemaphoreAutoLocker(lock_inputStream)) {
-               inputStream.notifyAll();
-            }
-         }
-         this.interrupt();
+         interrupt();
       } catch (IOException e) {
       }
    }
@@ -110,7 +616,17 @@ public abstract class SocketConnector extends Thread
          } catch (IOException e) {
          }
       }
-      handleDisconnect(this);
+      else if (loopback != null) {
+         try {
+            Object item;
+            while (running && ((item = loopback.receive()) != null)) {
+               receiveFromLoopback(item);
+            }
+         } catch (IOException e) {
+         }
+      }
+      outbound.close();
+      handleClosed();
       diag("terminating thread " + getName());
    }
 
@@ -121,123 +637,950 @@ public abstract class SocketConnector extends Thread
       // Receive the ID of the incoming event from the client and
       // create an event object of the appropriate type with data
       // from the stream
-      int msgSize = inputStream.readInt();
-      byte[] msgBuf = new byte[msgSize];
-      inputStream.readFully(msgBuf);
-      byte[] diagBuf = new byte[msgSize+4];
-      diagBuf[0] = (byte)(msgSize >>> 24);
-      diagBuf[1] = (byte)(msgSize >>> 16);
-      diagBuf[2] = (byte)(msgSize >>>  8);
-      diagBuf[3] = (byte)(msgSize >>>  0);
-      System.arraycopy(msgBuf, 0, diagBuf, 4, msgSize);
+      int header = inputStream.readInt();
+      int msgSize = header & FrameOutputBuffer.LENGTH_MASK;
+      if (msgSize > maxFrameSize) {
+         metrics.recordDecodeError();
+         throw new IOException("frame of " + msgSize + " bytes from " + getName()
+                               + " is larger than the maximum frame size of " + maxFrameSize);
+      }
+      byte[] msgBuf = bufferPool.acquire(msgSize);
+      boolean handedOver = false;
+      try {
+         inputStream.readFully(msgBuf, 0, msgSize);
+         if (decodeStage != null) {
+            // Wait for room in the decode queue, which stops us reading while it is full.
+            decodeStage.put(decodeTask(msgBuf, 0, msgSize, header & ~FrameOutputBuffer.LENGTH_MASK));
+            handedOver = true;
+         }
+         else {
+            processMessage(msgBuf, 0, msgSize, header & ~FrameOutputBuffer.LENGTH_MASK);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while waiting for room in the decode queue of " + getName());
+      } finally {
+         if (!handedOver) {
+            bufferPool.release(msgBuf);
+         }
+      }
+   }
+
+   // Handles an item sent by the loopback peer: either a frame, just as it would have been
+   // written to a socket, or an object that was sent without being serialized.
+   private void receiveFromLoopback(Object item) throws IOException
+   {
+      try {
+         if (item instanceof SerializableObject) {
+            SerializableObject inObj = (SerializableObject) item;
+            metrics.recordReceived(0);
+            if (decodeStage != null) {
+               // There is nothing to decode, but the object must still be handled in order with any frames.
+               decodeStage.put(() -> handleReceivedObject(inObj));
+            }
+            else {
+               handleReceivedObject(inObj);
+            }
+            return;
+         }
+         byte[] frame = (byte[]) item;
+         int header = ((frame[0] & 0xFF) << 24) | ((frame[1] & 0xFF) << 16) | ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF);
+         int msgSize = header & FrameOutputBuffer.LENGTH_MASK;
+         int flags = header & ~FrameOutputBuffer.LENGTH_MASK;
+         if (decodeStage != null) {
+            decodeStage.put(decodeTask(frame, FrameOutputBuffer.HEADER_SIZE, msgSize, flags));
+         }
+         else {
+            try {
+               processMessage(frame, FrameOutputBuffer.HEADER_SIZE, msgSize, flags);
+            } finally {
+               bufferPool.release(frame);
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while waiting for room in the decode queue of " + getName());
+      }
+   }
+
+   // Decodes a frame read into a buffer borrowed from the buffer pool, which it then releases.
+   private Runnable decodeTask(byte[] msgBuf, int offset, int msgSize, int flags)
+   {
+      return () -> {
+         try {
+            processMessage(msgBuf, offset, msgSize, flags);
+         } catch (IOException e) {
+            diag("unable to decode frame from " + getName() + ", closing connection: " + e);
+            shutdown();
+         } finally {
+            bufferPool.release(msgBuf);
+         }
+      };
+   }
+
+   // Hands an object that wasn't an answer to a request over to the subclass.
+   private void dispatch(SerializableObject inObj)
+   {
+      if (pipeline == null) {
+         processReceivedObject(inObj);
+         return;
+      }
+      undispatched.incrementAndGet();
+      Runnable task = () -> {
+         try {
+            processReceivedObject(inObj);
+         } finally {
+            dispatched();
+         }
+      };
+      try {
+         if (dispatchStage != null) {
+            dispatchStage.put(task);
+         }
+         else {
+            pipeline.getKeyedExecutor().execute(pipeline.keyFor(inObj, this), task);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         task.run();
+      }
+   }
+
+   private void dispatched()
+   {
+      if (undispatched.decrementAndGet() == 0) {
+         handleDisconnect(this);
+      }
+   }
+
+   // Fails the requests still waiting for an answer, and tells the subclass the connection
+   // closed. With a receive pipeline, this waits until every frame already read has been
+   // decoded, and every object already decoded has been dispatched.
+   private void handleClosed()
+   {
+      metrics.unregisterMBean();
+      if (decodeStage == null) {
+         failPendingRequests();
+         handleDisconnect(this);
+         return;
+      }
+      decodeStage.add(() -> {
+         failPendingRequests();
+         dispatched();
+      });
+   }
+
+   private void processMessage(byte[] msgBuf, int offset, int msgSize, int flags) throws IOException
+   {
       if (FULL_BUFFER_DUMP_TO_DIAG) {
+         int header = msgSize | flags;
+         byte[] diagBuf = new byte[msgSize+4];
+         diagBuf[0] = (byte)(header >>> 24);
+         diagBuf[1] = (byte)(header >>> 16);
+         diagBuf[2] = (byte)(header >>>  8);
+         diagBuf[3] = (byte)(header >>>  0);
+         System.arraycopy(msgBuf, offset, diagBuf, 4, msgSize);
          StringBuilder sb = new StringBuilder();
          sb.append("received object:");
-         appendByteBufferDump(sb, diagBuf);
+         appendByteBufferDump(sb, diagBuf, diagBuf.length);
          diag(sb.toString());
       }
 
-      try (ByteArrayInputStream inBuf = new ByteArrayInputStream(msgBuf);
-           DataInputStream inStream = new DataInputStream(inBuf))
-      {
+      metrics.recordReceived(msgSize + FrameOutputBuffer.HEADER_SIZE);
+      long decodeStart = System.nanoTime();
+      byte[] decompressed = null;
+      SerializableObject inObj;
+      try {
+         if ((flags & FrameOutputBuffer.FLAG_COMPRESSED) != 0) {
+            if (decompressor == null) {
+               throw new IOException("received a compressed frame, but no compression codec was agreed on");
+            }
+            decompressed = decompressor.decompress(msgBuf, offset, msgSize, frameInput, maxFrameSize);
+         }
+         else {
+            frameInput.reset(msgBuf, offset, msgSize);
+         }
+         decodeStream.setCompact((flags & FrameOutputBuffer.FLAG_COMPACT) != 0);
          // Receive the ID of the incoming event from the client and
          // create an event object of the appropriate type with data
          // from the stream
-         String eventID = SerializableObject.readString(inStream);
-         SerializableObject inObj = SerializableFactory.readObject(eventID, inStream);
-         if (inObj != null) {
-            diag("received object: " + inObj);
-            boolean handled = false;
-            SyncRequest origObj = null;
-            if (inObj instanceof Response) {
-               Response response = (Response) inObj;
-               origObj = syncMap.remove(response.getSyncKey());
+         inObj = SerializableFactory.readObject(decodeStream);
+      } catch (IOException e) {
+         metrics.recordDecodeError();
+         throw e;
+      } finally {
+         // Decoded objects never refer to the frame's bytes, so we're done with them.
+         bufferPool.release(decompressed);
+      }
+      metrics.recordDecode(System.nanoTime() - decodeStart);
+      handleReceivedObject(inObj);
+   }
+
+   // Matches a received object to the request waiting for it, if it answers one,
+   // and dispatches it otherwise.
+   private void handleReceivedObject(SerializableObject inObj)
+   {
+      if (inObj instanceof ProtocolHello) {
+         handleHello((ProtocolHello) inObj);
+         return;
+      }
+      if (inObj != null) {
+         diag("received object: " + inObj);
+         boolean handled = false;
+         SyncRequest origObj = null;
+         if (inObj instanceof Response) {
+            Response response = (Response) inObj;
+            origObj = pendingRequests.remove(response.getSyncKey());
+            if (origObj != null) {
                origObj.setFullAnswerID(response.getFullAnswerID());
             }
-            if (inObj instanceof SyncRequest) {
-               SyncRequest newReq = (SyncRequest) inObj;
-               origObj = syncMap.remove(newReq.getSyncKey());
-               if (origObj != null) {
-                  diag("original Object found.");
-                  origObj.copyAnswer(newReq);
-                  origObj.setResponse(newReq);
-               }
+            else {
+               diag("no request waiting for response (it may have timed out or been cancelled): " + response);
             }
+         }
+         if (inObj instanceof SyncRequest) {
+            SyncRequest newReq = (SyncRequest) inObj;
+            origObj = pendingRequests.remove(newReq.getSyncKey());
             if (origObj != null) {
-               synchronized (origObj) {
-                  origObj.notifyAll();
-               }
-               List<SyncRequest> resultsQueue = origObj.getResultsQueue();
-               if (resultsQueue != null) {
-                  synchronized (resultsQueue) {
-                     diag("about to lock results Queue:" + resultsQueue);
-                     diag("locked results Queue:" + resultsQueue);
-                     resultsQueue.add(origObj);
-                     resultsQueue.notifyAll();
-                     diag("about to release lock of results Queue ");
-                  }
-               }
-               else {
-                  diag("no results Queue found.");
+               diag("original Object found.");
+               origObj.copyAnswer(newReq);
+               origObj.setResponse(newReq);
+            }
+         }
+         if (origObj != null) {
+            metrics.recordAnswer(origObj);
+            origObj.notifyAnswerWaiters();
+            List<SyncRequest> resultsQueue = origObj.getResultsQueue();
+            if (resultsQueue != null) {
+               // Don't diag while we hold the monitor of the results queue, because
+               // logging may block, which would pin the carrier of a virtual thread.
+               diag("adding to results Queue:" + resultsQueue);
+               synchronized (resultsQueue) {
+                  resultsQueue.add(origObj);
+                  resultsQueue.notifyAll();
                }
-               handled = true;
             }
-            if (!handled) {
-               processReceivedObject(inObj);
+            else {
+               diag("no results Queue found.");
             }
+            handled = true;
+         }
+         if (!handled) {
+            dispatch(inObj);
          }
       }
    }
 
    public boolean sendObject(SerializableObject objToSend, String target)
    {
-      // Get everything were going to send into a ByteBuffer first
+      return sendObject(objToSend, target, getDefaultRequestDeadline());
+   }
+
+   private boolean sendObject(SerializableObject objToSend, String target, long requestDeadlineNanos)
+   {
+      // Decide what to do about a full queue before we spend any time encoding the message.
+      if (!hasCapacity() && !handleOverflow(objToSend, target)) {
+         return false;
+      }
+      if ((loopback != null) && loopback.passesObject(objToSend)) {
+         return sendLoopbackObject(objToSend, target);
+      }
+      // Get everything were going to send into our frame buffer first
       // so that we can send it all in one TCP/IP block, which
-      // reduces the overhead of sending the data.
-      try (ByteArrayOutputStream outBuf = new ByteArrayOutputStream();
-           DataOutputStream outStream = new DataOutputStream(outBuf))
-      {
-         String key = SerializableFactory.getKey(objToSend);
-         SerializableObject.writeToStream(key, outStream);
+      // reduces the overhead of sending the data. The length header is
+      // reserved up front and patched in place, so the frame is written
+      // straight out of the frame buffer, without any intermediate copies.
+      // lock_output is a plain lock, not an order-checked Semaphore, because senders may
+      // already hold Semaphores of their own. Nothing that logs or calls back into user code
+      // runs while we hold it: diags are built under the lock, but only logged after we
+      // release it, and so are the outbound queue's watermark notifications.
+      String bufferDump = null;
+      String failure = null;
+      long duration = 0;
+      lock_output.lock();
+      try {
+         frameBuffer.beginFrame();
+         // Read the outbound state once, so the whole frame is encoded the same way.
+         boolean compact = (outboundFormat == WireFormat.COMPACT);
+         FrameCompressor frameCompressor = compressor;
+         frameStream.setCompact(compact);
          if (objToSend instanceof SyncRequest) {
             SyncRequest actReq = (SyncRequest) objToSend;
             // Only track the request message, not the response going back.
             if (!actReq.isAnswered()) {
-               syncMap.put(actReq.getSyncKey(), actReq);
+               actReq.setSentNanos(System.nanoTime());
+               metrics.recordRequestSent();
+               pendingRequests.put(actReq.getSyncKey(), actReq, requestDeadlineNanos);
+               if (requestDeadlineNanos != PendingRequestRegistry.NO_DEADLINE) {
+                  scheduleEviction();
+               }
             }
          }
-         objToSend.serializeToStream(outStream);
-         byte[] dataArray = outBuf.toByteArray();
-         int msgSize = dataArray.length;
-         byte[] newBuf = new byte[msgSize+4];
-         newBuf[0] = (byte)(msgSize >>> 24);
-         newBuf[1] = (byte)(msgSize >>> 16);
-         newBuf[2] = (byte)(msgSize >>>  8);
-         newBuf[3] = (byte)(msgSize >>>  0);
-         System.arraycopy(dataArray, 0, newBuf, 4, msgSize);
+         long encodeStart = System.nanoTime();
+         SerializableFactory.writeObject(objToSend, frameStream);
+         int flags = compact ? FrameOutputBuffer.FLAG_COMPACT : 0;
+         if ((frameCompressor != null) && frameCompressor.compress(frameBuffer)) {
+            flags |= FrameOutputBuffer.FLAG_COMPRESSED;
+         }
+         frameBuffer.endFrame(flags);
+         metrics.recordEncode(System.nanoTime() - encodeStart);
+         int frameSize = frameBuffer.size();
          if (FULL_BUFFER_DUMP_TO_DIAG) {
             StringBuilder sb = new StringBuilder();
             sb.append("sending to ").append(target).append(":");
-            appendByteBufferDump(sb, newBuf);
-            diag(sb.toString());
+            appendByteBufferDump(sb, frameBuffer.array(), frameBuffer.size());
+            bufferDump = sb.toString();
          }
 
          long timeStart = System.currentTimeMillis();
-         outputStream.write(newBuf);
-         long duration = System.currentTimeMillis() - timeStart;
-         diag("sent object: (" + duration + "ms) to " + target + ": " + objToSend);
-         return true;
+         if (enqueueFrame()) {
+            metrics.recordSent(frameSize);
+            duration = System.currentTimeMillis() - timeStart;
+         }
+         else {
+            metrics.recordSendError();
+            failure = "unable to send to " + target + ", connection closed: " + objToSend;
+         }
       } catch (IOException e) {
+         metrics.recordSendError();
          e.printStackTrace();
+         return false;
+      } finally {
+         // Give the buffer back before anyone else can start a frame in it.
+         frameBuffer.release();
+         lock_output.unlock();
+         outbound.notifyWritabilityChanged();
+      }
+      if (failure != null) {
+         diag(failure);
+         return false;
+      }
+      if (bufferDump != null) {
+         diag(bufferDump);
+      }
+      diag("sent object: (" + duration + "ms) to " + target + ": " + objToSend);
+      return true;
+   }
+
+   // Hands the object itself over to the loopback peer, instead of a frame holding it.
+   private boolean sendLoopbackObject(SerializableObject objToSend, String target)
+   {
+      boolean sent;
+      lock_output.lock();
+      try {
+         sent = sendToLoopback(objToSend);
+      } finally {
+         lock_output.unlock();
+      }
+      if (!sent) {
+         metrics.recordSendError();
+         diag("unable to send to " + target + ", connection closed: " + objToSend);
+         return false;
+      }
+      metrics.recordSent(0);
+      diag("sent object: (loopback) to " + target + ": " + objToSend);
+      return true;
+   }
+
+   // Must be called while holding lock_output, which keeps the loopback ring to a single producer.
+   private boolean sendToLoopback(Object item)
+   {
+      try {
+         if (loopback.send(item, blockTimeoutMillis)) {
+            return true;
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return false;
+      }
+      // The connection has closed, or the peer's ring stayed full for the whole block timeout.
+      closeOnOverflow();
+      return false;
+   }
+
+   /**
+    * Send a request, and return a future that completes with the request once its answer
+    * has been received. Unlike waiting on the request (or its results queue), waiting
+    * for the future costs no thread. The future completes exceptionally with a
+    * TimeoutException if no answer arrives within timeoutMillis, and with an IOException
+    * if the request could not be sent. Cancelling the future stops waiting for the answer.
+    * The future is completed on the thread that reads this connection, so dependent
+    * actions that might block should use the ...Async() methods of CompletableFuture.
+    * @param request       The request to send
+    * @param timeoutMillis The time to wait for an answer, or 0 to wait forever
+    */
+   public CompletableFuture<SyncRequest> sendRequest(SyncRequest request, long timeoutMillis)
+   {
+      CompletableFuture<SyncRequest> future = new CompletableFuture<>();
+      request.setResponseFuture(future);
+      int syncKey = request.getSyncKey();
+      long deadline = getDefaultRequestDeadline();
+      if (timeoutMillis > 0) {
+         deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      }
+      future.whenComplete((result, ex) -> {
+         if (future.isCancelled()) {
+            pendingRequests.remove(syncKey, request);
+         }
+      });
+      if (!sendObject(request, getName(), deadline)) {
+         pendingRequests.remove(syncKey, request);
+         future.completeExceptionally(new IOException("unable to send request " + syncKey + " on " + getName()));
+         return future;
+      }
+      // The request is only in pendingRequests once sendObject() has put it there, so the timeout
+      // is only started now. Otherwise, a send that waited long enough for the output lock (or
+      // for room in the queue) could time out before the request was put in, and then stay there.
+      if (future.isDone()) {
+         // Cancelled (or answered) while we were sending it.
+         pendingRequests.remove(syncKey, request);
+      }
+      else if (timeoutMillis > 0) {
+         HashedWheelTimer.Timeout timeout = HashedWheelTimer.getDefault().newTimeout(() -> {
+            if (pendingRequests.remove(syncKey, request)) {
+               metrics.recordRequestTimeout();
+               future.completeExceptionally(new TimeoutException("no answer to request " + syncKey + " after "
+                                                                 + timeoutMillis + "ms from " + getName()));
+            }
+         }, timeoutMillis, TimeUnit.MILLISECONDS);
+         future.whenComplete((result, ex) -> timeout.cancel());
+      }
+      return future;
+   }
+
+   /**
+    * Requests sent with sendObject() that have not been answered after this long are
+    * forgotten, and fail if they were sent with sendRequest(). 0 (the default) keeps them
+    * until they are answered or this connection closes.
+    */
+   public void setPendingRequestTimeout(long timeoutMillis)
+   {
+      pendingRequestTimeoutMillis = timeoutMillis;
+   }
+
+   public int getPendingRequestCount()
+   {
+      return pendingRequests.size();
+   }
+
+   private long getDefaultRequestDeadline()
+   {
+      long timeoutMillis = pendingRequestTimeoutMillis;
+      if (timeoutMillis <= 0) {
+         return PendingRequestRegistry.NO_DEADLINE;
+      }
+      return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+   }
+
+   private void scheduleEviction()
+   {
+      if (evictionScheduled.compareAndSet(false, true)) {
+         long delayMillis = Math.max(pendingRequestTimeoutMillis, 100);
+         HashedWheelTimer.getDefault().newTimeout(this::evictExpiredRequests, delayMillis, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   private void evictExpiredRequests()
+   {
+      evictionScheduled.set(false);
+      for (SyncRequest request : pendingRequests.evictExpired(System.nanoTime())) {
+         failRequest(request, new TimeoutException("no answer to request " + request.getSyncKey() + " from " + getName()));
+      }
+      if (running && (pendingRequests.size() > 0)) {
+         scheduleEviction();
+      }
+   }
+
+   // Fails every request still waiting for an answer on this connection.
+   private void failPendingRequests()
+   {
+      for (SyncRequest request : pendingRequests.removeAll()) {
+         failRequest(request, new IOException("connection " + getName() + " closed"));
+      }
+   }
+
+   private void failRequest(SyncRequest request, Exception reason)
+   {
+      diag("giving up on request " + request.getSyncKey() + ": " + reason.getMessage());
+      if (reason instanceof TimeoutException) {
+         metrics.recordRequestTimeout();
+      }
+      else {
+         metrics.recordRequestFailure();
+      }
+      CompletableFuture<SyncRequest> future = request.getResponseFuture();
+      if (future != null) {
+         future.completeExceptionally(reason);
+      }
+   }
+
+   /**
+    * Configures how frames are batched into socket writes. Queued frames are written as
+    * soon as maxBatchBytes are waiting, or once the oldest of them has waited maxFlushDelay.
+    * A maxFlushDelay of 0 (the default) writes frames as soon as the writer is free, so
+    * only frames sent while an earlier write is in progress are coalesced.
+    */
+   public void setWriteBatching(int maxBatchBytes, long maxFlushDelay, TimeUnit unit)
+   {
+      outbound.setBatching(maxBatchBytes, maxFlushDelay, unit);
+   }
+
+   /**
+    * @return the outbound queue of this connection, which holds the write batching metrics.
+    */
+   public OutboundQueue getOutboundQueue()
+   {
+      return outbound;
+   }
+
+   /**
+    * Bounds the outbound queue of this connection.
+    * @param capacityBytes The number of queued bytes at which the queue is full, or 0 for no limit
+    * @param policy        What sendObject() does when the queue is full
+    */
+   public void setOutboundCapacity(int capacityBytes, OverflowPolicy policy)
+   {
+      outbound.setCapacity(capacityBytes);
+      overflowPolicy = policy;
+   }
+
+   /**
+    * @param timeoutMillis How long a sender may wait for room in a full outbound queue before
+    *                      the connection is closed, or 0 (the default) to wait forever.
+    */
+   public void setBlockTimeout(long timeoutMillis)
+   {
+      blockTimeoutMillis = timeoutMillis;
+   }
+
+   /**
+    * Sets the message types (including their subclasses) that the DROP policy may drop
+    * when the outbound queue is full, such as state updates that will be superseded anyway.
+    */
+   public void setDroppableMessageTypes(Class<?>... messageTypes)
+   {
+      droppableMessageTypes = messageTypes.clone();
+   }
+
+   /**
+    * @param lowWatermarkBytes  The queued bytes at which the connection becomes writable again
+    * @param highWatermarkBytes The queued bytes at which the connection becomes unwritable
+    */
+   public void setWriteWatermarks(int lowWatermarkBytes, int highWatermarkBytes)
+   {
+      outbound.setWatermarks(lowWatermarkBytes, highWatermarkBytes);
+   }
+
+   /**
+    * @return false while the outbound queue is above its high watermark (until it has
+    *         drained back to the low watermark).
+    */
+   public boolean isWritable()
+   {
+      return outbound.isWritable();
+   }
+
+   public void addWritabilityListener(IWritabilityListener listener)
+   {
+      writabilityListeners.add(listener);
+   }
+
+   public void removeWritabilityListener(IWritabilityListener listener)
+   {
+      writabilityListeners.remove(listener);
+   }
+
+   /**
+    * @return the number of messages dropped by the DROP overflow policy.
+    */
+   public long getDroppedMessageCount()
+   {
+      return metrics.getDroppedMessages();
+   }
+
+   /**
+    * @return the traffic, timing and error counts of this connection.
+    */
+   public ConnectionMetrics getMetrics()
+   {
+      return metrics;
+   }
+
+   private void fireWritabilityChanged(boolean writable)
+   {
+      diag("outbound queue of " + getName() + (writable ? " is writable again" : " reached its high watermark"));
+      for (IWritabilityListener listener : writabilityListeners) {
+         listener.writabilityChanged(this, writable);
+      }
+   }
+
+   // Whether there is room for another frame, in the outbound queue, or the loopback peer's ring.
+   private boolean hasCapacity()
+   {
+      return (loopback != null) ? loopback.hasRoom() : outbound.hasCapacity();
+   }
+
+   private boolean isDroppable(SerializableObject objToSend)
+   {
+      for (Class<?> messageType : droppableMessageTypes) {
+         if (messageType.isInstance(objToSend)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // Called when the outbound queue is full, before objToSend has been encoded.
+   // Returns true if objToSend should be sent anyway, or false if it has been dropped.
+   private boolean handleOverflow(SerializableObject objToSend, String target)
+   {
+      OverflowPolicy policy = overflowPolicy;
+      if ((policy == OverflowPolicy.DROP) && isDroppable(objToSend)) {
+         metrics.recordDroppedMessage();
+         diag("outbound queue full, dropped message to " + target + ": " + objToSend);
+         return false;
+      }
+      if (policy == OverflowPolicy.DISCONNECT) {
+         diag("outbound queue full, disconnecting " + getName());
+         closeOnOverflow();
+         return false;
+      }
+      if ((eventLoop != null) && eventLoop.inEventLoop()) {
+         // The event loop is what empties the queue, so it must never wait for room in it.
+         return true;
+      }
+      long timeoutMillis = blockTimeoutMillis;
+      try {
+         if ((loopback != null) ? loopback.awaitRoom(timeoutMillis) : outbound.awaitCapacity(timeoutMillis)) {
+            return true;
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return false;
       }
+      diag("outbound queue has been full for " + timeoutMillis + "ms, disconnecting " + getName());
+      closeOnOverflow();
       return false;
    }
 
+   // Closes the connection without waiting for the outbound queue to drain.
+   private void closeOnOverflow()
+   {
+      metrics.recordOverflowDisconnect();
+      if (channel != null) {
+         eventLoop.execute(this::closeChannel);
+         return;
+      }
+      running = false;
+      if (loopback != null) {
+         loopback.close();
+         return;
+      }
+      outbound.close();
+      try {
+         // The reader and writer threads will both fail, and clean up after themselves.
+         socket.close();
+      } catch (IOException e) {
+      }
+   }
+
+   // Hands the frame in frameBuffer over to the outbound queue, and makes sure the writer will
+   // get to it (or hands it straight to the loopback peer). Must be called while holding lock_output.
+   private boolean enqueueFrame()
+   {
+      if (loopback != null) {
+         byte[] frame = frameBuffer.detach();
+         if (!sendToLoopback(frame)) {
+            bufferPool.release(frame);
+            return false;
+         }
+         return true;
+      }
+      int length = frameBuffer.size();
+      // The caller tells the watermark listener about any change once it has released lock_output.
+      if (!outbound.offerDeferringNotification(frameBuffer.detach(), length)) {
+         return false;
+      }
+      if (channel == null) {
+         startWriterThread();
+      }
+      else {
+         scheduleFlush();
+      }
+      return true;
+   }
+
+   private synchronized Thread getWriterThread()
+   {
+      return writerThread;
+   }
+
+   private synchronized void startWriterThread()
+   {
+      if (writerThread == null) {
+         writerThread = newThread(this::runWriter, name + "-writer");
+         writerThread.setDaemon(true);
+         writerThread.start();
+      }
+   }
+
+   // The loop of the writer thread of a blocking connection.
+   private void runWriter()
+   {
+      ByteBuffer[] batch = new ByteBuffer[MAX_FRAMES_PER_BATCH];
+      try {
+         while (outbound.awaitFlush()) {
+            int count = outbound.gather(batch);
+            if (count == 1) {
+               ByteBuffer frame = batch[0];
+               outputStream.write(frame.array(), frame.position(), frame.remaining());
+               frame.position(frame.limit());
+            }
+            else {
+               // Copy the batch into one array, so it goes to the socket in a single write.
+               int batchSize = 0;
+               for (int i = 0; i < count; i++) {
+                  batchSize += batch[i].remaining();
+               }
+               byte[] batchBuf = bufferPool.acquire(batchSize);
+               try {
+                  int offset = 0;
+                  for (int i = 0; i < count; i++) {
+                     ByteBuffer frame = batch[i];
+                     int length = frame.remaining();
+                     frame.get(batchBuf, offset, length);
+                     offset += length;
+                  }
+                  outputStream.write(batchBuf, 0, batchSize);
+               } finally {
+                  bufferPool.release(batchBuf);
+               }
+            }
+            outputStream.flush();
+            outbound.removeWritten();
+         }
+      } catch (IOException e) {
+         if (running) {
+            metrics.recordSendError();
+            diag("unable to write to " + getName() + ", closing: " + e.getMessage());
+            // Closing the socket stops the reader too, which then closes the connection the
+            // same way as when the peer goes away: failing the pending requests, and calling
+            // handleDisconnect(). Discarding the queue below fails any further sends right away.
+            try {
+               socket.close();
+            } catch (IOException closeException) {
+            }
+         }
+      } catch (InterruptedException e) {
+      } finally {
+         for (int i = 0; i < batch.length; i++) {
+            batch[i] = null;
+         }
+         outbound.discard();
+      }
+   }
+
+   // Makes sure the event loop writes the outbound queue, either right away, or once the
+   // oldest queued frame has waited as long as the batching configuration allows.
+   private void scheduleFlush()
+   {
+      if (outbound.isFlushDue()) {
+         if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this::flushPendingWrites);
+         }
+      }
+      else if (delayedFlushScheduled.compareAndSet(false, true)) {
+         eventLoop.schedule(() -> {
+            delayedFlushScheduled.set(false);
+            flushPendingWrites();
+         }, outbound.getMaxFlushDelayNanos(), TimeUnit.NANOSECONDS);
+      }
+   }
+
+   // Called on the event loop thread once the channel has been registered.
+   void attachChannel(SocketChannel channel, SocketEventLoop eventLoop)
+   {
+      this.channel = channel;
+      this.eventLoop = eventLoop;
+      running = true;
+      try {
+         channel.socket().setSoLinger(true, 10/*linger_timeout_in_seconds*/);
+         selectionKey = channel.register(eventLoop.selector, SelectionKey.OP_READ, this);
+      } catch (IOException e) {
+         e.printStackTrace();
+         closeChannel();
+         return;
+      }
+      diag("connected to " + channel.socket().getInetAddress().getHostAddress() + " on event loop " + eventLoop.getName());
+      sendHello();
+      handleConnect(this);
+   }
+
+   // Called on the event loop thread when the channel has data to read.
+   void handleReadable()
+   {
+      if (readBuffer == null) {
+         readBuffer = ByteBuffer.wrap(bufferPool.acquire(INITIAL_READ_BUFFER_SIZE));
+      }
+      try {
+         if (channel.read(readBuffer) < 0) {
+            closeChannel();
+            return;
+         }
+         readBuffer.flip();
+         int requiredCapacity = 0;
+         while (running && (readBuffer.remaining() >= 4)) {
+            int header = readBuffer.getInt(readBuffer.position());
+            int msgSize = header & FrameOutputBuffer.LENGTH_MASK;
+            if (msgSize > maxFrameSize) {
+               metrics.recordDecodeError();
+               diag("frame of " + msgSize + " bytes is larger than the maximum frame size of " + maxFrameSize + ", closing");
+               closeChannel();
+               return;
+            }
+            if (readBuffer.remaining() < (msgSize + 4)) {
+               // The frame is not complete yet. Make sure it will fit once it arrives.
+               requiredCapacity = msgSize + 4;
+               break;
+            }
+            int msgStart = readBuffer.position() + 4;
+            if (decodeStage != null) {
+               // Copy the frame out of the read buffer, and hand it over to the decode stage.
+               byte[] msgBuf = bufferPool.acquire(msgSize);
+               System.arraycopy(readBuffer.array(), readBuffer.arrayOffset() + msgStart, msgBuf, 0, msgSize);
+               if (!decodeStage.offer(decodeTask(msgBuf, 0, msgSize, header & ~FrameOutputBuffer.LENGTH_MASK),
+                                      () -> eventLoop.execute(this::resumeReading))) {
+                  // The decode queue is full. Leave this frame in the read buffer, and stop
+                  // reading until the queue has drained.
+                  bufferPool.release(msgBuf);
+                  readPaused = true;
+                  selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+                  break;
+               }
+               readBuffer.position(msgStart + msgSize);
+            }
+            else {
+               // Decode the frame right out of the read buffer.
+               readBuffer.position(msgStart + msgSize);
+               processMessage(readBuffer.array(), readBuffer.arrayOffset() + msgStart, msgSize, header & ~FrameOutputBuffer.LENGTH_MASK);
+            }
+         }
+         readBuffer.compact();
+         if (requiredCapacity > readBuffer.capacity()) {
+            ByteBuffer largerBuffer = ByteBuffer.wrap(bufferPool.acquire(requiredCapacity));
+            readBuffer.flip();
+            largerBuffer.put(readBuffer);
+            bufferPool.release(readBuffer.array());
+            readBuffer = largerBuffer;
+         }
+         else if (readBuffer.position() == 0) {
+            // No partial frame is waiting, so don't hold on to the buffer while idle.
+            bufferPool.release(readBuffer.array());
+            readBuffer = null;
+         }
+      } catch (IOException e) {
+         closeChannel();
+      }
+   }
+
+   // Called on the event loop thread once the decode queue has room again after readPaused was set.
+   private void resumeReading()
+   {
+      readPaused = false;
+      if (running) {
+         selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+         // Frames that were left in the read buffer won't make the selector fire again.
+         try {
+            handleReadable();
+         } catch (RuntimeException e) {
+            failChannel(e);
+         }
+      }
+   }
+
+   // Called on the event loop thread when reading or writing this connection threw
+   // something other than an IOException. Only this connection is closed.
+   void failChannel(RuntimeException e)
+   {
+      metrics.recordDecodeError();
+      diag("error while handling " + getName() + ", closing connection: " + e);
+      e.printStackTrace();
+      try {
+         closeChannel();
+      } catch (RuntimeException closeError) {
+         // handleDisconnect() threw as well, but the channel is closed by then.
+         closeError.printStackTrace();
+      }
+   }
+
+   private int readInterest()
+   {
+      return readPaused ? 0 : SelectionKey.OP_READ;
+   }
+
+   // Called on the event loop thread when a previously incomplete write may continue.
+   void handleWritable()
+   {
+      flushPendingWrites();
+   }
+
+   private void flushPendingWrites()
+   {
+      flushScheduled.set(false);
+      if (!running) {
+         return;
+      }
+      try {
+         while (outbound.isFlushDue()) {
+            // Hand as many queued frames as fit in one batch to the socket in a single gathering write.
+            int count = outbound.gather(writeBatch);
+            channel.write(writeBatch, 0, count);
+            boolean incomplete = writeBatch[count - 1].hasRemaining();
+            Arrays.fill(writeBatch, 0, count, null);
+            outbound.removeWritten();
+            if (incomplete) {
+               // The socket send buffer is full, wait until the selector says we can write again.
+               selectionKey.interestOps(readInterest() | SelectionKey.OP_WRITE);
+               return;
+            }
+         }
+         selectionKey.interestOps(readInterest());
+         if (outbound.getQueuedFrames() > 0) {
+            // What's left is waiting for more frames to join its batch.
+            scheduleFlush();
+         }
+      } catch (IOException e) {
+         closeChannel();
+      }
+   }
+
+   void closeChannel()
+   {
+      if (!running) {
+         return;
+      }
+      running = false;
+      if (selectionKey != null) {
+         selectionKey.cancel();
+      }
+      try {
+         channel.close();
+      } catch (IOException e) {
+      }
+      outbound.discard();
+      if (readBuffer != null) {
+         bufferPool.release(readBuffer.array());
+         readBuffer = null;
+      }
+      handleClosed();
+      diag("closed channel on event loop " + eventLoop.getName());
+   }
+
    static final String NUMBERS = "0123456789ABCDEF";
-   private static void appendByteBufferDump(StringBuilder sb, byte[] dataArray)
+   private static void appendByteBufferDump(StringBuilder sb, byte[] dataArray, int length)
    {
       StringBuilder ascii = new StringBuilder();
-      for (int i=0 ; ((i<dataArray.length) || ((i%32) != 0)) ; i++) {
+      for (int i=0 ; ((i<length) || ((i%32) != 0)) ; i++) {
          if ((i%4) == 0) {
             sb.append(' ');
             if ((i%8) == 0) {
@@ -249,7 +1592,7 @@ public abstract class SocketConnector extends Thread
                ascii.append(' ');
             }
          }
-         if (i<dataArray.length) {
+         if (i<length) {
             if ((dataArray[i]>=0x20) && (dataArray[i] <=0x7F)) {
                ascii.append((char)(dataArray[i]));
             }
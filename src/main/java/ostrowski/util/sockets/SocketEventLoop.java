@@ -0,0 +1,227 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import ostrowski.util.TrackableThread;
+
+/**
+ * A single selector thread that services any number of non-blocking SocketConnectors.
+ * All reads, writes and (de)registrations of a connection happen on its event loop
+ * thread, so the SocketConnector NIO state needs no locking. Other threads hand work
+ * to the loop through execute(), which wakes up the selector, or schedule(), which runs
+ * the task after a delay (with the millisecond resolution of Selector.select()).
+ */
+public class SocketEventLoop extends TrackableThread
+{
+   final         Selector                        selector;
+   private final SocketEventLoopGroup            group;
+   private final ConcurrentLinkedQueue<Runnable> tasks              = new ConcurrentLinkedQueue<>();
+   // Only touched by the event loop thread.
+   private final PriorityQueue<ScheduledTask>    scheduledTasks     = new PriorityQueue<>();
+   private       long                            scheduledTaskCount = 0;
+   private volatile boolean                      running            = true;
+
+   private static final class ScheduledTask implements Comparable<ScheduledTask>
+   {
+      final Runnable task;
+      final long     deadlineNanos;
+      final long     sequence;
+
+      ScheduledTask(Runnable task, long deadlineNanos, long sequence)
+      {
+         this.task = task;
+         this.deadlineNanos = deadlineNanos;
+         this.sequence = sequence;
+      }
+
+      @Override
+      public int compareTo(ScheduledTask other)
+      {
+         int cmp = Long.compare(deadlineNanos - other.deadlineNanos, 0);
+         return (cmp != 0) ? cmp : Long.compare(sequence, other.sequence);
+      }
+   }
+
+   SocketEventLoop(String name, SocketEventLoopGroup group) throws IOException
+   {
+      super(name);
+      this.group = group;
+      selector = Selector.open();
+      setDaemon(true);
+   }
+
+   /**
+    * Queue a task to be run on this event loop's thread, and wake the selector up
+    * so the task runs promptly.
+    * @param task The task to run
+    */
+   public void execute(Runnable task)
+   {
+      tasks.add(task);
+      selector.wakeup();
+   }
+
+   /**
+    * Queue a task to be run on this event loop's thread once the delay has passed.
+    */
+   public void schedule(Runnable task, long delay, TimeUnit unit)
+   {
+      long deadlineNanos = System.nanoTime() + unit.toNanos(delay);
+      execute(() -> scheduledTasks.add(new ScheduledTask(task, deadlineNanos, scheduledTaskCount++)));
+   }
+
+   public boolean inEventLoop()
+   {
+      return Thread.currentThread() == this;
+   }
+
+   void register(SocketChannel channel, SocketConnector connector)
+   {
+      execute(() -> connector.attachChannel(channel, this));
+   }
+
+   void listen(ServerSocketChannel serverChannel, Supplier<? extends SocketConnector> connectorFactory)
+   {
+      execute(() -> {
+         try {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT, connectorFactory);
+         } catch (IOException e) {
+            e.printStackTrace();
+         }
+      });
+   }
+
+   void shutdown()
+   {
+      running = false;
+      selector.wakeup();
+   }
+
+   @Override
+   public void run()
+   {
+      while (running) {
+         try {
+            ScheduledTask nextTask = scheduledTasks.peek();
+            if (nextTask == null) {
+               selector.select();
+            }
+            else {
+               long delayNanos = nextTask.deadlineNanos - System.nanoTime();
+               if (delayNanos <= 0) {
+                  selector.selectNow();
+               }
+               else {
+                  // select(0) would wait forever, so wait at least a millisecond.
+                  selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayNanos)));
+               }
+            }
+         } catch (IOException e) {
+            e.printStackTrace();
+            break;
+         }
+         runTasks();
+         runScheduledTasks();
+         Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+         while (iter.hasNext()) {
+            SelectionKey key = iter.next();
+            iter.remove();
+            if (!key.isValid()) {
+               continue;
+            }
+            Object attachment = key.attachment();
+            if (attachment instanceof SocketConnector) {
+               SocketConnector connector = (SocketConnector) attachment;
+               try {
+                  if (key.isReadable()) {
+                     connector.handleReadable();
+                  }
+                  if (key.isValid() && key.isWritable()) {
+                     connector.handleWritable();
+                  }
+               } catch (RuntimeException e) {
+                  // Frames are decoded, and (without a receive pipeline) handed to the
+                  // connector's subclass, on this thread. Whatever goes wrong there must
+                  // only cost that one connection, not every connection on this loop.
+                  connector.failChannel(e);
+               }
+            }
+            else if (key.isAcceptable()) {
+               @SuppressWarnings("unchecked")
+               Supplier<? extends SocketConnector> connectorFactory = (Supplier<? extends SocketConnector>) attachment;
+               acceptConnections((ServerSocketChannel) key.channel(), connectorFactory);
+            }
+         }
+      }
+      runTasks();
+      // Close everything that is still registered with this loop.
+      for (SelectionKey key : selector.keys()) {
+         Object attachment = key.attachment();
+         if (attachment instanceof SocketConnector) {
+            ((SocketConnector) attachment).closeChannel();
+         }
+         else {
+            try {
+               key.channel().close();
+            } catch (IOException e) {
+            }
+         }
+      }
+      try {
+         selector.close();
+      } catch (IOException e) {
+      }
+   }
+
+   private void runTasks()
+   {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+         try {
+            task.run();
+         } catch (RuntimeException e) {
+            e.printStackTrace();
+         }
+      }
+   }
+
+   private void runScheduledTasks()
+   {
+      long now = System.nanoTime();
+      ScheduledTask scheduledTask;
+      while (((scheduledTask = scheduledTasks.peek()) != null) && ((scheduledTask.deadlineNanos - now) <= 0)) {
+         scheduledTasks.poll();
+         try {
+            scheduledTask.task.run();
+         } catch (RuntimeException e) {
+            e.printStackTrace();
+         }
+      }
+   }
+
+   private void acceptConnections(ServerSocketChannel serverChannel, Supplier<? extends SocketConnector> connectorFactory)
+   {
+      try {
+         SocketChannel channel;
+         while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            group.register(channel, connectorFactory.get());
+         }
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+   }
+}
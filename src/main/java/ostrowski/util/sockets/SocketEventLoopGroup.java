@@ -0,0 +1,109 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ */
+package ostrowski.util.sockets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A small, fixed set of SocketEventLoop threads that multiplex any number of
+ * SocketConnectors. Connections are spread over the loops round-robin, so a server
+ * with tens of thousands of clients still only runs 'threadCount' socket threads.
+ * Connectors attached to a group are never started as threads of their own.
+ */
+public class SocketEventLoopGroup
+{
+   private final SocketEventLoop[] loops;
+   private final AtomicInteger     nextLoop = new AtomicInteger();
+
+   public SocketEventLoopGroup(String name)
+   {
+      this(name, Runtime.getRuntime().availableProcessors());
+   }
+
+   public SocketEventLoopGroup(String name, int threadCount)
+   {
+      loops = new SocketEventLoop[Math.max(1, threadCount)];
+      try {
+         for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SocketEventLoop(name + "-" + i, this);
+         }
+      } catch (IOException e) {
+         throw new IllegalStateException("unable to open selector for " + name, e);
+      }
+      for (SocketEventLoop loop : loops) {
+         loop.start();
+      }
+   }
+
+   SocketEventLoop next()
+   {
+      return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+   }
+
+   /**
+    * Hand an already connected channel to one of the event loops. The connectors
+    * handleConnect() method will be called from the event loop thread.
+    * @param channel   The connected channel, which will be put into non-blocking mode
+    * @param connector The connector that will receive the callbacks for this channel
+    */
+   public void register(SocketChannel channel, SocketConnector connector)
+   {
+      try {
+         channel.configureBlocking(false);
+      } catch (IOException e) {
+         e.printStackTrace();
+         connector.handleDisconnect(connector);
+         return;
+      }
+      next().register(channel, connector);
+   }
+
+   /**
+    * Connect to a remote server, and service the connection from this group.
+    * @return true if the connection was established
+    */
+   public boolean connect(String ipAddress, int port, SocketConnector connector)
+   {
+      try {
+         register(SocketChannel.open(new InetSocketAddress(ipAddress, port)), connector);
+         return true;
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+      connector.handleDisconnect(connector);
+      return false;
+   }
+
+   /**
+    * Accept connections on the given port. A new SocketConnector is obtained from
+    * the connectorFactory for every accepted connection.
+    * @return the listening channel, which may be closed to stop accepting connections
+    */
+   public ServerSocketChannel listen(int port, Supplier<? extends SocketConnector> connectorFactory) throws IOException
+   {
+      ServerSocketChannel serverChannel = ServerSocketChannel.open();
+      serverChannel.bind(new InetSocketAddress(port));
+      serverChannel.configureBlocking(false);
+      next().listen(serverChannel, connectorFactory);
+      return serverChannel;
+   }
+
+   public int getThreadCount()
+   {
+      return loops.length;
+   }
+
+   public void shutdown()
+   {
+      for (SocketEventLoop loop : loops) {
+         loop.shutdown();
+      }
+   }
+}